@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+
+/**
+ * Cost of deflating JSON values before they are encrypted, see
+ * {@link SecurePreferences.Builder#setCompressionThreshold(int)}. {@code putCommit} and
+ * {@code getString} show the extra CPU time. {@code putCommitAndSync} adds what Android does on
+ * every commit, rewriting and syncing the whole preferences file, which is where the smaller
+ * values pay off.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final String KEY = "jsonKey";
+    private static final int COMPRESSION_THRESHOLD = 256;
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int valueSize;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private InMemorySharedPreferences sharedPreferences;
+    private SecurePreferences securePreferences;
+    private String value;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        sharedPreferences = new InMemorySharedPreferences();
+        SecurePreferences.Builder builder = Fixtures.createBuilder(sharedPreferences, SecurePreferences.Mode.ENVELOPE);
+
+        if (compressed) {
+            builder.setCompressionThreshold(COMPRESSION_THRESHOLD);
+        }
+
+        securePreferences = builder.build();
+        value = Fixtures.randomJson(Fixtures.createRandom(), valueSize);
+        securePreferences.edit().putString(KEY, value).commit();
+        file = File.createTempFile("compression", ".xml");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean putCommit() {
+        return securePreferences.edit().putString(KEY, value).commit();
+    }
+
+    @Benchmark
+    public boolean putCommitAndSync() throws IOException {
+        boolean committed = securePreferences.edit().putString(KEY, value).commit();
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(sharedPreferences.getAll().toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+
+        return committed;
+    }
+
+    @Benchmark
+    public String getString() {
+        return securePreferences.getString(KEY, null);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+import me.adamstroud.securepreferences.SoftwareCryptoBackend;
+
+/**
+ * Creates the preferences and values used by the benchmarks. Every benchmark shares one key
+ * pair and a fixed seed, so runs are repeatable.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ final class Fixtures {
+    private static final long SEED = 42;
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    private static final KeyPair KEY_PAIR = generateKeyPair();
+
+    private Fixtures() {
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(2048);
+            return keyPairGenerator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* default */ static SecurePreferences createPreferences(SecurePreferences.Mode mode) {
+        return createBuilder(new InMemorySharedPreferences(), mode).build();
+    }
+
+    /* default */ static SecurePreferences.Builder createBuilder(SharedPreferences sharedPreferences,
+                                                           SecurePreferences.Mode mode) {
+        return new SecurePreferences.Builder(sharedPreferences, new SoftwareCryptoBackend(KEY_PAIR))
+                .setMode(mode);
+    }
+
+    /* default */ static Random createRandom() {
+        return new Random(SEED);
+    }
+
+    /* default */ static String randomString(Random random, int length) {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Creates a JSON array of records with the same fields, which compresses about as well as
+     * the JSON that apps usually store.
+     */
+    /* default */ static String randomJson(Random random, int length) {
+        StringBuilder json = new StringBuilder(length + 64).append('[');
+
+        while (json.length() < length) {
+            json.append(json.length() == 1 ? "" : ",")
+                    .append("{\"id\":").append(random.nextInt(100000))
+                    .append(",\"name\":\"").append(randomString(random, 8))
+                    .append("\",\"enabled\":").append(random.nextBoolean())
+                    .append(",\"tags\":[\"").append(randomString(random, 4)).append("\"]}");
+        }
+
+        return json.append(']').toString();
+    }
+
+    /* default */ static Set<String> randomStringSet(Random random, int size, int valueLength) {
+        Set<String> values = new HashSet<>(size);
+
+        while (values.size() < size) {
+            values.add(randomString(random, valueLength));
+        }
+
+        return values;
+    }
+}
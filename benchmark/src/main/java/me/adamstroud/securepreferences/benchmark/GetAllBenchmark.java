@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+
+/**
+ * How {@link SecurePreferences#getAll()} scales with the number of preferences.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetAllBenchmark {
+    private static final int VALUE_SIZE = 32;
+
+    @Param({"RSA", "ENVELOPE"})
+    public SecurePreferences.Mode mode;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entryCount;
+
+    private SecurePreferences securePreferences;
+
+    @Setup
+    public void setUp() {
+        Random random = Fixtures.createRandom();
+        securePreferences = Fixtures.createPreferences(mode);
+        SecurePreferences.SecureEditor editor = securePreferences.edit();
+
+        for (int i = 0; i < entryCount; i++) {
+            editor.putString("key" + i, Fixtures.randomString(random, VALUE_SIZE));
+        }
+
+        editor.commit();
+    }
+
+    @Benchmark
+    public Map<String, ?> getAll() {
+        return securePreferences.getAll();
+    }
+}
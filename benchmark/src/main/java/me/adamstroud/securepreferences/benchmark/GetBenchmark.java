@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+
+/**
+ * Latency of reading a single preference. Value sizes stay below the RSA block size so both
+ * modes can be compared. The allocation rate reported by the gc profiler compares reads into
+ * a caller's buffer with the ones that return a new value.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetBenchmark {
+    private static final String STRING_KEY = "stringKey";
+    private static final String INT_KEY = "intKey";
+
+    @Param({"RSA", "ENVELOPE"})
+    public SecurePreferences.Mode mode;
+
+    @Param({"16", "64", "200"})
+    public int valueSize;
+
+    private SecurePreferences securePreferences;
+    private byte[] bytes;
+    private ByteBuffer directBuffer;
+
+    @Setup
+    public void setUp() {
+        securePreferences = Fixtures.createPreferences(mode);
+        securePreferences.edit()
+                .putString(STRING_KEY, Fixtures.randomString(Fixtures.createRandom(), valueSize))
+                .putInt(INT_KEY, 42)
+                .commit();
+
+        bytes = new byte[valueSize];
+        directBuffer = ByteBuffer.allocateDirect(valueSize);
+    }
+
+    @Benchmark
+    public String getString() {
+        return securePreferences.getString(STRING_KEY, null);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return securePreferences.getInt(INT_KEY, -1);
+    }
+
+    @Benchmark
+    public int getBytes() {
+        return securePreferences.getBytes(STRING_KEY, bytes, 0);
+    }
+
+    @Benchmark
+    public int getIntoDirectBuffer() {
+        directBuffer.clear();
+        return securePreferences.getInto(STRING_KEY, directBuffer);
+    }
+}
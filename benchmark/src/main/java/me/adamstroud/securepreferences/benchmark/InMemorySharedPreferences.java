@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * {@link SharedPreferences} that only live in memory, so benchmarks measure the encryption and
+ * not the disk. Like the Android implementation, listeners are only held weakly.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class InMemorySharedPreferences implements SharedPreferences {
+    private static final Object REMOVED = new Object();
+
+    private final Map<String, Object> values = new HashMap<>();
+    private final Map<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        String value = (String) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        @SuppressWarnings("unchecked")
+        Set<String> values = (Set<String>) this.values.get(key);
+        return values == null ? defValues : values;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Integer value = (Integer) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        Long value = (Long) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        Float value = (Float) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.put(listener, null);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private boolean commit(Map<String, Object> modifications, boolean cleared) {
+        Set<OnSharedPreferenceChangeListener> currentListeners;
+
+        synchronized (this) {
+            if (cleared) {
+                values.clear();
+            }
+
+            for (Map.Entry<String, Object> entry : modifications.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    values.remove(entry.getKey());
+                } else {
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            currentListeners = new HashSet<>(listeners.keySet());
+        }
+
+        for (OnSharedPreferenceChangeListener listener : currentListeners) {
+            for (String key : modifications.keySet()) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+
+        return true;
+    }
+
+    private class InMemoryEditor implements Editor {
+        private final Map<String, Object> modifications = new HashMap<>();
+        private boolean cleared;
+
+        private synchronized Editor put(String key, Object value) {
+            modifications.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            cleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            Map<String, Object> committed;
+            boolean committedClear;
+
+            synchronized (this) {
+                committed = new HashMap<>(modifications);
+                committedClear = cleared;
+                modifications.clear();
+                cleared = false;
+            }
+
+            return InMemorySharedPreferences.this.commit(committed, committedClear);
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
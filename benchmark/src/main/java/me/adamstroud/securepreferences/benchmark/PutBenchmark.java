@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+
+/**
+ * Throughput of {@link SecurePreferences.SecureEditor} put followed by a synchronous commit.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PutBenchmark {
+    private static final String STRING_KEY = "stringKey";
+    private static final String INT_KEY = "intKey";
+
+    @Param({"RSA", "ENVELOPE"})
+    public SecurePreferences.Mode mode;
+
+    @Param({"16", "64", "200"})
+    public int valueSize;
+
+    private SecurePreferences securePreferences;
+    private String value;
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        securePreferences = Fixtures.createPreferences(mode);
+        value = Fixtures.randomString(Fixtures.createRandom(), valueSize);
+    }
+
+    @Benchmark
+    public boolean putStringCommit() {
+        return securePreferences.edit().putString(STRING_KEY, value).commit();
+    }
+
+    @Benchmark
+    public boolean putIntCommit() {
+        return securePreferences.edit().putInt(INT_KEY, counter++).commit();
+    }
+}
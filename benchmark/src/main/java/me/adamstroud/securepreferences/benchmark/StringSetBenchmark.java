@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+
+/**
+ * Cost of writing and reading string sets as they grow.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringSetBenchmark {
+    private static final String WRITE_KEY = "writeKey";
+    private static final String READ_KEY = "readKey";
+    private static final int VALUE_SIZE = 16;
+
+    @Param({"RSA", "ENVELOPE"})
+    public SecurePreferences.Mode mode;
+
+    @Param({"1", "10", "100", "1000"})
+    public int setSize;
+
+    private SecurePreferences securePreferences;
+    private Set<String> values;
+
+    @Setup
+    public void setUp() {
+        securePreferences = Fixtures.createPreferences(mode);
+        values = Fixtures.randomStringSet(Fixtures.createRandom(), setSize, VALUE_SIZE);
+        securePreferences.edit().putStringSet(READ_KEY, values).commit();
+    }
+
+    @Benchmark
+    public boolean putStringSetCommit() {
+        return securePreferences.edit().putStringSet(WRITE_KEY, values).commit();
+    }
+
+    @Benchmark
+    public Set<String> getStringSet() {
+        return securePreferences.getStringSet(READ_KEY, null);
+    }
+}
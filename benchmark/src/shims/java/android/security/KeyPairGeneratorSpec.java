@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.security;
+
+import android.content.Context;
+
+import java.math.BigInteger;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * JVM stand-in for the Android class of the same name, covering only what the library uses.
+ * There is no AndroidKeyStore on the JVM, benchmarks use {@code SoftwareCryptoBackend}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class KeyPairGeneratorSpec implements AlgorithmParameterSpec {
+    public static class Builder {
+        public Builder(Context context) {
+        }
+
+        public Builder setSubject(X500Principal subject) {
+            return this;
+        }
+
+        public Builder setSerialNumber(BigInteger serialNumber) {
+            return this;
+        }
+
+        public Builder setStartDate(Date startDate) {
+            return this;
+        }
+
+        public Builder setEndDate(Date endDate) {
+            return this;
+        }
+
+        public Builder setAlias(String alias) {
+            return this;
+        }
+
+        public KeyPairGeneratorSpec build() {
+            return new KeyPairGeneratorSpec();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * JVM stand-in for the Android class of the same name, covering only what the library uses.
+ * The JVM cannot hand out a descriptor for a path, so every descriptor stands for its path and
+ * is opened again through a {@link FileChannel} when it is synced.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class Os {
+    private static final int EIO = 5;
+    private static final Map<FileDescriptor, String> PATHS = new WeakHashMap<>();
+
+    public static FileDescriptor open(String path, int flags, int mode) throws ErrnoException {
+        FileDescriptor fd = new FileDescriptor();
+
+        synchronized (PATHS) {
+            PATHS.put(fd, path);
+        }
+
+        return fd;
+    }
+
+    public static void fsync(FileDescriptor fd) throws ErrnoException {
+        String path;
+
+        synchronized (PATHS) {
+            path = PATHS.get(fd);
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new ErrnoException("fsync", EIO, e);
+        }
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+        synchronized (PATHS) {
+            PATHS.remove(fd);
+        }
+    }
+}
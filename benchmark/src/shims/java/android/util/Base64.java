@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JVM stand-in for the Android class of the same name, covering only what the library uses.
+ * Produces the same output as Android: {@link #DEFAULT} wraps lines at 76 characters and ends
+ * with a newline, {@link #NO_WRAP} does not.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    private static final int LINE_LENGTH = 76;
+    private static final byte[] LINE_SEPARATOR = {'\n'};
+
+    public static String encodeToString(byte[] input, int flags) {
+        if ((flags & NO_WRAP) != 0) {
+            return java.util.Base64.getEncoder().encodeToString(input);
+        }
+
+        String encoded = java.util.Base64.getMimeEncoder(LINE_LENGTH, LINE_SEPARATOR).encodeToString(input);
+        return encoded.isEmpty() ? encoded : encoded + '\n';
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many readers against many writers on the in-memory backing preferences and checks that
+ * every read is consistent. Runs on the JVM.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class ConcurrencyStressTest {
+    private static final int WRITERS = 8;
+    private static final int READERS = 8;
+    private static final int WRITES_PER_WRITER = 200;
+    private static final String LEFT_KEY = "leftKey";
+    private static final String RIGHT_KEY = "rightKey";
+
+    private SecurePreferences securePreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        securePreferences = Fixtures.createPreferences(SecurePreferences.Mode.ENVELOPE);
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<Void>> writers = new ArrayList<>(WRITERS);
+        List<Future<Integer>> readers = new ArrayList<>(READERS);
+
+        for (int i = 0; i < WRITERS; i++) {
+            final int writer = i;
+
+            writers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    for (int count = 0; count < WRITES_PER_WRITER; count++) {
+                        String pair = writer + "-" + count;
+                        SharedPreferences.Editor editor = securePreferences.edit()
+                                .putInt(counterKey(writer), count)
+                                .putString(LEFT_KEY, pair)
+                                .putString(RIGHT_KEY, pair);
+
+                        if (count % 2 == 0) {
+                            editor.apply();
+                        } else {
+                            assertTrue(editor.commit());
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        for (int i = 0; i < READERS; i++) {
+            readers.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int[] lastCounts = new int[WRITERS];
+                    Arrays.fill(lastCounts, -1);
+                    int reads = 0;
+                    start.await();
+
+                    do {
+                        // The keys of one editor are always seen together
+                        Map<String, ?> all = securePreferences.getAllTyped();
+                        assertThat(all.get(RIGHT_KEY), is(equalTo(all.get(LEFT_KEY))));
+
+                        // A value never goes back to an older one
+                        for (int writer = 0; writer < WRITERS; writer++) {
+                            Integer allCount = (Integer) all.get(counterKey(writer));
+                            assertTrue((allCount == null ? -1 : allCount) >= lastCounts[writer]);
+
+                            int count = securePreferences.getInt(counterKey(writer), -1);
+                            assertTrue(count >= lastCounts[writer]);
+                            lastCounts[writer] = count;
+                        }
+
+                        reads++;
+                    } while (writing.get());
+
+                    return reads;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        try {
+            for (Future<Void> writer : writers) {
+                writer.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            writing.set(false);
+        }
+
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get(60, TimeUnit.SECONDS) > 0);
+        }
+
+        executor.shutdown();
+
+        for (int writer = 0; writer < WRITERS; writer++) {
+            assertThat(securePreferences.getInt(counterKey(writer), -1), is(equalTo(WRITES_PER_WRITER - 1)));
+        }
+
+        assertThat(securePreferences.getString(LEFT_KEY, null), is(equalTo(securePreferences.getString(RIGHT_KEY, null))));
+    }
+
+    private static String counterKey(int writer) {
+        return "counterKey" + writer;
+    }
+}
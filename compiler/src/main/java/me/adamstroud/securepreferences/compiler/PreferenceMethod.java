@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.compiler;
+
+import java.util.Locale;
+
+/**
+ * A method of a {@code TypedPreferences} interface, resolved to what the generated class
+ * needs.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class PreferenceMethod {
+    private final String methodName;
+    private final String propertyName;
+    private final String key;
+    private final PreferenceType type;
+    private final String defaultLiteral;
+    private final boolean memoized;
+
+    /**
+     * @param methodName The name of the method in the interface.
+     * @param key The key of the preference.
+     * @param defaultLiteral The Java literal of the default value.
+     */
+    /* default */ PreferenceMethod(String methodName,
+                                   String key,
+                                   PreferenceType type,
+                                   String defaultLiteral,
+                                   boolean memoized) {
+        this.methodName = methodName;
+        this.propertyName = toPropertyName(methodName, type);
+        this.key = key;
+        this.type = type;
+        this.defaultLiteral = defaultLiteral;
+        this.memoized = memoized;
+    }
+
+    /**
+     * Strips a {@code get} prefix, or {@code is} for booleans, and capitalizes the rest.
+     */
+    private static String toPropertyName(String methodName, PreferenceType type) {
+        String name = methodName;
+
+        if (hasPrefix(name, "get")) {
+            name = name.substring(3);
+        } else if (type == PreferenceType.BOOLEAN && hasPrefix(name, "is")) {
+            name = name.substring(2);
+        }
+
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static boolean hasPrefix(String name, String prefix) {
+        return name.length() > prefix.length()
+                && name.startsWith(prefix)
+                && Character.isUpperCase(name.charAt(prefix.length()));
+    }
+
+    /* default */ String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * The name of the method without its prefix, e.g. {@code LaunchCount} for
+     * {@code getLaunchCount()}.
+     */
+    /* default */ String getPropertyName() {
+        return propertyName;
+    }
+
+    /**
+     * The name of the constant that holds the key, e.g. {@code KEY_LAUNCH_COUNT}.
+     */
+    /* default */ String getKeyConstant() {
+        StringBuilder constant = new StringBuilder("KEY");
+
+        for (int i = 0; i < propertyName.length(); i++) {
+            char c = propertyName.charAt(i);
+            boolean wordStart = Character.isUpperCase(c)
+                    && (i == 0
+                    || !Character.isUpperCase(propertyName.charAt(i - 1))
+                    || (i + 1 < propertyName.length() && Character.isLowerCase(propertyName.charAt(i + 1))));
+
+            if (wordStart) {
+                constant.append('_');
+            }
+
+            constant.append(c);
+        }
+
+        return constant.toString().toUpperCase(Locale.US);
+    }
+
+    /**
+     * The prefix of the fields that memoize the value, e.g. {@code launchCount}.
+     */
+    /* default */ String getFieldPrefix() {
+        return Character.toLowerCase(propertyName.charAt(0)) + propertyName.substring(1);
+    }
+
+    /* default */ String getKey() {
+        return key;
+    }
+
+    /* default */ PreferenceType getType() {
+        return type;
+    }
+
+    /* default */ String getDefaultLiteral() {
+        return defaultLiteral;
+    }
+
+    /* default */ boolean isMemoized() {
+        return memoized;
+    }
+}
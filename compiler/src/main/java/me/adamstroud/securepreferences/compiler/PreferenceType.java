@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.compiler;
+
+/**
+ * The types a preference method can return, with the {@code SecurePreferences} methods that
+ * read and write them.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ enum PreferenceType {
+    INT("int", "getInt", "putInt", "0") {
+        @Override
+        /* default */ String toLiteral(String value) {
+            return Integer.toString(Integer.parseInt(value.trim()));
+        }
+    },
+
+    LONG("long", "getLong", "putLong", "0L") {
+        @Override
+        /* default */ String toLiteral(String value) {
+            return Long.parseLong(value.trim()) + "L";
+        }
+    },
+
+    FLOAT("float", "getFloat", "putFloat", "0f") {
+        @Override
+        /* default */ String toLiteral(String value) {
+            float parsed = Float.parseFloat(value.trim());
+
+            if (Float.isNaN(parsed) || Float.isInfinite(parsed)) {
+                throw new IllegalArgumentException("Not a finite float");
+            }
+
+            return Float.toString(parsed) + "f";
+        }
+    },
+
+    BOOLEAN("boolean", "getBoolean", "putBoolean", "false") {
+        @Override
+        /* default */ String toLiteral(String value) {
+            if (!"true".equals(value) && !"false".equals(value)) {
+                throw new IllegalArgumentException("Not true or false");
+            }
+
+            return value;
+        }
+    },
+
+    STRING("String", "getString", "putString", "null") {
+        @Override
+        /* default */ String toLiteral(String value) {
+            StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+
+                if (c == '"' || c == '\\') {
+                    literal.append('\\').append(c);
+                } else if (c < ' ' || c > '~') {
+                    literal.append(String.format("\\u%04x", (int) c));
+                } else {
+                    literal.append(c);
+                }
+            }
+
+            return literal.append('"').toString();
+        }
+    },
+
+    STRING_SET("Set<String>", "getStringSet", "putStringSet", "null") {
+        @Override
+        /* default */ String toLiteral(String value) {
+            throw new IllegalArgumentException("Sets can only default to null");
+        }
+    };
+
+    private final String javaType;
+    private final String getter;
+    private final String setter;
+    private final String defaultLiteral;
+
+    PreferenceType(String javaType, String getter, String setter, String defaultLiteral) {
+        this.javaType = javaType;
+        this.getter = getter;
+        this.setter = setter;
+        this.defaultLiteral = defaultLiteral;
+    }
+
+    /**
+     * Turns the default of a {@code PreferenceKey} into a Java literal of this type.
+     *
+     * @throws IllegalArgumentException If the value is not valid for this type.
+     */
+    /* default */ abstract String toLiteral(String value);
+
+    /**
+     * The type as it is written in the generated source.
+     */
+    /* default */ String getJavaType() {
+        return javaType;
+    }
+
+    /* default */ String getGetter() {
+        return getter;
+    }
+
+    /* default */ String getSetter() {
+        return setter;
+    }
+
+    /**
+     * The literal of the value that is returned if no default is given.
+     */
+    /* default */ String getDefaultLiteral() {
+        return defaultLiteral;
+    }
+}
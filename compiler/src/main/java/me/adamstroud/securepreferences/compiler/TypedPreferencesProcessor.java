@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the implementation of every interface annotated with {@code TypedPreferences}.
+ * The annotations are looked up by name, so the processor does not need the library on its
+ * class path. Problems are reported as compile errors on the offending element.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class TypedPreferencesProcessor extends AbstractProcessor {
+    private static final String TYPED_PREFERENCES = "me.adamstroud.securepreferences.TypedPreferences";
+    private static final String PREFERENCE_KEY = "me.adamstroud.securepreferences.PreferenceKey";
+    private static final String NO_DEFAULT = "\u0000";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(TYPED_PREFERENCES);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                process(element);
+            }
+        }
+
+        return true;
+    }
+
+    private void process(Element element) {
+        if (element.getKind() != ElementKind.INTERFACE) {
+            error(element, "@TypedPreferences can only be applied to interfaces");
+            return;
+        }
+
+        TypeElement type = (TypeElement) element;
+
+        if (!type.getTypeParameters().isEmpty()) {
+            error(type, "@TypedPreferences interfaces can not be generic");
+            return;
+        } else if (type.getModifiers().contains(Modifier.PRIVATE)) {
+            error(type, "@TypedPreferences interfaces can not be private");
+            return;
+        }
+
+        List<PreferenceMethod> methods = new ArrayList<>();
+        Map<String, ExecutableElement> keys = new HashMap<>();
+        boolean valid = true;
+
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+
+            PreferenceMethod preferenceMethod = toPreferenceMethod(method);
+
+            if (preferenceMethod == null) {
+                valid = false;
+            } else if (keys.containsKey(preferenceMethod.getKey())) {
+                error(method, "Key \"%s\" is already used by %s()",
+                        preferenceMethod.getKey(),
+                        keys.get(preferenceMethod.getKey()).getSimpleName());
+                valid = false;
+            } else {
+                keys.put(preferenceMethod.getKey(), method);
+                methods.add(preferenceMethod);
+            }
+        }
+
+        if (valid) {
+            write(type, methods);
+        }
+    }
+
+    /**
+     * @return The method, or null if it is not valid, in which case an error was reported.
+     */
+    private PreferenceMethod toPreferenceMethod(ExecutableElement method) {
+        AnnotationMirror preferenceKey = getAnnotation(method, PREFERENCE_KEY);
+
+        if (preferenceKey == null) {
+            error(method, "Methods of @TypedPreferences interfaces need a @PreferenceKey");
+            return null;
+        } else if (!method.getParameters().isEmpty()) {
+            error(method, "@PreferenceKey methods can not have parameters");
+            return null;
+        }
+
+        PreferenceType type = toPreferenceType(method.getReturnType());
+
+        if (type == null) {
+            error(method, "@PreferenceKey methods return int, long, float, boolean, String or Set<String>");
+            return null;
+        }
+
+        String key = (String) getValue(preferenceKey, "value");
+        String defaultValue = (String) getValue(preferenceKey, "defaultValue");
+        boolean memoize = (Boolean) getValue(preferenceKey, "memoize");
+        String defaultLiteral;
+
+        if (key.isEmpty()) {
+            error(method, "Preference keys can not be empty");
+            return null;
+        }
+
+        if (NO_DEFAULT.equals(defaultValue)) {
+            defaultLiteral = type.getDefaultLiteral();
+        } else {
+            try {
+                defaultLiteral = type.toLiteral(defaultValue);
+            } catch (IllegalArgumentException e) {
+                error(method, "Invalid default \"%s\" for %s: %s", defaultValue, type.getJavaType(), e.getMessage());
+                return null;
+            }
+        }
+
+        return new PreferenceMethod(method.getSimpleName().toString(), key, type, defaultLiteral, memoize);
+    }
+
+    private PreferenceType toPreferenceType(TypeMirror returnType) {
+        switch (returnType.getKind()) {
+            case INT:
+                return PreferenceType.INT;
+            case LONG:
+                return PreferenceType.LONG;
+            case FLOAT:
+                return PreferenceType.FLOAT;
+            case BOOLEAN:
+                return PreferenceType.BOOLEAN;
+            case DECLARED:
+                return toPreferenceType((DeclaredType) returnType);
+            default:
+                return null;
+        }
+    }
+
+    private PreferenceType toPreferenceType(DeclaredType returnType) {
+        String name = ((TypeElement) returnType.asElement()).getQualifiedName().toString();
+        List<? extends TypeMirror> typeArguments = returnType.getTypeArguments();
+
+        if ("java.lang.String".equals(name)) {
+            return PreferenceType.STRING;
+        } else if ("java.util.Set".equals(name)
+                && typeArguments.size() == 1
+                && typeArguments.get(0).getKind() == TypeKind.DECLARED
+                && "java.lang.String".equals(((TypeElement) ((DeclaredType) typeArguments.get(0)).asElement())
+                .getQualifiedName().toString())) {
+            return PreferenceType.STRING_SET;
+        }
+
+        return null;
+    }
+
+    private void write(TypeElement type, List<PreferenceMethod> methods) {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+        String qualifiedName = type.getQualifiedName().toString();
+        String interfaceName = packageName.isEmpty()
+                ? qualifiedName
+                : qualifiedName.substring(packageName.length() + 1);
+        String className = (String) getValue(getAnnotation(type, TYPED_PREFERENCES), "className");
+
+        if (className.isEmpty()) {
+            className = "Secure" + type.getSimpleName();
+        } else if (!SourceVersion.isIdentifier(className) || SourceVersion.isKeyword(className)) {
+            error(type, "\"%s\" is not a valid class name", className);
+            return;
+        }
+
+        String source = new TypedPreferencesWriter(packageName, className, interfaceName, methods).write();
+        String generatedName = packageName.isEmpty() ? className : packageName + "." + className;
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(generatedName, type);
+
+            try (Writer writer = file.openWriter()) {
+                writer.write(source);
+            }
+        } catch (IOException e) {
+            error(type, "Could not write %s: %s", generatedName, e.getMessage());
+        }
+    }
+
+    private static AnnotationMirror getAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+
+            if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+                return annotation;
+            }
+        }
+
+        return null;
+    }
+
+    private Object getValue(AnnotationMirror annotation, String name) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+                processingEnv.getElementUtils().getElementValuesWithDefaults(annotation);
+
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+
+        throw new IllegalStateException("No value " + name + " in " + annotation);
+    }
+
+    private void error(Element element, String format, Object... args) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(format, args), element);
+    }
+}
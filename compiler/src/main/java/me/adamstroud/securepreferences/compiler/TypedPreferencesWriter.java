@@ -0,0 +1,346 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.compiler;
+
+import java.util.List;
+
+/**
+ * Writes the source of the class that implements a {@code TypedPreferences} interface.
+ *
+ * <p>Getters of memoized preferences keep the value in a volatile field. Every change of the
+ * preference bumps a generation, under a lock, and a read only memoizes its value if the
+ * generation did not change while it was reading, so a value that was overwritten meanwhile
+ * is never kept. Changes are seen through a listener on the backing preferences and, for
+ * writes through the generated editor, as soon as they are committed or applied.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class TypedPreferencesWriter {
+    private static final String INDENT = "    ";
+
+    private final String packageName;
+    private final String className;
+    private final String interfaceName;
+    private final List<PreferenceMethod> methods;
+    private final boolean memoized;
+    private final StringBuilder source = new StringBuilder();
+    private int depth;
+
+    /**
+     * @param packageName The package of the interface, empty for the default package.
+     * @param interfaceName The name of the interface relative to its package.
+     */
+    /* default */ TypedPreferencesWriter(String packageName,
+                                         String className,
+                                         String interfaceName,
+                                         List<PreferenceMethod> methods) {
+        this.packageName = packageName;
+        this.className = className;
+        this.interfaceName = interfaceName;
+        this.methods = methods;
+
+        boolean anyMemoized = false;
+
+        for (PreferenceMethod method : methods) {
+            anyMemoized |= method.isMemoized();
+        }
+
+        this.memoized = anyMemoized;
+    }
+
+    /* default */ String write() {
+        line("// Generated by TypedPreferencesProcessor from %s. Do not edit.", interfaceName);
+
+        if (!packageName.isEmpty()) {
+            line("package %s;", packageName);
+        }
+
+        line();
+
+        if (memoized) {
+            line("import android.content.SharedPreferences;");
+            line();
+            line("import java.util.HashSet;");
+        }
+
+        if (memoized || usesSets()) {
+            line("import java.util.Set;");
+            line();
+        }
+
+        line("import me.adamstroud.securepreferences.SecurePreferences;");
+        line();
+        line("/**");
+        line(" * Reads and writes the preferences of {@link %s}.", interfaceName);
+        line(" */");
+        open("public final class %s implements %s {", className, interfaceName);
+
+        for (PreferenceMethod method : methods) {
+            line("public static final String %s = %s;",
+                    method.getKeyConstant(),
+                    PreferenceType.STRING.toLiteral(method.getKey()));
+        }
+
+        line();
+        line("private final SecurePreferences securePreferences;");
+
+        if (memoized) {
+            writeMemoFields();
+        }
+
+        line();
+        open("public %s(SecurePreferences securePreferences) {", className);
+        line("this.securePreferences = securePreferences;");
+
+        if (memoized) {
+            writeListener();
+        }
+
+        close();
+
+        for (PreferenceMethod method : methods) {
+            line();
+
+            if (method.isMemoized()) {
+                writeMemoizedGetter(method);
+            } else {
+                line("@Override");
+                open("public %s %s() {", method.getType().getJavaType(), method.getMethodName());
+                line("return %s;", read(method));
+                close();
+            }
+        }
+
+        if (memoized) {
+            line();
+            writeInvalidate();
+        }
+
+        line();
+        open("public Editor edit() {");
+        line("return new Editor(securePreferences.edit());");
+        close();
+        line();
+        writeEditor();
+        close();
+
+        return source.toString();
+    }
+
+    private boolean usesSets() {
+        for (PreferenceMethod method : methods) {
+            if (method.getType() == PreferenceType.STRING_SET) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void writeMemoFields() {
+        line("private final Object memoLock = new Object();");
+        line();
+        line("// SharedPreferences only keeps weak references to listeners, the field keeps this one alive");
+        line("private final SharedPreferences.OnSharedPreferenceChangeListener memoInvalidator;");
+
+        for (PreferenceMethod method : methods) {
+            if (method.isMemoized()) {
+                String prefix = method.getFieldPrefix();
+
+                line();
+                line("private volatile boolean %sMemoized;", prefix);
+                line("private volatile %s %sMemo;", method.getType().getJavaType(), prefix);
+                line("private int %sGeneration;", prefix);
+            }
+        }
+    }
+
+    private void writeListener() {
+        open("this.memoInvalidator = new SharedPreferences.OnSharedPreferenceChangeListener() {");
+        line("@Override");
+        open("public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {");
+        line("invalidate(key);");
+        close();
+        depth--;
+        line("};");
+        line();
+        line("securePreferences.registerOnSharedPreferenceChangeListener(memoInvalidator);");
+    }
+
+    private void writeMemoizedGetter(PreferenceMethod method) {
+        String prefix = method.getFieldPrefix();
+        String javaType = method.getType().getJavaType();
+
+        line("@Override");
+        open("public %s %s() {", javaType, method.getMethodName());
+        open("if (%sMemoized) {", prefix);
+        line("return %sMemo;", prefix);
+        close();
+        line();
+        line("int generation;");
+        line();
+        open("synchronized (memoLock) {");
+        line("generation = %sGeneration;", prefix);
+        close();
+        line();
+        line("%s value = %s;", javaType, read(method));
+        line();
+        open("synchronized (memoLock) {");
+        open("if (generation == %sGeneration) {", prefix);
+        line("%sMemo = value;", prefix);
+        line("%sMemoized = true;", prefix);
+        close();
+        close();
+        line();
+        line("return value;");
+        close();
+    }
+
+    private void writeInvalidate() {
+        line("/**");
+        line(" * Forgets the memoized value of a key, or of every key if it is null.");
+        line(" */");
+        open("private void invalidate(String key) {");
+        open("synchronized (memoLock) {");
+
+        boolean first = true;
+
+        for (PreferenceMethod method : methods) {
+            if (method.isMemoized()) {
+                String prefix = method.getFieldPrefix();
+
+                if (!first) {
+                    line();
+                }
+
+                open("if (key == null || %s.equals(key)) {", method.getKeyConstant());
+                line("%sGeneration++;", prefix);
+                line("%sMemoized = false;", prefix);
+                close();
+                first = false;
+            }
+        }
+
+        close();
+        close();
+    }
+
+    private void writeEditor() {
+        line("/**");
+        line(" * Writes the preferences of {@link %s}. Like any editor it is meant to be used by one", interfaceName);
+        line(" * thread.");
+        line(" */");
+        open("public final class Editor {");
+        line("private final SecurePreferences.SecureEditor editor;");
+
+        if (memoized) {
+            line("private final Set<String> changedKeys = new HashSet<>();");
+        }
+
+        line();
+        open("private Editor(SecurePreferences.SecureEditor editor) {");
+        line("this.editor = editor;");
+        close();
+
+        for (PreferenceMethod method : methods) {
+            line();
+            open("public Editor set%s(%s value) {", method.getPropertyName(), method.getType().getJavaType());
+            line("editor.%s(%s, value);", method.getType().getSetter(), method.getKeyConstant());
+            writeChanged(method);
+            line("return this;");
+            close();
+            line();
+            open("public Editor remove%s() {", method.getPropertyName());
+            line("editor.remove(%s);", method.getKeyConstant());
+            writeChanged(method);
+            line("return this;");
+            close();
+        }
+
+        line();
+        open("public boolean commit() {");
+
+        if (memoized) {
+            open("try {");
+            line("return editor.commit();");
+            depth--;
+            open("} finally {");
+            line("invalidateChanged();");
+            close();
+        } else {
+            line("return editor.commit();");
+        }
+
+        close();
+        line();
+        open("public void apply() {");
+        line("editor.apply();");
+
+        if (memoized) {
+            line("invalidateChanged();");
+        }
+
+        close();
+
+        if (memoized) {
+            line();
+            open("private void invalidateChanged() {");
+            open("for (String key : changedKeys) {");
+            line("invalidate(key);");
+            close();
+            line();
+            line("changedKeys.clear();");
+            close();
+        }
+
+        close();
+    }
+
+    private void writeChanged(PreferenceMethod method) {
+        if (method.isMemoized()) {
+            line("changedKeys.add(%s);", method.getKeyConstant());
+        }
+    }
+
+    private static String read(PreferenceMethod method) {
+        return String.format("securePreferences.%s(%s, %s)",
+                method.getType().getGetter(),
+                method.getKeyConstant(),
+                method.getDefaultLiteral());
+    }
+
+    private void open(String format, Object... args) {
+        line(format, args);
+        depth++;
+    }
+
+    private void close() {
+        depth--;
+        line("}");
+    }
+
+    private void line() {
+        source.append('\n');
+    }
+
+    private void line(String format, Object... args) {
+        for (int i = 0; i < depth; i++) {
+            source.append(INDENT);
+        }
+
+        source.append(args.length == 0 ? format : String.format(format, args)).append('\n');
+    }
+}
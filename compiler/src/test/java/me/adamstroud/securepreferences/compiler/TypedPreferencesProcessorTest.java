@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.compiler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+import me.adamstroud.securepreferences.SoftwareCryptoBackend;
+import me.adamstroud.securepreferences.benchmark.InMemorySharedPreferences;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link TypedPreferencesProcessor}. Compiles interfaces with the processor and
+ * runs the generated classes against the JVM build of the library. Runs on the JVM.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class TypedPreferencesProcessorTest {
+    private static final String SETTINGS = "package sample;\n"
+            + "\n"
+            + "import java.util.Set;\n"
+            + "\n"
+            + "import me.adamstroud.securepreferences.PreferenceKey;\n"
+            + "import me.adamstroud.securepreferences.TypedPreferences;\n"
+            + "\n"
+            + "@TypedPreferences\n"
+            + "public interface Settings {\n"
+            + "    @PreferenceKey(value = \"launch_count\", memoize = true)\n"
+            + "    int getLaunchCount();\n"
+            + "\n"
+            + "    @PreferenceKey(value = \"last_sync\", defaultValue = \"-1\")\n"
+            + "    long getLastSync();\n"
+            + "\n"
+            + "    @PreferenceKey(value = \"ratio\", defaultValue = \"1.5\")\n"
+            + "    float getRatio();\n"
+            + "\n"
+            + "    @PreferenceKey(\"enabled\")\n"
+            + "    boolean isEnabled();\n"
+            + "\n"
+            + "    @PreferenceKey(value = \"user_name\", defaultValue = \"\\\"guest\\\"\", memoize = true)\n"
+            + "    String getUserName();\n"
+            + "\n"
+            + "    @PreferenceKey(\"tags\")\n"
+            + "    Set<String> getTags();\n"
+            + "}\n";
+
+    private SecurePreferences securePreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        securePreferences = new SecurePreferences.Builder(new InMemorySharedPreferences(), new SoftwareCryptoBackend())
+                .build();
+    }
+
+    @Test
+    public void testGenerate_defaults() throws Exception {
+        Object settings = createSettings();
+
+        assertThat((Integer) invoke(settings, "getLaunchCount"), is(equalTo(0)));
+        assertThat((Long) invoke(settings, "getLastSync"), is(equalTo(-1L)));
+        assertThat((Float) invoke(settings, "getRatio"), is(equalTo(1.5f)));
+        assertThat((Boolean) invoke(settings, "isEnabled"), is(equalTo(false)));
+        assertThat((String) invoke(settings, "getUserName"), is(equalTo("\"guest\"")));
+        assertThat(invoke(settings, "getTags"), is(nullValue()));
+        assertThat((String) settings.getClass().getField("KEY_LAUNCH_COUNT").get(null), is(equalTo("launch_count")));
+    }
+
+    @Test
+    public void testGenerate_roundTrip() throws Exception {
+        Object settings = createSettings();
+        Set<String> tags = new HashSet<>(Arrays.asList("a", "b"));
+        Object editor = invoke(settings, "edit");
+
+        invoke(editor, "setLaunchCount", int.class, 3);
+        invoke(editor, "setLastSync", long.class, 42L);
+        invoke(editor, "setRatio", float.class, 0.25f);
+        invoke(editor, "setEnabled", boolean.class, true);
+        invoke(editor, "setUserName", String.class, "admin");
+        invoke(editor, "setTags", Set.class, tags);
+
+        assertThat((Boolean) invoke(editor, "commit"), is(equalTo(true)));
+        assertThat((Integer) invoke(settings, "getLaunchCount"), is(equalTo(3)));
+        assertThat((Long) invoke(settings, "getLastSync"), is(equalTo(42L)));
+        assertThat((Float) invoke(settings, "getRatio"), is(equalTo(0.25f)));
+        assertThat((Boolean) invoke(settings, "isEnabled"), is(equalTo(true)));
+        assertThat((String) invoke(settings, "getUserName"), is(equalTo("admin")));
+        assertThat(invoke(settings, "getTags"), is(equalTo((Object) tags)));
+        assertThat(securePreferences.getInt("launch_count", 0), is(equalTo(3)));
+
+        editor = invoke(settings, "edit");
+        invoke(editor, "removeUserName");
+        invoke(editor, "apply");
+
+        assertThat((String) invoke(settings, "getUserName"), is(equalTo("\"guest\"")));
+        assertFalse(securePreferences.contains("user_name"));
+    }
+
+    @Test
+    public void testGenerate_memoize() throws Exception {
+        Object settings = createSettings();
+
+        assertThat((Integer) invoke(settings, "getLaunchCount"), is(equalTo(0)));
+
+        // Written around the generated editor, seen through the listener
+        securePreferences.edit().putInt("launch_count", 1).commit();
+        assertThat((Integer) invoke(settings, "getLaunchCount"), is(equalTo(1)));
+
+        Object editor = invoke(settings, "edit");
+        invoke(editor, "setLaunchCount", int.class, 2);
+        invoke(editor, "apply");
+        assertThat((Integer) invoke(settings, "getLaunchCount"), is(equalTo(2)));
+
+        securePreferences.edit().clear().commit();
+        assertThat((Integer) invoke(settings, "getLaunchCount"), is(equalTo(0)));
+    }
+
+    @Test
+    public void testGenerate_className() throws Exception {
+        String source = "package sample;\n"
+                + "@me.adamstroud.securepreferences.TypedPreferences(className = \"Flags\")\n"
+                + "public interface FeatureFlags {\n"
+                + "    @me.adamstroud.securepreferences.PreferenceKey(\"beta\") boolean isBeta();\n"
+                + "}\n";
+        Compilation compilation = compile("sample.FeatureFlags", source);
+
+        assertTrue(compilation.diagnostics.toString(), compilation.success);
+        assertTrue(new File(compilation.outputDirectory, "sample/Flags.class").isFile());
+    }
+
+    @Test
+    public void testGenerate_invalidDefault() throws Exception {
+        assertError("@PreferenceKey(value = \"count\", defaultValue = \"many\") int getCount();",
+                "Invalid default \"many\" for int");
+    }
+
+    @Test
+    public void testGenerate_duplicateKey() throws Exception {
+        assertError("@PreferenceKey(\"count\") int getCount();\n"
+                        + "@PreferenceKey(\"count\") long getTotal();",
+                "Key \"count\" is already used");
+    }
+
+    @Test
+    public void testGenerate_missingKey() throws Exception {
+        assertError("int getCount();", "need a @PreferenceKey");
+    }
+
+    @Test
+    public void testGenerate_unsupportedType() throws Exception {
+        assertError("@PreferenceKey(\"count\") double getCount();", "@PreferenceKey methods return");
+    }
+
+    @Test
+    public void testGenerate_parameters() throws Exception {
+        assertError("@PreferenceKey(\"count\") int getCount(int offset);", "can not have parameters");
+    }
+
+    @Test
+    public void testGenerate_notInterface() throws Exception {
+        Compilation compilation = compile("sample.Broken", "package sample;\n"
+                + "@me.adamstroud.securepreferences.TypedPreferences\n"
+                + "public abstract class Broken {\n"
+                + "}\n");
+
+        assertFalse(compilation.success);
+        assertThat(compilation.diagnostics.toString(), containsString("can only be applied to interfaces"));
+    }
+
+    private Object createSettings() throws Exception {
+        Compilation compilation = compile("sample.Settings", SETTINGS);
+
+        assertTrue(compilation.diagnostics.toString(), compilation.success);
+
+        ClassLoader classLoader = new URLClassLoader(new URL[] {compilation.outputDirectory.toURI().toURL()},
+                getClass().getClassLoader());
+
+        return classLoader.loadClass("sample.SecureSettings")
+                .getConstructor(SecurePreferences.class)
+                .newInstance(securePreferences);
+    }
+
+    private static void assertError(String methods, String expectedMessage) throws Exception {
+        String source = "package sample;\n"
+                + "import me.adamstroud.securepreferences.PreferenceKey;\n"
+                + "@me.adamstroud.securepreferences.TypedPreferences\n"
+                + "public interface Broken {\n"
+                + methods + "\n"
+                + "}\n";
+        Compilation compilation = compile("sample.Broken", source);
+
+        assertFalse(compilation.success);
+        assertThat(compilation.diagnostics.toString(), containsString(expectedMessage));
+    }
+
+    private static Object invoke(Object target, String methodName) throws Exception {
+        Method method = target.getClass().getMethod(methodName);
+        method.setAccessible(true);
+        return method.invoke(target);
+    }
+
+    private static Object invoke(Object target, String methodName, Class<?> parameterType, Object argument)
+            throws Exception {
+        Method method = target.getClass().getMethod(methodName, parameterType);
+        method.setAccessible(true);
+        return method.invoke(target, argument);
+    }
+
+    private static Compilation compile(String className, String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        File outputDirectory = Files.createTempDirectory("typed-preferences").toFile();
+        List<String> options = Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-d", outputDirectory.getPath(),
+                "-s", outputDirectory.getPath());
+        JavaCompiler.CompilationTask task = compiler.getTask(null,
+                null,
+                diagnostics,
+                options,
+                null,
+                Collections.singletonList(new Source(className, source)));
+
+        task.setProcessors(Collections.singletonList(new TypedPreferencesProcessor()));
+
+        boolean success = task.call();
+        StringBuilder messages = new StringBuilder();
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            messages.append(diagnostic.getMessage(Locale.US)).append('\n');
+        }
+
+        return new Compilation(success, messages.toString(), outputDirectory);
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String source;
+
+        private Source(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    private static class Compilation {
+        private final boolean success;
+        private final String diagnostics;
+        private final File outputDirectory;
+
+        private Compilation(boolean success, String diagnostics, File outputDirectory) {
+            this.success = success;
+            this.diagnostics = diagnostics;
+            this.outputDirectory = outputDirectory;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link AsyncSecurePreferences}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@RunWith(AndroidJUnit4.class)
+public class AsyncSecurePreferencesTest {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private SharedPreferences sharedPreferences;
+    private ExecutorService executor;
+    private AsyncSecurePreferences asyncSecurePreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+
+        executor = AsyncSecurePreferences.createExecutor(2, 16, new ThreadPoolExecutor.AbortPolicy());
+        asyncSecurePreferences = new AsyncSecurePreferences(new SecurePreferences(sharedPreferences, appContext),
+                executor,
+                DIRECT_EXECUTOR);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+    }
+
+    @Test
+    public void testCommitAsync_ordering() throws Exception {
+        final String key = "stringKey";
+
+        SecurePreferences.SecureEditor editor = asyncSecurePreferences.edit();
+        editor.putString(key, "value");
+        editor.commitAsync();
+
+        // Started after commitAsync() returned, so it has to see the value
+        assertThat(asyncSecurePreferences.getStringAsync(key, null, null).get(), is(equalTo("value")));
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        final String key = "intKey";
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<Boolean> committed = new AtomicReference<>();
+        final AtomicReference<Integer> read = new AtomicReference<>();
+
+        SecurePreferences.SecureEditor editor = asyncSecurePreferences.edit();
+        editor.putInt(key, 42);
+
+        asyncSecurePreferences.commitAsync(editor,
+                new AsyncSecurePreferences.Callback<Boolean>() {
+                    @Override
+                    public void onSuccess(Boolean result) {
+                        committed.set(result);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        latch.countDown();
+                    }
+                });
+
+        asyncSecurePreferences.getIntAsync(key, -1, new AsyncSecurePreferences.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                read.set(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                latch.countDown();
+            }
+        });
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(committed.get(), is(true));
+        assertThat(read.get(), is(equalTo(42)));
+    }
+
+    @Test
+    public void testCallbacks_failure() throws Exception {
+        final String key = "stringKey";
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        asyncSecurePreferences.edit().putString(key, "value").commit();
+
+        // Not a SecurePreferencesException, but the callback still has to hear about it
+        asyncSecurePreferences.getIntAsync(key, -1, new AsyncSecurePreferences.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+                latch.countDown();
+            }
+        });
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(failure.get() instanceof ClassCastException, is(true));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the per-operation cost of resolving the keystore entry and cipher on every call
+ * against the cached handles kept by {@link KeyHandleManager}. Results are written to logcat.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyHandleManagerBenchmark {
+    private static final String TAG = KeyHandleManagerBenchmark.class.getSimpleName();
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String ALIAS = "securePreferenceKey";
+    private static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+    private static final String CIPHER_PROVIDER = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+            ? "AndroidKeyStoreBCWorkaround"
+            : "AndroidOpenSSL";
+    private static final int WARM_UP_ITERATIONS = 10;
+    private static final int ITERATIONS = 100;
+    private static final byte[] PLAINTEXT = "benchmark".getBytes();
+
+    private KeyHandleManager keyHandleManager;
+    private byte[] ciphertext;
+
+    @Before
+    public void setUp() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+
+        // Creates the key pair if it does not exist yet
+        new SecurePreferences(PreferenceManager.getDefaultSharedPreferences(appContext), appContext);
+
+        keyHandleManager = new KeyHandleManager(KEYSTORE_PROVIDER,
+                ALIAS,
+                CIPHER_TRANSFORMATION,
+                CIPHER_PROVIDER);
+        ciphertext = keyHandleManager.encrypt(PLAINTEXT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keyStore.load(null);
+        keyStore.deleteEntry(ALIAS);
+    }
+
+    @Test
+    public void benchmarkDecrypt() throws Exception {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            uncachedDecrypt(ciphertext);
+            keyHandleManager.decrypt(ciphertext);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            uncachedDecrypt(ciphertext);
+        }
+
+        long uncachedNanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+        start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            keyHandleManager.decrypt(ciphertext);
+        }
+
+        long cachedNanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        Log.i(TAG, "decrypt: uncached=" + uncachedNanos + "ns/op, cached=" + cachedNanos + "ns/op");
+        assertThat(keyHandleManager.decrypt(ciphertext), is(equalTo(PLAINTEXT)));
+    }
+
+    @Test
+    public void benchmarkEncrypt() throws Exception {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            uncachedEncrypt(PLAINTEXT);
+            keyHandleManager.encrypt(PLAINTEXT);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            uncachedEncrypt(PLAINTEXT);
+        }
+
+        long uncachedNanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+        start = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            keyHandleManager.encrypt(PLAINTEXT);
+        }
+
+        long cachedNanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        Log.i(TAG, "encrypt: uncached=" + uncachedNanos + "ns/op, cached=" + cachedNanos + "ns/op");
+        assertThat(keyHandleManager.decrypt(keyHandleManager.encrypt(PLAINTEXT)), is(equalTo(PLAINTEXT)));
+    }
+
+    /**
+     * The lookup that was done for every value before {@link KeyHandleManager} existed.
+     */
+    private static byte[] uncachedDecrypt(byte[] ciphertext) throws Exception {
+        KeyStore keystore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keystore.load(null);
+        KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keystore.getEntry(ALIAS, null);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION, CIPHER_PROVIDER);
+        cipher.init(Cipher.DECRYPT_MODE, entry.getPrivateKey());
+
+        return cipher.doFinal(ciphertext);
+    }
+
+    private static byte[] uncachedEncrypt(byte[] plaintext) throws Exception {
+        KeyStore keystore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keystore.load(null);
+        KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keystore.getEntry(ALIAS, null);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION, CIPHER_PROVIDER);
+        cipher.init(Cipher.ENCRYPT_MODE, entry.getCertificate().getPublicKey());
+
+        return cipher.doFinal(plaintext);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link KeyRotation}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyRotationTest {
+    private static final int VALUE_COUNT = 40;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private Context appContext;
+    private SharedPreferences sharedPreferences;
+    private SoftwareCryptoBackend.Factory cryptoBackendFactory;
+    private SecurePreferences securePreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        appContext = InstrumentationRegistry.getTargetContext();
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+
+        cryptoBackendFactory = new SoftwareCryptoBackend.Factory();
+        securePreferences = build();
+
+        SharedPreferences.Editor editor = securePreferences.edit();
+
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            editor.putString("key" + i, "value" + i);
+        }
+
+        assertThat(editor.commit(), is(true));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+    }
+
+    @Test
+    public void testRotate() throws Exception {
+        KeyRotation keyRotation = new KeyRotation(securePreferences, 4, 1000);
+        Future<Void> rotation = keyRotation.rotate();
+
+        while (!rotation.isDone()) {
+            assertValues(securePreferences);
+        }
+
+        rotation.get();
+        assertThat(keyRotation.isInProgress(), is(false));
+        assertThat(sharedPreferences.contains(KeyRing.getDataKeyPreference(0)), is(false));
+        assertValues(securePreferences);
+        assertKeyVersion(1);
+
+        // Written after the rotation, and readable by a new instance
+        securePreferences.edit().putString("key0", "value0").commit();
+        assertValues(build());
+        assertKeyVersion(1);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        assertThat(securePreferences.startKeyRotation(), is(true));
+        assertThat(securePreferences.startKeyRotation(), is(false));
+        assertThat(securePreferences.rotateNextBatch(10), is(equalTo(10)));
+
+        // As if the process died after the first batch
+        SecurePreferences restarted = build();
+        KeyRotation keyRotation = new KeyRotation(restarted, 10, 1000);
+        assertThat(keyRotation.isInProgress(), is(true));
+        assertValues(restarted);
+
+        keyRotation.resume().get();
+        assertThat(keyRotation.isInProgress(), is(false));
+        assertValues(restarted);
+        assertKeyVersion(1);
+    }
+
+    @Test
+    public void testUnknownVersion() throws Exception {
+        String ciphertext = sharedPreferences.getString("key0", null);
+        int flags = PreferenceCipher.FLAG_AES_GCM | PreferenceCipher.FLAG_TYPED;
+
+        // A version that was never created, which must not generate a key
+        sharedPreferences.edit()
+                .putString("key0", (flags | PreferenceCipher.FLAG_KEY_VERSION) + ":7:"
+                        + ciphertext.substring(ciphertext.indexOf(':') + 1))
+                .commit();
+
+        thrown.expect(SecurePreferencesException.class);
+        thrown.expectMessage("Unknown key version 7");
+        securePreferences.getString("key0", null);
+    }
+
+    private SecurePreferences build() {
+        return new SecurePreferences.Builder(sharedPreferences, appContext)
+                .setCryptoBackendFactory(cryptoBackendFactory)
+                .setMode(SecurePreferences.Mode.ENVELOPE)
+                .build();
+    }
+
+    private static void assertValues(SecurePreferences securePreferences) {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            assertThat(securePreferences.getString("key" + i, null), is(equalTo("value" + i)));
+        }
+    }
+
+    private void assertKeyVersion(int version) {
+        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            if (!KeyRing.isReservedKey(entry.getKey())) {
+                assertThat((String) entry.getValue(),
+                        startsWith((PreferenceCipher.FLAG_AES_GCM | PreferenceCipher.FLAG_TYPED
+                                | PreferenceCipher.FLAG_KEY_VERSION) + ":" + version + ":"));
+            }
+        }
+    }
+}
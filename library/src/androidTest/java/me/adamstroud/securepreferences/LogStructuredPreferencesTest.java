@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LogStructuredPreferences}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogStructuredPreferencesTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        file = new File(appContext.getCacheDir(), "preferences.log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        final Set<String> values = new HashSet<>(Arrays.asList("a", "b"));
+        LogStructuredPreferences preferences = new LogStructuredPreferences(file);
+
+        assertThat(preferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .putStringSet("stringSetKey", values)
+                .putString("base64Key", "2:AAECAwQFBgcICQ==\n")
+                .putString("versionedKey", "10:3:AAECAwQFBgcICQ==")
+                .commit(), is(true));
+        assertThat(preferences.edit().remove("intKey").commit(), is(true));
+
+        LogStructuredPreferences reloaded = new LogStructuredPreferences(file);
+
+        assertThat(reloaded.getAll(), is(equalTo((Object) preferences.getAll())));
+        assertThat(reloaded.getString("base64Key", null), is(equalTo("2:AAECAwQFBgcICQ==\n")));
+        assertThat(reloaded.getString("versionedKey", null), is(equalTo("10:3:AAECAwQFBgcICQ==")));
+        assertThat(reloaded.contains("intKey"), is(false));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        LogStructuredPreferences preferences = new LogStructuredPreferences(file);
+        assertThat(preferences.edit().putLong("longKey", Long.MAX_VALUE).commit(), is(true));
+        long length = file.length();
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            // A record header that promises more bytes than were written
+            out.write(new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 5});
+        }
+
+        LogStructuredPreferences reloaded = new LogStructuredPreferences(file);
+
+        assertThat(reloaded.getLong("longKey", 0), is(equalTo(Long.MAX_VALUE)));
+        assertThat(file.length(), is(equalTo(length)));
+        assertThat(reloaded.edit().putInt("intKey", 1).commit(), is(true));
+        assertThat(new LogStructuredPreferences(file).getInt("intKey", 0), is(equalTo(1)));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        LogStructuredPreferences preferences = new LogStructuredPreferences(file, 0.5f, Long.MAX_VALUE);
+
+        for (int i = 0; i < 1000; i++) {
+            preferences.edit().putInt("counterKey", i).apply();
+        }
+
+        long length = preferences.getLogLength();
+        preferences.compact();
+
+        assertTrue(preferences.getLogLength() < length / 100);
+        assertThat(preferences.edit().putBoolean("booleanKey", true).commit(), is(true));
+
+        LogStructuredPreferences reloaded = new LogStructuredPreferences(file);
+        assertThat(reloaded.getInt("counterKey", -1), is(equalTo(999)));
+        assertThat(reloaded.getBoolean("booleanKey", false), is(true));
+    }
+
+    @Test
+    public void testSecurePreferences() throws Exception {
+        SoftwareCryptoBackend backend = new SoftwareCryptoBackend();
+        SecurePreferences securePreferences = new SecurePreferences.Builder(new LogStructuredPreferences(file), backend)
+                .setMode(SecurePreferences.Mode.ENVELOPE)
+                .build();
+
+        securePreferences.edit().putString("stringKey", "value").commit();
+
+        SecurePreferences reloaded = new SecurePreferences.Builder(new LogStructuredPreferences(file), backend)
+                .build();
+        assertThat(reloaded.getString("stringKey", null), is(equalTo("value")));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link PlaintextMigration}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaintextMigrationTest {
+    private static final String SOURCE_NAME = "plaintextMigrationTest";
+    private static final int STRING_COUNT = 100;
+
+    private SharedPreferences source;
+    private SharedPreferences sharedPreferences;
+    private SecurePreferences securePreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        source = appContext.getSharedPreferences(SOURCE_NAME, Context.MODE_PRIVATE);
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
+        assertThat(source.edit().clear().commit(), is(true));
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+
+        securePreferences = new SecurePreferences.Builder(sharedPreferences, new SoftwareCryptoBackend())
+                .setMode(SecurePreferences.Mode.ENVELOPE)
+                .build();
+
+        SharedPreferences.Editor editor = source.edit()
+                .putInt("intKey", 42)
+                .putLong("longKey", Long.MAX_VALUE)
+                .putFloat("floatKey", 1.5f)
+                .putBoolean("booleanKey", true)
+                .putStringSet("stringSetKey", new HashSet<>(Arrays.asList("a", "b")));
+
+        for (int i = 0; i < STRING_COUNT; i++) {
+            editor.putString("stringKey" + i, "value" + i);
+        }
+
+        assertThat(editor.commit(), is(true));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertThat(source.edit().clear().commit(), is(true));
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        final AtomicInteger progress = new AtomicInteger();
+        PlaintextMigration migration = new PlaintextMigration.Builder(source, securePreferences)
+                .setBatchSize(8)
+                .setDeleteSource(true)
+                .setProgressListener(new PlaintextMigration.ProgressListener() {
+                    @Override
+                    public void onProgress(int migratedCount, int totalCount) {
+                        assertThat(totalCount, is(equalTo(STRING_COUNT + 5)));
+                        progress.set(migratedCount);
+                    }
+                })
+                .build();
+
+        assertThat(migration.migrate(), is(equalTo(STRING_COUNT + 5)));
+        assertThat(progress.get(), is(equalTo(STRING_COUNT + 5)));
+        assertThat(source.getAll().isEmpty(), is(true));
+        assertValues();
+    }
+
+    @Test
+    public void testMigrate_resume() throws Exception {
+        // As if the migration was interrupted after the keys up to stringKey5
+        assertThat(new PlaintextMigration.Builder(source, securePreferences).build().migrate(),
+                is(equalTo(STRING_COUNT + 5)));
+        assertThat(source.edit().putString(PlaintextMigration.CHECKPOINT_PREFERENCE, "stringKey5").commit(),
+                is(true));
+
+        // The 54 string keys that sort after stringKey5, and stringSetKey
+        assertThat(new PlaintextMigration.Builder(source, securePreferences).build().migrate(),
+                is(equalTo(55)));
+        assertThat(source.contains(PlaintextMigration.CHECKPOINT_PREFERENCE), is(false));
+        assertValues();
+    }
+
+    private void assertValues() {
+        Set<String> stringSet = new HashSet<>(Arrays.asList("a", "b"));
+
+        assertThat(securePreferences.getInt("intKey", 0), is(equalTo(42)));
+        assertThat(securePreferences.getLong("longKey", 0), is(equalTo(Long.MAX_VALUE)));
+        assertThat(securePreferences.getFloat("floatKey", 0), is(equalTo(1.5f)));
+        assertThat(securePreferences.getBoolean("booleanKey", false), is(true));
+        assertThat(securePreferences.getStringSet("stringSetKey", null), is(equalTo(stringSet)));
+
+        for (int i = 0; i < STRING_COUNT; i++) {
+            assertThat(securePreferences.getString("stringKey" + i, null), is(equalTo("value" + i)));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link SecureBlobPreferences}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecureBlobPreferencesTest {
+    private Context context;
+    private SharedPreferences sharedPreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getTargetContext();
+        sharedPreferences = context.getSharedPreferences("blobTest", Context.MODE_PRIVATE);
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertThat(sharedPreferences.edit().clear().commit(), is(true));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Set<String> values = new HashSet<>(Arrays.asList("first", "second"));
+        SecureBlobPreferences blobPreferences = new SecureBlobPreferences(sharedPreferences, context);
+
+        assertThat(blobPreferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .putLong("longKey", Long.MAX_VALUE)
+                .putFloat("floatKey", 1.5f)
+                .putBoolean("booleanKey", true)
+                .putStringSet("stringSetKey", values)
+                .commit(), is(true));
+
+        // A single encrypted entry next to the wrapped data key
+        assertThat(sharedPreferences.getAll().size(), is(equalTo(2)));
+
+        SecureBlobPreferences reloaded = new SecureBlobPreferences(sharedPreferences, context);
+
+        assertThat(reloaded.getString("stringKey", null), is(equalTo("value")));
+        assertThat(reloaded.getInt("intKey", -1), is(equalTo(42)));
+        assertThat(reloaded.getLong("longKey", -1), is(equalTo(Long.MAX_VALUE)));
+        assertThat(reloaded.getFloat("floatKey", -1), is(equalTo(1.5f)));
+        assertThat(reloaded.getBoolean("booleanKey", false), is(true));
+        assertThat(reloaded.getStringSet("stringSetKey", null), is(equalTo(values)));
+        assertThat(reloaded.getAll().size(), is(equalTo(6)));
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        SecureBlobPreferences blobPreferences = new SecureBlobPreferences(sharedPreferences, context);
+
+        for (int i = 0; i < 10; i++) {
+            blobPreferences.edit().putInt("intKey", i).apply();
+        }
+
+        assertThat(blobPreferences.getInt("intKey", -1), is(equalTo(9)));
+        // A commit without changes waits for pending applies to be stored
+        assertThat(blobPreferences.edit().commit(), is(true));
+        assertThat(new SecureBlobPreferences(sharedPreferences, context).getInt("intKey", -1), is(equalTo(9)));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        SecureBlobPreferences blobPreferences = new SecureBlobPreferences(sharedPreferences, context);
+
+        blobPreferences.edit().putBoolean("before", true).commit();
+        blobPreferences.edit().clear().putBoolean("after", true).commit();
+
+        assertThat(blobPreferences.contains("before"), is(false));
+        assertThat(new SecureBlobPreferences(sharedPreferences, context).getBoolean("after", false), is(true));
+    }
+
+    @Test
+    public void testListener() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        SecureBlobPreferences blobPreferences = new SecureBlobPreferences(sharedPreferences, context);
+        SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        if ("stringKey".equals(key)) {
+                            latch.countDown();
+                        }
+                    }
+                };
+
+        blobPreferences.registerOnSharedPreferenceChangeListener(listener);
+        blobPreferences.edit().putString("stringKey", "value").apply();
+
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        blobPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+}
@@ -15,11 +15,13 @@
  */
 package me.adamstroud.securepreferences;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
 import android.util.Log;
 
 import org.junit.After;
@@ -30,20 +32,36 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.security.KeyStore;
 import java.security.Provider;
 import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import javax.crypto.Cipher;
+
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
-import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -55,6 +73,8 @@ import static org.junit.Assert.assertThat;
 public class SecurePreferencesTest {
     private static final String TAG = SecurePreferencesTest.class.getSimpleName();
     private static final String ALIAS = "testKey";
+    private static final String ENVELOPE_PREFIX =
+            (PreferenceCipher.FLAG_AES_GCM | PreferenceCipher.FLAG_TYPED) + ":";
 
     private KeyStore keyStore;
     private SharedPreferences sharedPreferences;
@@ -180,14 +200,39 @@ public class SecurePreferencesTest {
 
         assertThat(securePreferences.getStringSet(key, null), is(equalTo(values)));
 
-        Set<String> actual = sharedPreferences.getStringSet(key, null);
-        assertThat(actual.size(), is(equalTo(values.size())));
+        // The whole set is stored as a single ciphertext
+        String actual = sharedPreferences.getString(key, null);
 
         for (String value : values) {
-            assertThat(actual, not(hasItem(value)));
+            assertThat(actual, not(containsString(value)));
         }
     }
 
+    @Test
+    public void testStringSet_legacy() throws Exception {
+        final String key = "stringSetKey";
+        final Set<String> values = new HashSet<>(Arrays.asList("String1", "String2"));
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyStore.getCertificate("securePreferenceKey").getPublicKey());
+        Set<String> legacyValues = new HashSet<>();
+
+        // The format written before sets were stored as a single ciphertext
+        for (String value : values) {
+            legacyValues.add(Base64.encodeToString(cipher.doFinal(value.getBytes()), Base64.DEFAULT));
+        }
+
+        sharedPreferences.edit().putStringSet(key, legacyValues).commit();
+
+        assertThat(securePreferences.getStringSet(key, null), is(equalTo(values)));
+        @SuppressWarnings("unchecked")
+        Set<String> batchValues = (Set<String>) securePreferences.getBatch(Collections.singleton(key)).get(key);
+        assertThat(batchValues, is(equalTo(values)));
+
+        securePreferences.edit().putStringSet(key, values).commit();
+        assertThat(sharedPreferences.getString(key, null), is(notNullValue()));
+        assertThat(securePreferences.getStringSet(key, null), is(equalTo(values)));
+    }
+
     @Test
     public void testStringSet_edit() throws Exception {
         thrown.expect(UnsupportedOperationException.class);
@@ -203,6 +248,37 @@ public class SecurePreferencesTest {
         securePreferences.getStringSet(key, null).clear();
     }
 
+    @Test
+    public void testStream() throws Exception {
+        final String key = "streamKey";
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        File directory = new File(appContext.getCacheDir(), "streams");
+        SecurePreferences streamPreferences = new SecurePreferences.Builder(sharedPreferences, appContext)
+                .setStreamDirectory(directory)
+                .build();
+        byte[] value = new byte[100 * 1024];
+        new Random().nextBytes(value);
+
+        streamPreferences.edit().putStream(key, new ByteArrayInputStream(value)).commit();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+
+        try (InputStream in = streamPreferences.openStream(key)) {
+            while ((count = in.read(buffer)) != -1) {
+                actual.write(buffer, 0, count);
+            }
+        }
+
+        assertThat(actual.toByteArray(), is(equalTo(value)));
+        assertThat(streamPreferences.getAll().containsKey(key), is(false));
+
+        streamPreferences.edit().remove(key).commit();
+        assertThat(streamPreferences.openStream(key), is(nullValue()));
+        assertThat(directory.list().length, is(equalTo(0)));
+    }
+
     @Test
     public void testGetAll() throws Exception {
         final String stringKey = "stringKey";
@@ -243,4 +319,555 @@ public class SecurePreferencesTest {
         securePreferences.edit().putLong("key", Long.MAX_VALUE).commit();
         securePreferences.getAll().clear();
     }
+
+    @Test
+    public void testEnvelope() throws Exception {
+        final String key = "stringKey";
+        final String value = "value";
+        SecurePreferences envelopePreferences = new SecurePreferences(sharedPreferences,
+                InstrumentationRegistry.getTargetContext(),
+                SecurePreferences.Mode.ENVELOPE);
+
+        envelopePreferences.edit().putString(key, value).commit();
+
+        assertThat(envelopePreferences.getString(key, null), is(equalTo(value)));
+        assertThat(securePreferences.getString(key, null), is(equalTo(value)));
+        assertThat(sharedPreferences.getString(key, null), startsWith(ENVELOPE_PREFIX));
+        assertThat(envelopePreferences.getAll().size(), is(equalTo(1)));
+        assertThat(envelopePreferences.contains(EnvelopeCipher.DATA_KEY_PREFERENCE), is(false));
+    }
+
+    @Test
+    public void testEnvelope_longValue() throws Exception {
+        final String key = "stringKey";
+        final StringBuilder value = new StringBuilder();
+        SecurePreferences envelopePreferences = new SecurePreferences(sharedPreferences,
+                InstrumentationRegistry.getTargetContext(),
+                SecurePreferences.Mode.ENVELOPE);
+
+        for (int i = 0; i < 1024; i++) {
+            value.append(i % 10);
+        }
+
+        envelopePreferences.edit().putString(key, value.toString()).commit();
+
+        assertThat(envelopePreferences.getString(key, null), is(equalTo(value.toString())));
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        final String key = "stringKey";
+        final StringBuilder value = new StringBuilder();
+        SecurePreferences compressedPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setMode(SecurePreferences.Mode.ENVELOPE)
+                .setCompressionThreshold(256)
+                .build();
+
+        for (int i = 0; i < 1024; i++) {
+            value.append(i % 10);
+        }
+
+        compressedPreferences.edit().putString(key, value.toString()).putString("shortKey", "value").commit();
+
+        String ciphertext = sharedPreferences.getString(key, null);
+        int flags = Integer.parseInt(ciphertext.substring(0, ciphertext.indexOf(':')));
+
+        assertThat(flags & PreferenceCipher.FLAG_DEFLATE, is(equalTo(PreferenceCipher.FLAG_DEFLATE)));
+        assertThat(ciphertext.length() < value.length(), is(true));
+        assertThat(ciphertext, not(containsString("\n")));
+        assertThat(sharedPreferences.getString("shortKey", null), startsWith(ENVELOPE_PREFIX));
+
+        // Reads do not depend on the threshold
+        assertThat(compressedPreferences.getString(key, null), is(equalTo(value.toString())));
+        assertThat(securePreferences.getString(key, null), is(equalTo(value.toString())));
+    }
+
+    @Test
+    public void testEnvelope_legacyUpgrade() throws Exception {
+        final String key = "intKey";
+        securePreferences.edit().putInt(key, Integer.MAX_VALUE).commit();
+
+        SecurePreferences envelopePreferences = new SecurePreferences(sharedPreferences,
+                InstrumentationRegistry.getTargetContext(),
+                SecurePreferences.Mode.ENVELOPE);
+
+        assertThat(envelopePreferences.getInt(key, -1), is(equalTo(Integer.MAX_VALUE)));
+        assertThat(sharedPreferences.getString(key, null), startsWith(PreferenceCipher.FLAG_TYPED + ":"));
+
+        envelopePreferences.edit().putInt(key, Integer.MIN_VALUE).commit();
+
+        assertThat(envelopePreferences.getInt(key, -1), is(equalTo(Integer.MIN_VALUE)));
+        assertThat(sharedPreferences.getString(key, null), startsWith(ENVELOPE_PREFIX));
+    }
+
+    @Test
+    public void testEnvelope_clear() throws Exception {
+        SecurePreferences envelopePreferences = new SecurePreferences(sharedPreferences,
+                InstrumentationRegistry.getTargetContext(),
+                SecurePreferences.Mode.ENVELOPE);
+
+        envelopePreferences.edit().putBoolean("before", true).commit();
+        envelopePreferences.edit().clear().putBoolean("after", true).commit();
+
+        assertThat(envelopePreferences.contains("before"), is(false));
+        assertThat(envelopePreferences.getBoolean("after", false), is(true));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        final String key = "stringKey";
+        SecurePreferences cachedPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setCache(16, 4096)
+                .build();
+
+        cachedPreferences.edit().putString(key, "first").commit();
+        assertThat(cachedPreferences.getString(key, null), is(equalTo("first")));
+        assertThat(cachedPreferences.getString(key, null), is(equalTo("first")));
+
+        // Written through a different instance, so only the change listener sees it
+        securePreferences.edit().putString(key, "second").commit();
+        assertThat(cachedPreferences.getString(key, null), is(equalTo("second")));
+
+        cachedPreferences.edit().remove(key).commit();
+        assertThat(cachedPreferences.getString(key, null), is(nullValue()));
+    }
+
+    @Test
+    public void testCache_trimMemory() throws Exception {
+        SecurePreferences cachedPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setCache(1, 4096)
+                .build();
+
+        cachedPreferences.edit().putInt("first", 1).putInt("second", 2).commit();
+
+        assertThat(cachedPreferences.getInt("first", -1), is(equalTo(1)));
+        assertThat(cachedPreferences.getInt("second", -1), is(equalTo(2)));
+
+        cachedPreferences.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertThat(cachedPreferences.getInt("first", -1), is(equalTo(1)));
+        assertThat(cachedPreferences.getInt("second", -1), is(equalTo(2)));
+    }
+
+    @Test
+    public void testGetAll_stringSet() throws Exception {
+        final String key = "stringSetKey";
+        final Set<String> values = new HashSet<>();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(values.add("String" + (i + 1)), is(true));
+        }
+
+        securePreferences.edit().putStringSet(key, values).putString("stringKey", "value").commit();
+
+        Map<String, byte[]> decryptedValues = securePreferences.getAll();
+        Map<String, ?> batch = securePreferences.getBatch(Arrays.asList(key, "stringKey"));
+
+        assertThat(decryptedValues.containsKey(key), is(false));
+        assertThat(new String(decryptedValues.get("stringKey")), is(equalTo("value")));
+        @SuppressWarnings("unchecked")
+        Set<String> batchValues = (Set<String>) batch.get(key);
+        assertThat(batchValues, is(equalTo(values)));
+        assertThat(new String((byte[]) batch.get("stringKey")), is(equalTo("value")));
+    }
+
+    @Test
+    public void testGetAll_parallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SecurePreferences parallelPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setDecryptExecutor(executor)
+                .build();
+        SharedPreferences.Editor editor = securePreferences.edit();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                editor.putInt("intKey" + i, i);
+            }
+
+            editor.putStringSet("stringSetKey", Collections.singleton("value"));
+            editor.commit();
+
+            Map<String, byte[]> serial = securePreferences.getAll();
+            Map<String, byte[]> parallel = parallelPreferences.getAll();
+
+            assertThat(parallel.keySet(), is(equalTo(serial.keySet())));
+
+            for (int i = 0; i < 100; i++) {
+                String key = "intKey" + i;
+                assertThat(Arrays.equals(parallel.get(key), serial.get(key)), is(true));
+            }
+
+            assertThat(parallelPreferences.getBatch(Collections.singleton("stringSetKey")),
+                    is(equalTo(securePreferences.getBatch(Collections.singleton("stringSetKey")))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetBatch() throws Exception {
+        securePreferences.edit()
+                .putString("first", "firstValue")
+                .putString("second", "secondValue")
+                .putString("third", "thirdValue")
+                .commit();
+
+        Map<String, ?> batch = securePreferences.getBatch(Arrays.asList("first", "third", "missing"));
+
+        assertThat(batch.size(), is(equalTo(2)));
+        assertThat(new String((byte[]) batch.get("first")), is(equalTo("firstValue")));
+        assertThat(new String((byte[]) batch.get("third")), is(equalTo("thirdValue")));
+    }
+
+    @Test
+    public void testGetBytes() throws Exception {
+        SecurePreferences envelopePreferences = new SecurePreferences(sharedPreferences,
+                InstrumentationRegistry.getTargetContext(),
+                SecurePreferences.Mode.ENVELOPE);
+        byte[] dst = new byte[16];
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(16);
+
+        envelopePreferences.edit()
+                .putString("stringKey", "h\u00e9llo")
+                .putInt("intKey", 0x01020304)
+                .commit();
+
+        assertThat(envelopePreferences.getBytes("stringKey", dst, 2), is(equalTo(6)));
+        assertThat(new String(dst, 2, 6, "UTF-8"), is(equalTo("h\u00e9llo")));
+        assertThat(envelopePreferences.getInto("intKey", directBuffer), is(equalTo(4)));
+        assertThat(directBuffer.getInt(0), is(equalTo(0x01020304)));
+        assertThat(envelopePreferences.getBytes("missing", dst, 0), is(equalTo(-1)));
+
+        // RSA values take the allocating path
+        securePreferences.edit().putString("rsaKey", "value").commit();
+        assertThat(securePreferences.getBytes("rsaKey", dst, 0), is(equalTo(5)));
+        assertThat(new String(dst, 0, 5, "UTF-8"), is(equalTo("value")));
+
+        thrown.expect(IndexOutOfBoundsException.class);
+        envelopePreferences.getBytes("stringKey", dst, 12);
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        final String key = "stringKey";
+
+        securePreferences.edit().putString(key, "value").apply();
+
+        // Visible right away, even though it may not have been encrypted yet
+        assertThat(securePreferences.getString(key, null), is(equalTo("value")));
+        assertThat(securePreferences.contains(key), is(true));
+
+        securePreferences.edit().remove(key).apply();
+
+        assertThat(securePreferences.contains(key), is(false));
+
+        // A commit is only written after every earlier apply
+        assertThat(securePreferences.edit().putString("otherKey", "value").commit(), is(true));
+        assertThat(sharedPreferences.contains(key), is(false));
+    }
+
+    @Test
+    public void testApply_clear() throws Exception {
+        securePreferences.edit().putInt("first", 1).commit();
+        securePreferences.edit().clear().putInt("second", 2).apply();
+
+        assertThat(securePreferences.contains("first"), is(false));
+        assertThat(securePreferences.getInt("second", -1), is(equalTo(2)));
+        assertThat(securePreferences.getAll().keySet(), is(equalTo(Collections.singleton("second"))));
+    }
+
+    @Test
+    public void testChangeListener() throws Exception {
+        final BlockingQueue<Map<String, ?>> changes = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        SecurePreferences.OnSecurePreferenceChangeListener listener =
+                new SecurePreferences.OnSecurePreferenceChangeListener() {
+                    @Override
+                    public void onSecurePreferencesChanged(SecurePreferences securePreferences,
+                                                           Map<String, ?> changedValues,
+                                                           boolean cleared) {
+                        changes.add(changedValues);
+                    }
+                };
+
+        securePreferences.registerOnSecurePreferenceChangeListener(listener, executor);
+        securePreferences.edit().putString("stringKey", "value").putInt("intKey", 42).commit();
+        securePreferences.edit().remove("stringKey").apply();
+
+        // One call for every editor, with the values already decrypted
+        Map<String, ?> first = changes.poll(10, TimeUnit.SECONDS);
+        assertThat(first.size(), is(equalTo(2)));
+        assertThat((String) first.get("stringKey"), is(equalTo("value")));
+        assertThat((Integer) first.get("intKey"), is(equalTo(42)));
+
+        Map<String, ?> second = changes.poll(10, TimeUnit.SECONDS);
+        assertThat(second.containsKey("stringKey"), is(true));
+        assertThat(second.get("stringKey"), is(nullValue()));
+
+        securePreferences.unregisterOnSecurePreferenceChangeListener(listener);
+        securePreferences.edit().putInt("intKey", 1).commit();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+        assertThat(changes.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testEditor_deferred() throws Exception {
+        final String key = "stringKey";
+        SharedPreferences.Editor editor = securePreferences.edit()
+                .putString(key, "first")
+                .putString(key, "second");
+
+        // Nothing is written before commit
+        assertThat(sharedPreferences.contains(key), is(false));
+        assertThat(editor.commit(), is(true));
+        assertThat(securePreferences.getString(key, null), is(equalTo("second")));
+
+        securePreferences.edit().putString(key, "discarded");
+        assertThat(securePreferences.getString(key, null), is(equalTo("second")));
+    }
+
+    @Test
+    public void testBuildAsync() throws Exception {
+        final String key = "stringKey";
+        SecurePreferences asyncPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setReadyTimeout(10, TimeUnit.SECONDS)
+                .buildAsync();
+
+        // Writes are queued behind key initialization and visible right away
+        asyncPreferences.edit().putString(key, "value").apply();
+        assertThat(asyncPreferences.getString(key, null), is(equalTo("value")));
+
+        asyncPreferences.getReadyFuture().get(10, TimeUnit.SECONDS);
+
+        assertThat(asyncPreferences.isReady(), is(true));
+        assertThat(asyncPreferences.edit().putInt("intKey", 1).commit(), is(true));
+        assertThat(asyncPreferences.getInt("intKey", -1), is(equalTo(1)));
+    }
+
+    @Test
+    public void testBuildAsync_failFast() throws Exception {
+        SecurePreferences asyncPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setNotReadyPolicy(SecurePreferences.NotReadyPolicy.FAIL_FAST)
+                .buildAsync();
+
+        // Applied writes wait for the keys on a write thread instead of failing there
+        for (int i = 0; i < 8; i++) {
+            asyncPreferences.edit().putInt("intKey" + i, i).apply();
+        }
+
+        asyncPreferences.getReadyFuture().get(10, TimeUnit.SECONDS);
+        assertThat(asyncPreferences.edit().putString("stringKey", "value").commit(), is(true));
+
+        for (int i = 0; i < 8; i++) {
+            assertThat(sharedPreferences.contains("intKey" + i), is(true));
+            assertThat(asyncPreferences.getInt("intKey" + i, -1), is(equalTo(i)));
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final String key = "stringKey";
+        MetricsRecorder recorder = new MetricsRecorder();
+        SecurePreferences measuredPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setMetricsListener(recorder)
+                .build();
+
+        assertThat(measuredPreferences.edit().putString(key, "value").commit(), is(true));
+        assertThat(measuredPreferences.getString(key, null), is(equalTo("value")));
+        assertThat(measuredPreferences.getString(key, null), is(equalTo("value")));
+
+        MetricsRecorder.Snapshot snapshot = recorder.getSnapshot();
+
+        assertThat(snapshot.getLatency(MetricsListener.Operation.COMMIT).getCount(), is(equalTo(1L)));
+        assertThat(snapshot.getLatency(MetricsListener.Operation.GET).getCount(), is(equalTo(2L)));
+        assertThat(snapshot.getEncryptLatency().getCount(), is(equalTo(1L)));
+        assertThat(snapshot.getDecryptLatency().getCount(), is(equalTo(2L)));
+        assertThat(snapshot.getBytesEncrypted(), is(equalTo(6L)));
+        assertThat(snapshot.getBytesDecrypted(), is(equalTo(12L)));
+        assertThat(snapshot.getKeyStoreLoads(), is(equalTo(1L)));
+        assertThat(snapshot.getFailures(), is(equalTo(0L)));
+        assertThat(snapshot.getKeyAccessCounts().get(key), is(equalTo(2L)));
+    }
+
+    @Test
+    public void testGetAllTyped() throws Exception {
+        Set<String> values = new HashSet<>(Arrays.asList("first", "second"));
+
+        securePreferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .putLong("longKey", Long.MIN_VALUE)
+                .putFloat("floatKey", 1.5f)
+                .putBoolean("booleanKey", true)
+                .putStringSet("stringSetKey", values)
+                .commit();
+
+        Map<String, ?> typedValues = securePreferences.getAllTyped();
+
+        assertThat(typedValues.size(), is(equalTo(6)));
+        assertThat((String) typedValues.get("stringKey"), is(equalTo("value")));
+        assertThat((Integer) typedValues.get("intKey"), is(equalTo(42)));
+        assertThat((Long) typedValues.get("longKey"), is(equalTo(Long.MIN_VALUE)));
+        assertThat((Float) typedValues.get("floatKey"), is(equalTo(1.5f)));
+        assertThat((Boolean) typedValues.get("booleanKey"), is(true));
+        @SuppressWarnings("unchecked")
+        Set<String> typedSet = (Set<String>) typedValues.get("stringSetKey");
+        assertThat(typedSet, is(equalTo(values)));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        MetricsRecorder recorder = new MetricsRecorder();
+        SecurePreferences measuredPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setMetricsListener(recorder)
+                .build();
+
+        measuredPreferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .putBoolean("booleanKey", true)
+                .commit();
+
+        Map<String, ?> snapshot = measuredPreferences.snapshot();
+        measuredPreferences.edit().putInt("intKey", 7).commit();
+
+        assertThat(snapshot.keySet(), is(equalTo((Set<String>) new HashSet<>(Arrays.asList("stringKey", "intKey", "booleanKey")))));
+        assertThat(snapshot.containsKey("stringKey"), is(true));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(0L)));
+
+        assertThat((Integer) snapshot.get("intKey"), is(equalTo(42)));
+        assertThat((Integer) snapshot.get("intKey"), is(equalTo(42)));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(1L)));
+
+        assertThat((String) snapshot.get("stringKey"), is(equalTo("value")));
+        assertThat((Boolean) snapshot.get("booleanKey"), is(true));
+        assertThat(measuredPreferences.getInt("intKey", 0), is(equalTo(7)));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        MetricsRecorder recorder = new MetricsRecorder();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        securePreferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .putStringSet("stringSetKey", Collections.singleton("value"))
+                .commit();
+
+        SecurePreferences prefetchedPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setMetricsListener(recorder)
+                .setDecryptExecutor(executor)
+                .setPrefetchKeys(Arrays.asList("stringKey", "stringSetKey", "missingKey"))
+                .build();
+
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(2L)));
+
+        assertThat(prefetchedPreferences.getString("stringKey", null), is(equalTo("value")));
+        assertThat(prefetchedPreferences.getStringSet("stringSetKey", null),
+                is(equalTo(Collections.singleton("value"))));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(2L)));
+
+        // Without a cache prefetched values are only read once
+        assertThat(prefetchedPreferences.getString("stringKey", null), is(equalTo("value")));
+        assertThat(prefetchedPreferences.getInt("intKey", -1), is(equalTo(42)));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(4L)));
+    }
+
+    @Test
+    public void testPrefetch_profile() throws Exception {
+        securePreferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .putBoolean("booleanKey", true)
+                .commit();
+
+        SecurePreferences recordingPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setPrefetchProfile(2, 1, TimeUnit.MINUTES)
+                .build();
+
+        assertThat(recordingPreferences.getInt("intKey", -1), is(equalTo(42)));
+        assertThat(recordingPreferences.getString("stringKey", null), is(equalTo("value")));
+        assertThat(recordingPreferences.getBoolean("booleanKey", false), is(true));
+        assertThat(recordingPreferences.getAll().containsKey(PrefetchProfile.PROFILE_PREFERENCE), is(false));
+
+        MetricsRecorder recorder = new MetricsRecorder();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        SecurePreferences prefetchedPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setMetricsListener(recorder)
+                .setDecryptExecutor(executor)
+                .setPrefetchProfile(2, 1, TimeUnit.MINUTES)
+                .build();
+
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(2L)));
+
+        assertThat(prefetchedPreferences.getInt("intKey", -1), is(equalTo(42)));
+        assertThat(prefetchedPreferences.getString("stringKey", null), is(equalTo("value")));
+        assertThat(recorder.getSnapshot().getDecryptLatency().getCount(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void testPrefetch_profileWindow() throws Exception {
+        securePreferences.edit()
+                .putString("stringKey", "value")
+                .putInt("intKey", 42)
+                .commit();
+
+        SecurePreferences recordingPreferences = new SecurePreferences.Builder(sharedPreferences,
+                InstrumentationRegistry.getTargetContext())
+                .setPrefetchProfile(10, 2, TimeUnit.SECONDS)
+                .build();
+
+        assertThat(recordingPreferences.getInt("intKey", -1), is(equalTo(42)));
+
+        // Stored when the window ends, without another read and with fewer keys than the maximum
+        Thread.sleep(TimeUnit.SECONDS.toMillis(4));
+        assertThat(sharedPreferences.getStringSet(PrefetchProfile.PROFILE_PREFERENCE, null),
+                is(equalTo(Collections.singleton("intKey"))));
+
+        // Kept like the data key when the preferences are cleared
+        assertThat(recordingPreferences.edit().clear().commit(), is(true));
+        assertThat(sharedPreferences.getStringSet(PrefetchProfile.PROFILE_PREFERENCE, null),
+                is(equalTo(Collections.singleton("intKey"))));
+    }
+
+    @Test
+    public void testLegacyUntypedValue() throws Exception {
+        final String key = "intKey";
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyStore.getCertificate("securePreferenceKey").getPublicKey());
+        byte[] legacyValue = ByteBuffer.allocate(Integer.BYTES).putInt(42).array();
+
+        // The format written before values carried a type
+        sharedPreferences.edit()
+                .putString(key, Base64.encodeToString(cipher.doFinal(legacyValue), Base64.DEFAULT))
+                .commit();
+
+        assertThat(securePreferences.getInt(key, -1), is(equalTo(42)));
+        assertThat((byte[]) securePreferences.getAllTyped().get(key), is(equalTo(legacyValue)));
+    }
+
+    @Test
+    public void testTypeMismatch() throws Exception {
+        securePreferences.edit().putString("stringKey", "value").commit();
+
+        thrown.expect(ClassCastException.class);
+        securePreferences.getInt("stringKey", -1);
+    }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * The default {@link CryptoBackend}. Keeps an RSA key pair in the AndroidKeyStore, so the private
+ * key never leaves the keystore (and is hardware backed on devices that support it).
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class AndroidKeyStoreBackend implements CryptoBackend {
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String CIPHER_PROVIDER = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+            ? "AndroidKeyStoreBCWorkaround"
+            : "AndroidOpenSSL";
+    private static final String ALIAS = "securePreferenceKey";
+    private static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+    private static final int PADDING_OVERHEAD = 11;
+
+    private final Context context;
+    private final String alias;
+    private final KeyHandleManager keyHandleManager;
+
+    /**
+     * @param context The context used to generate the key.
+     */
+    public AndroidKeyStoreBackend(Context context) {
+        this(context, ALIAS);
+    }
+
+    /**
+     * @param context The context used to generate the key.
+     * @param alias The alias of the key in the AndroidKeyStore.
+     */
+    public AndroidKeyStoreBackend(Context context, String alias) {
+        this.context = context;
+        this.alias = alias;
+        this.keyHandleManager = new KeyHandleManager(KEYSTORE_PROVIDER,
+                alias,
+                CIPHER_TRANSFORMATION,
+                CIPHER_PROVIDER);
+    }
+
+    @Override
+    public void initialize() throws GeneralSecurityException, IOException {
+        if (keyHandleManager.getEntry() == null) {
+            Calendar end = Calendar.getInstance();
+            end.add(Calendar.YEAR, 100);
+
+            @SuppressLint("InlinedApi")
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER);
+
+            KeyPairGeneratorSpec.Builder builder = new KeyPairGeneratorSpec.Builder(context)
+                    .setSubject(new X500Principal("CN=" + alias))
+                    .setSerialNumber(BigInteger.TEN)
+                    .setStartDate(new Date())
+                    .setEndDate(end.getTime())
+                    .setAlias(alias);
+
+            keyPairGenerator.initialize(builder.build());
+
+            keyPairGenerator.generateKeyPair();
+            keyHandleManager.invalidate();
+            keyHandleManager.getEntry();
+        }
+    }
+
+    /**
+     * Resolves the keystore entry and the RSA cipher of the calling thread ahead of the first
+     * value.
+     */
+    /* default */ void warmUp() throws GeneralSecurityException, IOException {
+        keyHandleManager.warmUp();
+    }
+
+    /**
+     * Reports every load of the key from the AndroidKeyStore to the listener.
+     */
+    /* default */ void setMetricsListener(MetricsListener metricsListener) {
+        keyHandleManager.setMetricsListener(metricsListener);
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException, IOException {
+        return keyHandleManager.encrypt(plaintext);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException, IOException {
+        return keyHandleManager.decrypt(ciphertext);
+    }
+
+    @Override
+    public int getMaxPlaintextLength() throws GeneralSecurityException, IOException {
+        KeyStore.PrivateKeyEntry entry = keyHandleManager.getEntry();
+
+        if (entry == null) {
+            throw new InvalidKeyException("No keystore entry for alias " + alias);
+        }
+
+        RSAPublicKey publicKey = (RSAPublicKey) entry.getCertificate().getPublicKey();
+        return (publicKey.getModulus().bitLength() + 7) / 8 - PADDING_OVERHEAD;
+    }
+
+    /**
+     * Creates a backend for every key version. Version 0 uses the alias of
+     * {@link #AndroidKeyStoreBackend(Context)}, so preferences written before the first rotation
+     * stay readable. Every later version gets an alias of its own.
+     */
+    public static class Factory implements CryptoBackend.Factory {
+        private final Context context;
+
+        /**
+         * @param context The context used to generate the keys.
+         */
+        public Factory(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public CryptoBackend create(int keyVersion) {
+            return new AndroidKeyStoreBackend(context, getAlias(keyVersion));
+        }
+
+        @Override
+        public void delete(int keyVersion) throws GeneralSecurityException, IOException {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+            keyStore.load(null);
+
+            if (keyStore.containsAlias(getAlias(keyVersion))) {
+                keyStore.deleteEntry(getAlias(keyVersion));
+            }
+        }
+
+        private static String getAlias(int keyVersion) {
+            return keyVersion == 0 ? ALIAS : ALIAS + "." + keyVersion;
+        }
+    }
+}
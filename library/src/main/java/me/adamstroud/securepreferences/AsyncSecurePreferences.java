@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking access to {@link SecurePreferences}. Every read is decrypted on a dedicated
+ * executor and handed back as a {@link Future}, and optionally to a {@link Callback} that is
+ * called on the callback executor (the main thread by default).
+ *
+ * <p>Ordering matches the synchronous API: a read that is started after
+ * {@link #commitAsync(SecurePreferences.SecureEditor, Callback)},
+ * {@link SecurePreferences.SecureEditor#commitAsync()} or {@code apply()} returned always sees
+ * those modifications, even if they have not been written to the backing preferences yet.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class AsyncSecurePreferences {
+    private static final String TAG = AsyncSecurePreferences.class.getSimpleName();
+    private static final int DEFAULT_THREAD_COUNT = 2;
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final SecurePreferences securePreferences;
+    private final ExecutorService executor;
+    private final Executor callbackExecutor;
+
+    /**
+     * Receives the result of an asynchronous operation. Exactly one of the methods is called for
+     * every operation.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * @param e Usually a {@link SecurePreferencesException}, but also any other exception the
+         * operation threw, e.g. a {@link ClassCastException} if a value has a different type.
+         */
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Creates an async facade backed by an executor of two threads and a queue of 64 operations,
+     * that runs callbacks on the main thread.
+     *
+     * @param securePreferences The preferences to read and write.
+     */
+    public AsyncSecurePreferences(SecurePreferences securePreferences) {
+        this(securePreferences,
+                createExecutor(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY, new ThreadPoolExecutor.AbortPolicy()),
+                new MainThreadExecutor());
+    }
+
+    /**
+     * @param securePreferences The preferences to read and write.
+     * @param executor The executor that decrypts values, see
+     * {@link #createExecutor(int, int, RejectedExecutionHandler)}. Commits do not run on it, see
+     * {@link #commitAsync(SecurePreferences.SecureEditor, Callback)}.
+     * @param callbackExecutor The executor that runs callbacks.
+     */
+    public AsyncSecurePreferences(SecurePreferences securePreferences,
+                                  ExecutorService executor,
+                                  Executor callbackExecutor) {
+        this.securePreferences = securePreferences;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Creates a bounded executor for asynchronous operations.
+     *
+     * @param threadCount The maximum number of operations that run at the same time.
+     * @param queueCapacity The maximum number of operations that wait for a thread.
+     * @param rejectedExecutionHandler What happens to operations that do not fit into the queue.
+     * {@link ThreadPoolExecutor.AbortPolicy} makes the async methods throw a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    public static ExecutorService createExecutor(int threadCount,
+                                                 int queueCapacity,
+                                                 RejectedExecutionHandler rejectedExecutionHandler) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                rejectedExecutionHandler);
+
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public SecurePreferences getSecurePreferences() {
+        return securePreferences;
+    }
+
+    public Future<Map<String, ?>> getAllAsync(Callback<Map<String, ?>> callback) {
+        return submit(new Callable<Map<String, ?>>() {
+            @Override
+            public Map<String, ?> call() {
+                return securePreferences.getAll();
+            }
+        }, callback);
+    }
+
+    public Future<String> getStringAsync(final String key,
+                                         final String defValue,
+                                         Callback<String> callback) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return securePreferences.getString(key, defValue);
+            }
+        }, callback);
+    }
+
+    public Future<Set<String>> getStringSetAsync(final String key,
+                                                 final Set<String> defValues,
+                                                 Callback<Set<String>> callback) {
+        return submit(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return securePreferences.getStringSet(key, defValues);
+            }
+        }, callback);
+    }
+
+    public Future<Integer> getIntAsync(final String key, final int defValue, Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return securePreferences.getInt(key, defValue);
+            }
+        }, callback);
+    }
+
+    public Future<Long> getLongAsync(final String key, final long defValue, Callback<Long> callback) {
+        return submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return securePreferences.getLong(key, defValue);
+            }
+        }, callback);
+    }
+
+    public Future<Float> getFloatAsync(final String key, final float defValue, Callback<Float> callback) {
+        return submit(new Callable<Float>() {
+            @Override
+            public Float call() {
+                return securePreferences.getFloat(key, defValue);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> getBooleanAsync(final String key,
+                                           final boolean defValue,
+                                           Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return securePreferences.getBoolean(key, defValue);
+            }
+        }, callback);
+    }
+
+    public SecurePreferences.SecureEditor edit() {
+        return securePreferences.edit();
+    }
+
+    /**
+     * Commits the modifications of an editor without blocking. The modifications are visible to
+     * reads as soon as this method returns.
+     *
+     * <p>The commit is written on the write threads of {@link SecurePreferences}, like
+     * {@code apply()}, so it keeps its place in the write order. It does not run on the executor
+     * of this facade, which neither bounds nor isolates commits.</p>
+     *
+     * @param editor The editor to commit.
+     * @param callback Receives the result of {@code commit()}, may be null.
+     */
+    public Future<Boolean> commitAsync(SecurePreferences.SecureEditor editor, Callback<Boolean> callback) {
+        return editor.commitAsync(callback, callbackExecutor);
+    }
+
+    private <T> Future<T> submit(final Callable<T> operation, final Callback<T> callback) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                T result;
+
+                try {
+                    result = operation.call();
+                } catch (Exception e) {
+                    deliverFailure(callbackExecutor, callback, e);
+                    throw e;
+                }
+
+                deliverSuccess(callbackExecutor, callback, result);
+                return result;
+            }
+        });
+    }
+
+    /* default */ static <T> void deliverSuccess(Executor callbackExecutor,
+                                                 final Callback<T> callback,
+                                                 final T result) {
+        if (callback != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onSuccess(result);
+                }
+            });
+        }
+    }
+
+    /* default */ static <T> void deliverFailure(Executor callbackExecutor,
+                                                 final Callback<T> callback,
+                                                 final Exception e) {
+        if (callback != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFailure(e);
+                }
+            });
+        }
+    }
+
+    private static class MainThreadExecutor implements Executor {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Owns the asymmetric key that protects {@link SecurePreferences}. In {@link SecurePreferences.Mode#RSA}
+ * every value goes through this backend, in {@link SecurePreferences.Mode#ENVELOPE} it only wraps
+ * the data key.
+ *
+ * <p>Implementations must be thread safe.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public interface CryptoBackend {
+    /**
+     * Looks up the key, generating it if it does not exist yet. Called once before any other
+     * method, possibly on a background thread.
+     */
+    void initialize() throws GeneralSecurityException, IOException;
+
+    byte[] encrypt(byte[] plaintext) throws GeneralSecurityException, IOException;
+
+    byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException, IOException;
+
+    /**
+     * Gets the largest plaintext that {@link #encrypt(byte[])} accepts in one call. Longer values
+     * are split into several calls.
+     */
+    int getMaxPlaintextLength() throws GeneralSecurityException, IOException;
+
+    /**
+     * Creates the backend of every key version, which lets {@link KeyRotation} replace the key.
+     *
+     * <p>Implementations must be thread safe.</p>
+     */
+    interface Factory {
+        /**
+         * Creates the backend of a key version without generating its key, that is left to
+         * {@link CryptoBackend#initialize()}. Version 0 is the key that was used before the
+         * first rotation.
+         */
+        CryptoBackend create(int keyVersion);
+
+        /**
+         * Deletes the key of a version that no longer protects any value. Does nothing if the
+         * key does not exist.
+         */
+        void delete(int keyVersion) throws GeneralSecurityException, IOException;
+    }
+}
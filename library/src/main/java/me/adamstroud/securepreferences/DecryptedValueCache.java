@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LRU cache of decrypted values, bounded by both the number of entries and their approximate
+ * size in bytes. Every entry remembers the ciphertext it was decrypted from and is only returned
+ * while the backing preferences still hold that exact ciphertext, so a stale value can never be
+ * served even if an invalidation is missed.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class DecryptedValueCache {
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    /* default */ DecryptedValueCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the cached value for a key.
+     *
+     * @param key The preference key.
+     * @param ciphertext The value currently stored in the backing preferences.
+     * @return The decrypted value, or null if it is not cached for this ciphertext.
+     */
+    /* default */ synchronized Object get(String key, Object ciphertext) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        } else if (!entry.ciphertext.equals(ciphertext)) {
+            remove(key);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    /**
+     * Gets and removes the cached value for a key, for values that are only read once.
+     *
+     * @see #get(String, Object)
+     */
+    /* default */ synchronized Object take(String key, Object ciphertext) {
+        Object value = get(key, ciphertext);
+
+        if (value != null) {
+            remove(key);
+        }
+
+        return value;
+    }
+
+    /* default */ synchronized void put(String key, Object ciphertext, byte[] value) {
+        put(key, new Entry(ciphertext, value, sizeOf(ciphertext) + value.length));
+    }
+
+    /* default */ synchronized void put(String key, Object ciphertext, Set<String> values) {
+        long valueSize = 0;
+
+        for (String value : values) {
+            valueSize += 2 * value.length();
+        }
+
+        put(key, new Entry(ciphertext, values, sizeOf(ciphertext) + valueSize));
+    }
+
+    /* default */ synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    /* default */ synchronized void invalidateAll() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Releases memory according to a level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    /* default */ synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            invalidateAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(maxEntries / 2, maxBytes / 2);
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        remove(key);
+
+        if (entry.size <= maxBytes) {
+            entries.put(key, entry);
+            size += entry.size;
+            trimToSize(maxEntries, maxBytes);
+        }
+    }
+
+    private void remove(String key) {
+        Entry previous = entries.remove(key);
+
+        if (previous != null) {
+            size -= previous.size;
+        }
+    }
+
+    private void trimToSize(int entryLimit, long byteLimit) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+        while ((entries.size() > entryLimit || size > byteLimit) && iterator.hasNext()) {
+            size -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(Object ciphertext) {
+        long ciphertextSize = ENTRY_OVERHEAD;
+
+        if (ciphertext instanceof String) {
+            ciphertextSize += 2 * ((String) ciphertext).length();
+        } else {
+            for (Object element : (Set<?>) ciphertext) {
+                ciphertextSize += 2 * ((String) element).length();
+            }
+        }
+
+        return ciphertextSize;
+    }
+
+    private static class Entry {
+        private final Object ciphertext;
+        private final Object value;
+        private final long size;
+
+        private Entry(Object ciphertext, Object value, long size) {
+            this.ciphertext = ciphertext;
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts values with a random AES-256 data key using AES-GCM. The data key itself is wrapped
+ * with the keystore RSA key and stored once in the backing preferences, so only the first use of
+ * the data key costs a private key operation.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+/* default */ class EnvelopeCipher {
+    /* default */ static final String DATA_KEY_PREFERENCE = "me.adamstroud.securepreferences.DATA_KEY";
+
+    private static final String KEY_ALGORITHM = "AES";
+    private static final int KEY_SIZE = 256;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int BASE_64_FLAGS = Base64.NO_WRAP;
+
+    private final SharedPreferences sharedPreferences;
+    private final CryptoBackend cryptoBackend;
+    private final String dataKeyPreference;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+
+    private volatile SecretKey dataKey;
+    private volatile String wrappedDataKey;
+
+    /* default */ EnvelopeCipher(SharedPreferences sharedPreferences, CryptoBackend cryptoBackend) {
+        this(sharedPreferences, cryptoBackend, DATA_KEY_PREFERENCE);
+    }
+
+    /**
+     * @param dataKeyPreference The preference that stores the wrapped data key.
+     */
+    /* default */ EnvelopeCipher(SharedPreferences sharedPreferences,
+                                 CryptoBackend cryptoBackend,
+                                 String dataKeyPreference) {
+        this.sharedPreferences = sharedPreferences;
+        this.cryptoBackend = cryptoBackend;
+        this.dataKeyPreference = dataKeyPreference;
+    }
+
+    /**
+     * Encrypts the plaintext with the data key, creating the data key if it does not exist yet.
+     *
+     * @return The IV followed by the ciphertext and authentication tag.
+     */
+    /* default */ byte[] encrypt(byte[] plaintext) throws GeneralSecurityException, IOException {
+        SecretKey key = getDataKey(true);
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+
+        byte[] payload = new byte[IV_LENGTH + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(iv, 0, payload, 0, IV_LENGTH);
+        cipher.doFinal(plaintext, 0, plaintext.length, payload, IV_LENGTH);
+
+        return payload;
+    }
+
+    /* default */ byte[] decrypt(byte[] payload) throws GeneralSecurityException, IOException {
+        SecretKey key = getDataKey(false);
+
+        if (key == null) {
+            throw new InvalidKeyException("No data key has been stored");
+        }
+
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, payload, 0, IV_LENGTH));
+
+        return cipher.doFinal(payload, IV_LENGTH, payload.length - IV_LENGTH);
+    }
+
+    /**
+     * Decrypts into a buffer of the caller instead of a new array.
+     *
+     * @param length The number of bytes of {@code payload} to decrypt.
+     * @param output Receives the plaintext. Has to hold at least {@code length} bytes.
+     * @return The length of the plaintext.
+     */
+    /* default */ int decrypt(byte[] payload, int length, byte[] output) throws GeneralSecurityException, IOException {
+        SecretKey key = getDataKey(false);
+
+        if (key == null) {
+            throw new InvalidKeyException("No data key has been stored");
+        }
+
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, payload, 0, IV_LENGTH));
+
+        return cipher.doFinal(payload, IV_LENGTH, length - IV_LENGTH, output, 0);
+    }
+
+    /**
+     * Loads and unwraps the data key if one has been stored, so the first value does not pay for
+     * the RSA operation.
+     */
+    /* default */ void warmUp() throws GeneralSecurityException, IOException {
+        getDataKey(false);
+        getCipher();
+    }
+
+    /**
+     * Puts the wrapped data key back into an editor that has been cleared so that values written
+     * in the same transaction stay readable.
+     */
+    /* default */ void restoreDataKey(SharedPreferences.Editor editor) {
+        String wrapped = wrappedDataKey;
+
+        if (wrapped != null) {
+            editor.putString(dataKeyPreference, wrapped);
+        }
+    }
+
+    private SecretKey getDataKey(boolean create) throws GeneralSecurityException, IOException {
+        SecretKey key = dataKey;
+
+        if (key != null && (!create || sharedPreferences.contains(dataKeyPreference))) {
+            return key;
+        }
+
+        synchronized (this) {
+            if (dataKey == null) {
+                String wrapped = sharedPreferences.getString(dataKeyPreference, null);
+
+                if (wrapped != null) {
+                    byte[] encoded = cryptoBackend.decrypt(Base64.decode(wrapped, BASE_64_FLAGS));
+                    wrappedDataKey = wrapped;
+                    dataKey = new SecretKeySpec(encoded, KEY_ALGORITHM);
+                } else if (create) {
+                    KeyGenerator keyGenerator = KeyGenerator.getInstance(KEY_ALGORITHM);
+                    keyGenerator.init(KEY_SIZE, random);
+                    SecretKey generated = keyGenerator.generateKey();
+
+                    wrappedDataKey = Base64.encodeToString(cryptoBackend.encrypt(generated.getEncoded()),
+                            BASE_64_FLAGS);
+                    storeDataKey();
+                    dataKey = generated;
+                }
+            } else if (create && !sharedPreferences.contains(dataKeyPreference)) {
+                // The backing preferences were cleared from outside of SecurePreferences
+                storeDataKey();
+            }
+
+            return dataKey;
+        }
+    }
+
+    private void storeDataKey() throws IOException {
+        if (!sharedPreferences.edit().putString(dataKeyPreference, wrappedDataKey).commit()) {
+            throw new IOException("Could not store data key");
+        }
+    }
+
+    private Cipher getCipher() throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            ciphers.set(cipher);
+        }
+
+        return cipher;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+
+/**
+ * Resolves the keystore entry used by {@link SecurePreferences} once and hands out per-thread,
+ * already initialized {@link Cipher} instances for it. The entry is only looked up again after
+ * {@link #invalidate()} is called, which happens automatically when the keystore reports that
+ * the key is no longer usable.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class KeyHandleManager {
+    private final String keystoreProvider;
+    private final String alias;
+    private final String transformation;
+    private final String cipherProvider;
+    private final ThreadLocal<CipherHandle> encryptCiphers = new ThreadLocal<>();
+    private final ThreadLocal<CipherHandle> decryptCiphers = new ThreadLocal<>();
+
+    private volatile KeyStore.PrivateKeyEntry entry;
+    private volatile MetricsListener metricsListener;
+
+    /* default */ KeyHandleManager(String keystoreProvider,
+                                   String alias,
+                                   String transformation,
+                                   String cipherProvider) {
+        this.keystoreProvider = keystoreProvider;
+        this.alias = alias;
+        this.transformation = transformation;
+        this.cipherProvider = cipherProvider;
+    }
+
+    /**
+     * Gets the cached keystore entry, loading it from the keystore if it has not been resolved
+     * yet.
+     *
+     * @return The entry, or null if the keystore does not contain the alias.
+     */
+    /* default */ KeyStore.PrivateKeyEntry getEntry() throws GeneralSecurityException, IOException {
+        KeyStore.PrivateKeyEntry current = entry;
+
+        if (current == null) {
+            synchronized (this) {
+                current = entry;
+
+                if (current == null) {
+                    KeyStore keystore = KeyStore.getInstance(keystoreProvider);
+                    keystore.load(null);
+                    current = (KeyStore.PrivateKeyEntry) keystore.getEntry(alias, null);
+                    entry = current;
+
+                    MetricsListener listener = metricsListener;
+
+                    if (listener != null) {
+                        listener.onKeyStoreLoad();
+                    }
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /* default */ void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Drops the cached entry so the next operation resolves the key from the keystore again.
+     * Ciphers that were initialized with the old entry are re-initialized on their next use.
+     */
+    /* default */ void invalidate() {
+        synchronized (this) {
+            entry = null;
+        }
+    }
+
+    /**
+     * Resolves the entry and initializes the encrypt cipher of the calling thread, so the first
+     * value does not pay for either.
+     */
+    /* default */ void warmUp() throws GeneralSecurityException, IOException {
+        getCipher(Cipher.ENCRYPT_MODE, encryptCiphers);
+    }
+
+    /* default */ byte[] encrypt(byte[] plaintext) throws GeneralSecurityException, IOException {
+        return doFinal(Cipher.ENCRYPT_MODE, encryptCiphers, plaintext);
+    }
+
+    /* default */ byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException, IOException {
+        return doFinal(Cipher.DECRYPT_MODE, decryptCiphers, ciphertext);
+    }
+
+    private byte[] doFinal(int mode, ThreadLocal<CipherHandle> ciphers, byte[] input)
+            throws GeneralSecurityException, IOException {
+        try {
+            return getCipher(mode, ciphers).doFinal(input);
+        } catch (InvalidKeyException e) {
+            // The key was invalidated or replaced underneath us, resolve it again and retry once.
+            ciphers.remove();
+            invalidate();
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // A failed doFinal() can leave the cipher in an undefined state.
+            ciphers.remove();
+            throw e;
+        }
+
+        try {
+            return getCipher(mode, ciphers).doFinal(input);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            ciphers.remove();
+            throw e;
+        }
+    }
+
+    private Cipher getCipher(int mode, ThreadLocal<CipherHandle> ciphers)
+            throws GeneralSecurityException, IOException {
+        KeyStore.PrivateKeyEntry current = getEntry();
+
+        if (current == null) {
+            throw new InvalidKeyException("No keystore entry for alias " + alias);
+        }
+
+        CipherHandle handle = ciphers.get();
+
+        if (handle == null || handle.entry != current) {
+            Key key = mode == Cipher.ENCRYPT_MODE
+                    ? current.getCertificate().getPublicKey()
+                    : current.getPrivateKey();
+            Cipher cipher = handle == null
+                    ? Cipher.getInstance(transformation, cipherProvider)
+                    : handle.cipher;
+
+            cipher.init(mode, key);
+            handle = new CipherHandle(cipher, current);
+            ciphers.set(handle);
+        }
+
+        return handle.cipher;
+    }
+
+    private static class CipherHandle {
+        private final Cipher cipher;
+        private final KeyStore.PrivateKeyEntry entry;
+
+        private CipherHandle(Cipher cipher, KeyStore.PrivateKeyEntry entry) {
+            this.cipher = cipher;
+            this.entry = entry;
+        }
+    }
+}
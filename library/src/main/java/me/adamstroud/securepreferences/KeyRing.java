@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The key versions of a {@link SecurePreferences}. New values are always encrypted with the
+ * current version, while values of older versions stay readable until {@link KeyRotation} has
+ * re-encrypted them.
+ *
+ * <p>The current version is stored in the backing preferences. Version 0 is the key that was
+ * used before the first rotation, so it is not stored at all and values written with it are not
+ * tagged, which keeps preferences that were never rotated readable by older versions of the
+ * library.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class KeyRing {
+    /* default */ static final String KEY_VERSION_PREFERENCE = "me.adamstroud.securepreferences.KEY_VERSION";
+    /* default */ static final String ROTATION_PREFERENCE = "me.adamstroud.securepreferences.ROTATION";
+
+    private final SharedPreferences sharedPreferences;
+    private final CryptoBackend.Factory factory;
+    private final MetricsListener metricsListener;
+    private final ConcurrentMap<Integer, KeyVersion> versions = new ConcurrentHashMap<>();
+
+    private volatile KeyVersion current;
+
+    /**
+     * Creates a key ring that can be rotated.
+     *
+     * @param metricsListener Receives the keystore loads of every version, may be null.
+     */
+    /* default */ KeyRing(SharedPreferences sharedPreferences,
+                          CryptoBackend.Factory factory,
+                          MetricsListener metricsListener) {
+        this.sharedPreferences = sharedPreferences;
+        this.factory = factory;
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Creates a key ring that only ever has version 0.
+     *
+     * @param metricsListener Receives the keystore loads, may be null.
+     */
+    /* default */ KeyRing(SharedPreferences sharedPreferences,
+                          CryptoBackend cryptoBackend,
+                          MetricsListener metricsListener) {
+        this.sharedPreferences = sharedPreferences;
+        this.factory = null;
+        this.metricsListener = metricsListener;
+        this.versions.put(0, createVersion(0, cryptoBackend));
+    }
+
+    /**
+     * Loads the current version, generating its key if it does not exist yet.
+     */
+    /* default */ void initialize() throws GeneralSecurityException, IOException {
+        String storedVersion = sharedPreferences.getString(KEY_VERSION_PREFERENCE, null);
+
+        if (factory == null) {
+            versions.get(0).getBackend().initialize();
+        }
+
+        current = create(storedVersion == null ? 0 : Integer.parseInt(storedVersion));
+    }
+
+    /* default */ KeyVersion getCurrent() {
+        return current;
+    }
+
+    /**
+     * Gets an existing key version, the current one or the previous one while a rotation is in
+     * progress, initializing its backend on first use. Never creates a key, so a value tagged
+     * with a version that is stale or corrupt can not leave a new key behind.
+     *
+     * @throws SecurePreferencesException If the version does not exist.
+     */
+    /* default */ KeyVersion get(int version)
+            throws GeneralSecurityException, IOException, SecurePreferencesException {
+        KeyVersion keyVersion = versions.get(version);
+
+        if (keyVersion != null) {
+            return keyVersion;
+        } else if (version != getRotatedVersion()) {
+            throw new SecurePreferencesException("Unknown key version " + version);
+        }
+
+        return create(version);
+    }
+
+    /**
+     * Gets a key version, generating its key if it does not exist yet. Only called for the
+     * current version and for the version a rotation starts.
+     *
+     * @throws InvalidKeyException If the version can not be created because the key ring can
+     * not be rotated.
+     */
+    /* default */ KeyVersion create(int version) throws GeneralSecurityException, IOException {
+        KeyVersion keyVersion = versions.get(version);
+
+        if (keyVersion == null) {
+            if (factory == null) {
+                throw new InvalidKeyException("No backend for key version " + version);
+            }
+
+            synchronized (this) {
+                keyVersion = versions.get(version);
+
+                if (keyVersion == null) {
+                    keyVersion = createVersion(version, factory.create(version));
+                    keyVersion.getBackend().initialize();
+                    versions.put(version, keyVersion);
+                }
+            }
+        }
+
+        return keyVersion;
+    }
+
+    /* default */ boolean isRotatable() {
+        return factory != null;
+    }
+
+    /**
+     * Gets the version a rotation in progress replaces, or -1.
+     */
+    private int getRotatedVersion() {
+        // <previous version>, followed by :<last key> once the first batch is written
+        String rotation = sharedPreferences.getString(ROTATION_PREFERENCE, null);
+
+        if (rotation == null) {
+            return -1;
+        }
+
+        int separator = rotation.indexOf(':');
+
+        try {
+            return Integer.parseInt(separator < 0 ? rotation : rotation.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Makes a version the current one. It has to be stored in
+     * {@link #KEY_VERSION_PREFERENCE} already.
+     */
+    /* default */ void setCurrent(KeyVersion keyVersion) {
+        current = keyVersion;
+    }
+
+    /**
+     * Deletes the key of a version that no longer protects any value.
+     */
+    /* default */ void delete(int version) throws GeneralSecurityException, IOException {
+        versions.remove(version);
+        factory.delete(version);
+    }
+
+    /**
+     * Puts the state of the key ring back into an editor that has been cleared. A rotation in
+     * progress is kept, so it still deletes the key of the previous version.
+     */
+    /* default */ void onClear(SharedPreferences.Editor editor) {
+        if (current.getVersion() != 0) {
+            editor.putString(KEY_VERSION_PREFERENCE, Integer.toString(current.getVersion()));
+        }
+
+        String rotation = sharedPreferences.getString(ROTATION_PREFERENCE, null);
+
+        if (rotation != null) {
+            editor.putString(ROTATION_PREFERENCE, rotation);
+        }
+    }
+
+    /**
+     * Checks if a key of the backing preferences stores the state of the key ring.
+     */
+    /* default */ static boolean isReservedKey(String key) {
+        return KEY_VERSION_PREFERENCE.equals(key)
+                || ROTATION_PREFERENCE.equals(key)
+                || key.startsWith(EnvelopeCipher.DATA_KEY_PREFERENCE);
+    }
+
+    /**
+     * Gets the preference that stores the wrapped data key of a version.
+     */
+    /* default */ static String getDataKeyPreference(int version) {
+        return version == 0
+                ? EnvelopeCipher.DATA_KEY_PREFERENCE
+                : EnvelopeCipher.DATA_KEY_PREFERENCE + "." + version;
+    }
+
+    private KeyVersion createVersion(int version, CryptoBackend backend) {
+        if (metricsListener != null && backend instanceof AndroidKeyStoreBackend) {
+            ((AndroidKeyStoreBackend) backend).setMetricsListener(metricsListener);
+        }
+
+        return new KeyVersion(version,
+                backend,
+                new EnvelopeCipher(sharedPreferences, backend, getDataKeyPreference(version)));
+    }
+
+    /**
+     * The backend of one key version and the data key it wraps.
+     */
+    /* default */ static class KeyVersion {
+        private final int version;
+        private final CryptoBackend backend;
+        private final EnvelopeCipher envelopeCipher;
+
+        private KeyVersion(int version, CryptoBackend backend, EnvelopeCipher envelopeCipher) {
+            this.version = version;
+            this.backend = backend;
+            this.envelopeCipher = envelopeCipher;
+        }
+
+        /* default */ int getVersion() {
+            return version;
+        }
+
+        /* default */ CryptoBackend getBackend() {
+            return backend;
+        }
+
+        /* default */ EnvelopeCipher getEnvelopeCipher() {
+            return envelopeCipher;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates the key of a {@link SecurePreferences} in the background. A rotation makes a new key
+ * version the current one and then re-encrypts the existing values in small batches, throttled
+ * so that it does not compete with the app for the keystore. Every value stays readable
+ * throughout, whichever version it was written with, and the key of the previous version is
+ * deleted once no value uses it anymore.
+ *
+ * <p>The progress is stored with every batch, so a rotation that was interrupted, by
+ * {@link Future#cancel(boolean)} or because the process died, continues where it stopped on
+ * the next call to {@link #resume()}. Apps should call it on start whenever
+ * {@link #isInProgress()} returns true.</p>
+ *
+ * <p>Requires preferences built with a {@link CryptoBackend.Factory}, see
+ * {@link SecurePreferences.Builder#setCryptoBackendFactory(CryptoBackend.Factory)}. Only one
+ * instance should be used for the same preferences.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class KeyRotation {
+    private static final String TAG = KeyRotation.class.getSimpleName();
+    private static final int DEFAULT_BATCH_SIZE = 16;
+    private static final double DEFAULT_MAX_VALUES_PER_SECOND = 20;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final SecurePreferences securePreferences;
+    private final int batchSize;
+    private final double maxValuesPerSecond;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a rotation that re-encrypts batches of 16 values and at most 20 values a second.
+     *
+     * @param securePreferences The preferences to rotate.
+     */
+    public KeyRotation(SecurePreferences securePreferences) {
+        this(securePreferences, DEFAULT_BATCH_SIZE, DEFAULT_MAX_VALUES_PER_SECOND);
+    }
+
+    /**
+     * @param securePreferences The preferences to rotate.
+     * @param batchSize The number of keys that are re-encrypted in a single commit.
+     * @param maxValuesPerSecond The maximum rate at which values are re-encrypted.
+     */
+    public KeyRotation(SecurePreferences securePreferences, int batchSize, double maxValuesPerSecond) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        if (maxValuesPerSecond <= 0) {
+            throw new IllegalArgumentException("maxValuesPerSecond must be positive");
+        }
+
+        this.securePreferences = securePreferences;
+        this.batchSize = batchSize;
+        this.maxValuesPerSecond = maxValuesPerSecond;
+        this.executor = new ThreadPoolExecutor(0, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Starts a rotation to a new key version and re-encrypts every value, or continues the
+     * rotation that is in progress instead of starting another one.
+     *
+     * @return Completes once the key of the previous version has been deleted. Cancelling it
+     * stops the rotation after the current batch.
+     */
+    public Future<Void> rotate() {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                securePreferences.startKeyRotation();
+                reencrypt();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Continues an interrupted rotation, if there is one.
+     *
+     * @return Completes once the key of the previous version has been deleted, or right away
+     * if no rotation is in progress.
+     */
+    public Future<Void> resume() {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                reencrypt();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Checks if a rotation was started and has not finished yet, even by an earlier process.
+     */
+    public boolean isInProgress() {
+        return securePreferences.isKeyRotationInProgress();
+    }
+
+    private void reencrypt() throws InterruptedException {
+        long nanosPerValue = (long) (TimeUnit.SECONDS.toNanos(1) / maxValuesPerSecond);
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long start = System.nanoTime();
+            int reencrypted = securePreferences.rotateNextBatch(batchSize);
+
+            if (reencrypted < 0) {
+                return;
+            }
+
+            long remaining = reencrypted * nanosPerValue - (System.nanoTime() - start);
+
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+        }
+
+        throw new InterruptedException();
+    }
+}
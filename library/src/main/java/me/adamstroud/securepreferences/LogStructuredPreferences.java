@@ -0,0 +1,1054 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SharedPreferences} implementation that appends every commit to a log file instead of
+ * rewriting the whole file, meant as the backing store of {@link SecurePreferences} for values
+ * that change often. The values are kept in memory, so reads never touch the file.
+ *
+ * <p>Each commit is one record: its length, a CRC32 of its body, and the body holding every
+ * changed key. Strings that hold Base64, like the ciphertexts written by
+ * {@link SecurePreferences}, are stored as their raw bytes and encoded again when the log is
+ * loaded. Concurrent commits share a single fsync. {@code apply()} only updates the values in
+ * memory and leaves appending the record and the fsync to a background thread. When the
+ * records that have been overwritten make up more than the compaction threshold of the file,
+ * the live values are rewritten into a new file in the background.</p>
+ *
+ * <p>A record that was only partially written when the process died fails its length or CRC
+ * check and is truncated when the log is loaded, together with everything after it. Listeners
+ * are called on the main thread for every key whose value changed.</p>
+ *
+ * <p>A compaction renames the new file over the log and then syncs the directory, so the
+ * rename survives a crash. Directories can only be synced from API 21. Before that, a crash
+ * shortly after a compaction may bring back the old log, losing the records that were appended
+ * to the new one even though their commit already returned.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class LogStructuredPreferences implements SharedPreferences {
+    private static final String TAG = LogStructuredPreferences.class.getSimpleName();
+    private static final int MAGIC = 0x53504C47;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 5;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+    private static final long DEFAULT_MIN_COMPACTION_LENGTH = 64 * 1024;
+    private static final long WRITE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final String COMPACTION_SUFFIX = ".compact";
+    private static final int MAX_PREFIX_SEGMENTS = 2;
+    private static final int MAX_PREFIX_LENGTH = 10;
+    private static final char PREFIX_SEPARATOR = ':';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Object REMOVED = new Object();
+
+    private static final int OP_CLEAR = 0;
+    private static final int OP_REMOVE = 1;
+    private static final int OP_STRING = 2;
+    private static final int OP_BASE_64 = 3;
+    private static final int OP_INT = 4;
+    private static final int OP_LONG = 5;
+    private static final int OP_FLOAT = 6;
+    private static final int OP_BOOLEAN = 7;
+    private static final int OP_STRING_SET = 8;
+
+    private final File file;
+    private final File compactionFile;
+    private final float compactionThreshold;
+    private final long minCompactionLength;
+    private final ExecutorService writeExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object writeLock = new Object();
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private final Map<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+
+    private volatile Map<String, Object> values;
+
+    // Guarded by writeLock
+    private long liveLength;
+    private final Map<String, Integer> entryLengths = new HashMap<>();
+    private final Queue<ByteBuffer> queuedRecords = new ArrayDeque<>();
+    private long queuedSequence;
+    private boolean writeScheduled;
+    private boolean compactionScheduled;
+
+    // Guarded by appendLock, which is always taken before writeLock
+    private FileChannel channel;
+    private long logLength;
+    private long appendedSequence;
+
+    // Guarded by syncLock
+    private long syncedSequence;
+    private boolean syncing;
+
+    /**
+     * Opens or creates the log, reading it on the calling thread.
+     *
+     * @param file The log file. Nothing else may use the file or the file with the same name
+     *             and the suffix {@code .compact}.
+     */
+    public LogStructuredPreferences(File file) {
+        this(file, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_MIN_COMPACTION_LENGTH);
+    }
+
+    /**
+     * @param compactionThreshold The share of the log that has to be overwritten records before
+     *                            it is compacted.
+     * @param minCompactionLength Logs that are shorter are never compacted.
+     */
+    /* default */ LogStructuredPreferences(File file, float compactionThreshold, long minCompactionLength) {
+        this.file = file;
+        this.compactionFile = new File(file.getPath() + COMPACTION_SUFFIX);
+        this.compactionThreshold = compactionThreshold;
+        this.minCompactionLength = minCompactionLength;
+        this.writeExecutor = new ThreadPoolExecutor(0, 1,
+                WRITE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-write");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        try {
+            synchronized (appendLock) {
+                synchronized (writeLock) {
+                    this.values = Collections.unmodifiableMap(load());
+                }
+            }
+        } catch (IOException e) {
+            throw new SecurePreferencesException("Could not load " + file, e);
+        }
+    }
+
+    /**
+     * Reads every record, truncating the log at the first one that is incomplete or corrupt.
+     */
+    private Map<String, Object> load() throws IOException {
+        if (compactionFile.exists() && !compactionFile.delete()) {
+            throw new IOException("Could not delete " + compactionFile);
+        }
+
+        Map<String, Object> loadedValues = new HashMap<>();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        if (channel.size() < FILE_HEADER_LENGTH) {
+            // New, or the process died while the header was written
+            channel.truncate(0);
+            writeFileHeader(channel);
+            channel.force(false);
+            logLength = FILE_HEADER_LENGTH;
+            return loadedValues;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a preferences log");
+            }
+
+            int version = in.readUnsignedByte();
+
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported log version " + version);
+            }
+
+            long fileLength = channel.size();
+            long position = FILE_HEADER_LENGTH;
+
+            while (position < fileLength) {
+                byte[] body = readRecord(in, fileLength - position);
+
+                if (body == null) {
+                    Log.w(TAG, "Truncating " + file + " after a torn record at " + position);
+                    channel.truncate(position);
+                    channel.force(false);
+                    break;
+                }
+
+                applyRecord(body, loadedValues);
+                position += RECORD_HEADER_LENGTH + body.length;
+            }
+
+            logLength = position;
+        } finally {
+            in.close();
+        }
+
+        channel.position(logLength);
+        return loadedValues;
+    }
+
+    /**
+     * @return The body of the record, or null if the record is incomplete or fails its CRC.
+     */
+    private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+        if (remaining < RECORD_HEADER_LENGTH) {
+            return null;
+        }
+
+        int length = in.readInt();
+        int crc = in.readInt();
+
+        if (length < 0 || length > MAX_RECORD_LENGTH || length > remaining - RECORD_HEADER_LENGTH) {
+            return null;
+        }
+
+        byte[] body = new byte[length];
+
+        try {
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+
+        return crc32(body, 0, length) == crc ? body : null;
+    }
+
+    private void applyRecord(byte[] body, Map<String, Object> loadedValues) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int offset = 0;
+
+        while (offset < body.length) {
+            int op = in.readUnsignedByte();
+
+            if (op == OP_CLEAR) {
+                loadedValues.clear();
+                entryLengths.clear();
+                liveLength = 0;
+                offset += 1;
+                continue;
+            }
+
+            String key = readString(in);
+            Object value = readValue(in, op);
+            int length = body.length - offset - in.available();
+            offset += length;
+
+            updateLiveLength(key, value == REMOVED ? 0 : length);
+
+            if (value == REMOVED) {
+                loadedValues.remove(key);
+            } else {
+                loadedValues.put(key, value);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return values;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        String value = (String) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        @SuppressWarnings("unchecked")
+        Set<String> values = (Set<String>) this.values.get(key);
+        return values == null ? defValues : values;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new LogEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, null);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Appends the queued records and gets the length of the log file.
+     */
+    /* default */ long getLogLength() throws IOException {
+        synchronized (appendLock) {
+            long sequence;
+
+            synchronized (writeLock) {
+                sequence = queuedSequence;
+            }
+
+            appendQueued(sequence);
+            return logLength;
+        }
+    }
+
+    /**
+     * Applies the modifications of an editor to the in-memory values and queues them as one
+     * record. Nothing is queued if no value changes.
+     *
+     * @return The sequence number of the record, or 0 if nothing was queued.
+     */
+    private long queue(Map<String, Object> modifications, boolean cleared, List<String> changedKeys)
+            throws IOException {
+        synchronized (writeLock) {
+            Map<String, Object> newValues = cleared ? new HashMap<String, Object>() : new HashMap<>(values);
+            Map<String, Integer> lengths = new HashMap<>(modifications.size());
+            Set<String> changed = new LinkedHashSet<>();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0);
+            out.writeInt(0);
+
+            if (cleared) {
+                changed.addAll(values.keySet());
+                out.writeByte(OP_CLEAR);
+            }
+
+            for (Map.Entry<String, Object> entry : modifications.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                Object oldValue = newValues.get(key);
+
+                if (value == REMOVED ? oldValue == null : value.equals(oldValue)) {
+                    continue;
+                }
+
+                int start = bytes.size();
+                writeEntry(out, key, value);
+                lengths.put(key, value == REMOVED ? 0 : bytes.size() - start);
+
+                if (value == REMOVED) {
+                    newValues.remove(key);
+                } else {
+                    newValues.put(key, value);
+                }
+
+                changed.add(key);
+            }
+
+            if (lengths.isEmpty() && (!cleared || values.isEmpty())) {
+                return 0;
+            }
+
+            out.flush();
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int bodyLength = record.limit() - RECORD_HEADER_LENGTH;
+            record.putInt(0, bodyLength);
+            record.putInt(4, crc32(record.array(), RECORD_HEADER_LENGTH, bodyLength));
+
+            if (cleared) {
+                entryLengths.clear();
+                liveLength = 0;
+            }
+
+            for (Map.Entry<String, Integer> entry : lengths.entrySet()) {
+                updateLiveLength(entry.getKey(), entry.getValue());
+            }
+
+            values = Collections.unmodifiableMap(newValues);
+            changedKeys.addAll(changed);
+            queuedRecords.add(record);
+            return ++queuedSequence;
+        }
+    }
+
+    /**
+     * Appends the queued records up to the given sequence number to the log, in the order they
+     * were queued. A record that could not be written stays queued and is retried by the next
+     * append.
+     */
+    private void appendQueued(long sequence) throws IOException {
+        synchronized (appendLock) {
+            while (appendedSequence < sequence) {
+                ByteBuffer record;
+
+                synchronized (writeLock) {
+                    record = queuedRecords.element().duplicate();
+                }
+
+                try {
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                } catch (IOException e) {
+                    // Drop the partial record so the next one is not appended behind garbage
+                    channel.truncate(logLength);
+                    channel.position(logLength);
+                    throw e;
+                }
+
+                logLength += record.limit();
+                appendedSequence++;
+
+                synchronized (writeLock) {
+                    queuedRecords.remove();
+                    scheduleCompactionIfNeeded();
+                }
+            }
+        }
+    }
+
+    private void updateLiveLength(String key, int length) {
+        Integer oldLength = length == 0 ? entryLengths.remove(key) : entryLengths.put(key, length);
+        liveLength += length - (oldLength == null ? 0 : oldLength);
+    }
+
+    /**
+     * Waits until the record with the given sequence number is durable. Threads that arrive
+     * while an fsync is running wait for it and share the next one, so a burst of commits
+     * costs two fsyncs instead of one each.
+     */
+    private boolean sync(long sequence) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                synchronized (syncLock) {
+                    while (syncedSequence < sequence && syncing) {
+                        try {
+                            syncLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+
+                    if (syncedSequence >= sequence) {
+                        return true;
+                    }
+
+                    syncing = true;
+                }
+
+                FileChannel target;
+                long targetSequence;
+                boolean forced = false;
+
+                synchronized (appendLock) {
+                    target = channel;
+                    targetSequence = appendedSequence;
+                }
+
+                try {
+                    target.force(false);
+                    forced = true;
+                } catch (ClosedChannelException e) {
+                    // Replaced by a compaction, which synced every record it copied
+                    forced = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not sync " + file, e);
+                } finally {
+                    synchronized (syncLock) {
+                        syncing = false;
+
+                        if (forced && targetSequence > syncedSequence) {
+                            syncedSequence = targetSequence;
+                        }
+
+                        syncLock.notifyAll();
+                    }
+                }
+
+                if (!forced) {
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Appends the queued records and syncs them on the write thread. Applies that arrive before
+     * the write runs share it.
+     */
+    private void scheduleWrite() {
+        synchronized (writeLock) {
+            if (writeScheduled) {
+                return;
+            }
+
+            writeScheduled = true;
+        }
+
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long sequence;
+
+                synchronized (writeLock) {
+                    writeScheduled = false;
+                    sequence = queuedSequence;
+                }
+
+                try {
+                    appendQueued(sequence);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write " + file, e);
+                    return;
+                }
+
+                sync(sequence);
+            }
+        });
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled
+                || logLength < minCompactionLength
+                || logLength - liveLength < logLength * compactionThreshold) {
+            return;
+        }
+
+        compactionScheduled = true;
+
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not compact " + file, e);
+                } finally {
+                    synchronized (writeLock) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the live values into a new log and replaces the current one with it. Records that
+     * are appended while the new log is written are copied over before the logs are swapped.
+     */
+    /* default */ synchronized void compact() throws IOException {
+        Map<String, Object> snapshot;
+        long snapshotLength;
+
+        synchronized (appendLock) {
+            long sequence;
+
+            synchronized (writeLock) {
+                snapshot = values;
+                sequence = queuedSequence;
+            }
+
+            // The snapshot includes the queued records, so they have to be in the old log
+            appendQueued(sequence);
+            snapshotLength = logLength;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            writeEntry(out, entry.getKey(), entry.getValue());
+        }
+
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int bodyLength = record.limit() - RECORD_HEADER_LENGTH;
+        record.putInt(0, bodyLength);
+        record.putInt(4, crc32(record.array(), RECORD_HEADER_LENGTH, bodyLength));
+
+        FileChannel compacted = new RandomAccessFile(compactionFile, "rw").getChannel();
+        boolean swapped = false;
+
+        try {
+            compacted.truncate(0);
+            writeFileHeader(compacted);
+
+            while (record.hasRemaining()) {
+                compacted.write(record);
+            }
+
+            compacted.force(false);
+
+            synchronized (appendLock) {
+                long tailLength = logLength - snapshotLength;
+                long copied = 0;
+
+                while (copied < tailLength) {
+                    copied += channel.transferTo(snapshotLength + copied, tailLength - copied, compacted);
+                }
+
+                compacted.force(false);
+
+                if (!compactionFile.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+
+                IOException directoryFailure = null;
+
+                // Before the old log is closed, a sync that is still running on it must not count
+                try {
+                    syncDirectory();
+                } catch (IOException e) {
+                    directoryFailure = e;
+                }
+
+                FileChannel old = channel;
+                channel = compacted;
+                logLength = compacted.size();
+                channel.position(logLength);
+                swapped = true;
+                old.close();
+
+                if (directoryFailure != null) {
+                    throw directoryFailure;
+                }
+
+                synchronized (syncLock) {
+                    syncedSequence = appendedSequence;
+                    syncLock.notifyAll();
+                }
+            }
+        } finally {
+            if (!swapped) {
+                compacted.close();
+
+                if (!compactionFile.delete()) {
+                    Log.w(TAG, "Could not delete " + compactionFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Syncs the directory of the log, which makes a rename in it durable. Does nothing below
+     * API 21, where {@link Os} is not available.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void syncDirectory() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        String directory = file.getAbsoluteFile().getParent();
+
+        try {
+            FileDescriptor descriptor = Os.open(directory, OsConstants.O_RDONLY, 0);
+
+            try {
+                Os.fsync(descriptor);
+            } finally {
+                Os.close(descriptor);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Could not sync " + directory, e);
+        }
+    }
+
+    private void notifyListeners(final List<String> changedKeys) {
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+
+        final List<OnSharedPreferenceChangeListener> currentListeners;
+
+        synchronized (listeners) {
+            currentListeners = new ArrayList<>(listeners.keySet());
+        }
+
+        if (currentListeners.isEmpty()) {
+            return;
+        }
+
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                for (String key : changedKeys) {
+                    for (OnSharedPreferenceChangeListener listener : currentListeners) {
+                        listener.onSharedPreferenceChanged(LogStructuredPreferences.this, key);
+                    }
+                }
+            }
+        };
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notification.run();
+        } else {
+            mainHandler.post(notification);
+        }
+    }
+
+    private static void writeFileHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+        header.putInt(MAGIC).put((byte) FORMAT_VERSION).flip();
+
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, Object value) throws IOException {
+        if (value == REMOVED) {
+            out.writeByte(OP_REMOVE);
+            writeString(out, key);
+        } else if (value instanceof String) {
+            writeStringEntry(out, key, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(OP_INT);
+            writeString(out, key);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(OP_LONG);
+            writeString(out, key);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(OP_FLOAT);
+            writeString(out, key);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(OP_BOOLEAN);
+            writeString(out, key);
+            out.writeBoolean((Boolean) value);
+        } else {
+            @SuppressWarnings("unchecked")
+            Set<String> set = (Set<String>) value;
+            out.writeByte(OP_STRING_SET);
+            writeString(out, key);
+            out.writeInt(set.size());
+
+            for (String element : set) {
+                writeString(out, element);
+            }
+        }
+    }
+
+    /**
+     * Writes a string as raw bytes if it is Base64, optionally behind a
+     * {@code <flags>:[version:]} prefix like the values of {@link SecurePreferences}, and
+     * encoding the bytes again gives exactly the same string. Anything else is written as UTF-8.
+     */
+    private static void writeStringEntry(DataOutputStream out, String key, String value) throws IOException {
+        int start = findBase64Start(value);
+        String encoded = value.substring(start);
+
+        for (int flags : new int[] {Base64.DEFAULT, Base64.NO_WRAP}) {
+            byte[] raw;
+
+            try {
+                raw = Base64.decode(encoded, flags);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+
+            if (raw.length > 0 && Base64.encodeToString(raw, flags).equals(encoded)) {
+                out.writeByte(OP_BASE_64);
+                writeString(out, key);
+                out.writeByte(flags);
+                writeString(out, value.substring(0, start));
+                out.writeInt(raw.length);
+                out.write(raw);
+                return;
+            }
+        }
+
+        out.writeByte(OP_STRING);
+        writeString(out, key);
+        writeString(out, value);
+    }
+
+    /**
+     * @return The index after the numeric prefix segments, each ending with a separator, or 0
+     * if the string has none.
+     */
+    private static int findBase64Start(String value) {
+        int start = 0;
+
+        for (int segment = 0; segment < MAX_PREFIX_SEGMENTS; segment++) {
+            int separator = findPrefixSeparator(value, start);
+
+            if (separator < 0) {
+                break;
+            }
+
+            start = separator + 1;
+        }
+
+        return start;
+    }
+
+    /**
+     * @return The index of the separator that ends the digits at {@code start}, or -1 if there
+     * is none.
+     */
+    private static int findPrefixSeparator(String value, int start) {
+        int length = Math.min(value.length(), start + MAX_PREFIX_LENGTH + 1);
+
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c == PREFIX_SEPARATOR) {
+                return i;
+            } else if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private static Object readValue(DataInputStream in, int op) throws IOException {
+        switch (op) {
+            case OP_REMOVE:
+                return REMOVED;
+            case OP_STRING:
+                return readString(in);
+            case OP_BASE_64:
+                int flags = in.readUnsignedByte();
+                String prefix = readString(in);
+                byte[] raw = new byte[in.readInt()];
+                in.readFully(raw);
+                return prefix + Base64.encodeToString(raw, flags);
+            case OP_INT:
+                return in.readInt();
+            case OP_LONG:
+                return in.readLong();
+            case OP_FLOAT:
+                return in.readFloat();
+            case OP_BOOLEAN:
+                return in.readBoolean();
+            case OP_STRING_SET:
+                int size = in.readInt();
+                Set<String> set = new HashSet<>(size);
+
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(in));
+                }
+
+                return Collections.unmodifiableSet(set);
+            default:
+                throw new IOException("Unknown record entry " + op);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Collects modifications and hands them to {@link LogStructuredPreferences} as one record.
+     */
+    private class LogEditor implements Editor {
+        private final Map<String, Object> modifications = new HashMap<>();
+        private boolean cleared;
+
+        private synchronized Editor put(String key, Object value) {
+            modifications.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            cleared = true;
+            return this;
+        }
+
+        /**
+         * Appends the modifications and waits until they are durable, sharing the fsync with
+         * concurrent commits.
+         */
+        @Override
+        public boolean commit() {
+            List<String> changedKeys = new ArrayList<>();
+            long sequence;
+
+            try {
+                sequence = takeChanges(changedKeys);
+                // Also appends the records of earlier applies, which keeps the log in order
+                appendQueued(sequence);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + file, e);
+                notifyListeners(changedKeys);
+                return false;
+            }
+
+            boolean committed = sequence == 0 || sync(sequence);
+            notifyListeners(changedKeys);
+            return committed;
+        }
+
+        /**
+         * Applies the modifications in memory on the calling thread, and appends and syncs them
+         * on a background thread.
+         */
+        @Override
+        public void apply() {
+            List<String> changedKeys = new ArrayList<>();
+
+            try {
+                if (takeChanges(changedKeys) != 0) {
+                    scheduleWrite();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + file, e);
+                return;
+            }
+
+            notifyListeners(changedKeys);
+        }
+
+        private synchronized long takeChanges(List<String> changedKeys) throws IOException {
+            try {
+                return queue(modifications, cleared, changedKeys);
+            } finally {
+                modifications.clear();
+                cleared = false;
+            }
+        }
+    }
+}
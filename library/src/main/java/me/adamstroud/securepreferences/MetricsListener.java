@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+/**
+ * Receives timings and counts from {@link SecurePreferences}, see
+ * {@link SecurePreferences.Builder#setMetricsListener(MetricsListener)}. {@link MetricsRecorder}
+ * aggregates them into histograms and counters.
+ *
+ * <p>Callbacks are made synchronously on the thread that did the work, which may be a
+ * background thread, so implementations must be thread safe and fast. When no listener is set
+ * nothing is measured.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public interface MetricsListener {
+    /**
+     * The public operations that are timed.
+     */
+    enum Operation {
+        /**
+         * A read of a single preference, including {@code getStringSet()}.
+         */
+        GET,
+        GET_ALL,
+        GET_BATCH,
+        COMMIT,
+        APPLY
+    }
+
+    /**
+     * Called when an operation completed successfully.
+     *
+     * @param key The preference that was read, or null for operations on several preferences.
+     * @param durationNanos The wall clock time of the operation.
+     */
+    void onOperation(Operation operation, String key, long durationNanos);
+
+    /**
+     * Called when an operation failed.
+     *
+     * @param key The preference that was read, or null for operations on several preferences.
+     */
+    void onFailure(Operation operation, String key, SecurePreferencesException e);
+
+    /**
+     * Called for every value that was encrypted.
+     *
+     * @param plaintextBytes The size of the plaintext.
+     */
+    void onEncrypt(int plaintextBytes, long durationNanos);
+
+    /**
+     * Called for every value that was decrypted.
+     *
+     * @param plaintextBytes The size of the plaintext.
+     */
+    void onDecrypt(int plaintextBytes, long durationNanos);
+
+    /**
+     * Called every time the key is loaded from the AndroidKeyStore, which happens once and again
+     * after the key was invalidated.
+     */
+    void onKeyStoreLoad();
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MetricsListener} that aggregates everything it receives into latency histograms and
+ * counters, which can be read at any time with {@link #getSnapshot()}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class MetricsRecorder implements MetricsListener {
+    private final Map<Operation, LatencyHistogram> operationLatencies = new EnumMap<>(Operation.class);
+    private final LatencyHistogram encryptLatency = new LatencyHistogram();
+    private final LatencyHistogram decryptLatency = new LatencyHistogram();
+    private final AtomicLong bytesEncrypted = new AtomicLong();
+    private final AtomicLong bytesDecrypted = new AtomicLong();
+    private final AtomicLong keyStoreLoads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> keyAccessCounts = new ConcurrentHashMap<>();
+
+    public MetricsRecorder() {
+        for (Operation operation : Operation.values()) {
+            operationLatencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void onOperation(Operation operation, String key, long durationNanos) {
+        operationLatencies.get(operation).record(durationNanos);
+
+        if (key != null) {
+            AtomicLong accessCount = keyAccessCounts.get(key);
+
+            if (accessCount == null) {
+                AtomicLong newCount = new AtomicLong();
+                accessCount = keyAccessCounts.putIfAbsent(key, newCount);
+
+                if (accessCount == null) {
+                    accessCount = newCount;
+                }
+            }
+
+            accessCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onFailure(Operation operation, String key, SecurePreferencesException e) {
+        failures.incrementAndGet();
+    }
+
+    @Override
+    public void onEncrypt(int plaintextBytes, long durationNanos) {
+        encryptLatency.record(durationNanos);
+        bytesEncrypted.addAndGet(plaintextBytes);
+    }
+
+    @Override
+    public void onDecrypt(int plaintextBytes, long durationNanos) {
+        decryptLatency.record(durationNanos);
+        bytesDecrypted.addAndGet(plaintextBytes);
+    }
+
+    @Override
+    public void onKeyStoreLoad() {
+        keyStoreLoads.incrementAndGet();
+    }
+
+    /**
+     * Gets the current values. Values that are recorded while the snapshot is taken may or may
+     * not be part of it.
+     */
+    public Snapshot getSnapshot() {
+        Map<Operation, Latency> latencies = new EnumMap<>(Operation.class);
+
+        for (Map.Entry<Operation, LatencyHistogram> entry : operationLatencies.entrySet()) {
+            latencies.put(entry.getKey(), new Latency(entry.getValue()));
+        }
+
+        Map<String, Long> accessCounts = new HashMap<>(keyAccessCounts.size());
+
+        for (Map.Entry<String, AtomicLong> entry : keyAccessCounts.entrySet()) {
+            accessCounts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return new Snapshot(Collections.unmodifiableMap(latencies),
+                new Latency(encryptLatency),
+                new Latency(decryptLatency),
+                bytesEncrypted.get(),
+                bytesDecrypted.get(),
+                keyStoreLoads.get(),
+                failures.get(),
+                Collections.unmodifiableMap(accessCounts));
+    }
+
+    /**
+     * The distribution of a duration. All values are in nanoseconds.
+     */
+    public static class Latency {
+        private final long count;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        private Latency(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.p50 = histogram.getPercentile(0.5);
+            this.p99 = histogram.getPercentile(0.99);
+            this.max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Latency{count=" + count + ", p50=" + p50 + ", p99=" + p99 + ", max=" + max + '}';
+        }
+    }
+
+    /**
+     * The values of a {@link MetricsRecorder} at one point in time.
+     */
+    public static class Snapshot {
+        private final Map<Operation, Latency> operationLatencies;
+        private final Latency encryptLatency;
+        private final Latency decryptLatency;
+        private final long bytesEncrypted;
+        private final long bytesDecrypted;
+        private final long keyStoreLoads;
+        private final long failures;
+        private final Map<String, Long> keyAccessCounts;
+
+        private Snapshot(Map<Operation, Latency> operationLatencies,
+                         Latency encryptLatency,
+                         Latency decryptLatency,
+                         long bytesEncrypted,
+                         long bytesDecrypted,
+                         long keyStoreLoads,
+                         long failures,
+                         Map<String, Long> keyAccessCounts) {
+            this.operationLatencies = operationLatencies;
+            this.encryptLatency = encryptLatency;
+            this.decryptLatency = decryptLatency;
+            this.bytesEncrypted = bytesEncrypted;
+            this.bytesDecrypted = bytesDecrypted;
+            this.keyStoreLoads = keyStoreLoads;
+            this.failures = failures;
+            this.keyAccessCounts = keyAccessCounts;
+        }
+
+        public Latency getLatency(Operation operation) {
+            return operationLatencies.get(operation);
+        }
+
+        /**
+         * The latency of encrypting a single value, {@link Latency#getCount()} is the number of
+         * encryptions.
+         */
+        public Latency getEncryptLatency() {
+            return encryptLatency;
+        }
+
+        /**
+         * The latency of decrypting a single value, {@link Latency#getCount()} is the number of
+         * decryptions.
+         */
+        public Latency getDecryptLatency() {
+            return decryptLatency;
+        }
+
+        public long getBytesEncrypted() {
+            return bytesEncrypted;
+        }
+
+        public long getBytesDecrypted() {
+            return bytesDecrypted;
+        }
+
+        public long getKeyStoreLoads() {
+            return keyStoreLoads;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * The number of successful single preference reads, keyed by preference.
+         */
+        public Map<String, Long> getKeyAccessCounts() {
+            return keyAccessCounts;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Plaintext writes that were handed to a {@link SecureEditor} but have not been encrypted and
+ * written to the backing preferences yet. Reads consult these first so that a value is visible
+ * as soon as {@code apply()} returns, just like with regular {@code SharedPreferences}.
+ *
+ * <p>Every change builds a new immutable {@link Snapshot} of the merged batches and publishes it
+ * through a volatile field, so reads never lock. Changes are rare compared to reads and there
+ * are only ever a few batches pending.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class PendingWrites {
+    /**
+     * Returned by {@link #get(String)} if the key is not affected by any pending write.
+     */
+    /* default */ static final Object NOT_PENDING = new Object();
+
+    /**
+     * Marks a key that was removed, either explicitly or by a pending clear.
+     */
+    /* default */ static final Object REMOVED = new Object();
+
+    private final LinkedList<Batch> batches = new LinkedList<>();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /* default */ synchronized void add(Batch batch) {
+        batches.addLast(batch);
+        snapshot = Snapshot.merge(batches);
+    }
+
+    /* default */ synchronized void remove(Batch batch) {
+        batches.remove(batch);
+        snapshot = Snapshot.merge(batches);
+    }
+
+    /* default */ boolean isEmpty() {
+        return snapshot == Snapshot.EMPTY;
+    }
+
+    /**
+     * Gets the current pending writes. The snapshot never changes, a new one is published for
+     * every batch that is added or removed.
+     */
+    /* default */ Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Gets the newest pending value for a key.
+     *
+     * @return The plaintext value ({@code byte[]} or {@code Set<String>}), {@link #REMOVED} or
+     * {@link #NOT_PENDING}.
+     */
+    /* default */ Object get(String key) {
+        return snapshot.get(key);
+    }
+
+    /**
+     * The pending writes at one point in time, with every batch merged in order.
+     */
+    /* default */ static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(Collections.<String, Object>emptyMap(), false);
+
+        private final Map<String, Object> values;
+        private final boolean cleared;
+
+        private Snapshot(Map<String, Object> values, boolean cleared) {
+            this.values = values;
+            this.cleared = cleared;
+        }
+
+        private static Snapshot merge(LinkedList<Batch> batches) {
+            if (batches.isEmpty()) {
+                return EMPTY;
+            }
+
+            Map<String, Object> values = new HashMap<>();
+            boolean cleared = false;
+
+            for (Batch batch : batches) {
+                if (batch.cleared) {
+                    values.clear();
+                    cleared = true;
+                }
+
+                values.putAll(batch.values);
+            }
+
+            return new Snapshot(values, cleared);
+        }
+
+        /**
+         * @see PendingWrites#get(String)
+         */
+        /* default */ Object get(String key) {
+            Object value = values.get(key);
+
+            if (value != null) {
+                return value;
+            }
+
+            return cleared ? REMOVED : NOT_PENDING;
+        }
+
+        /* default */ boolean isEmpty() {
+            return this == EMPTY;
+        }
+
+        /**
+         * If every value that was stored before the pending writes is removed.
+         */
+        /* default */ boolean isCleared() {
+            return cleared;
+        }
+
+        /**
+         * Gets the newest pending value of every key, see {@link #get(String)}. Keys that are
+         * only removed by a clear are not included.
+         */
+        /* default */ Map<String, Object> getValues() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        /**
+         * Applies the pending writes on top of values read from the backing preferences. The
+         * pending arrays are shared, they must not be handed out as they are.
+         */
+        /* default */ void applyTo(Map<String, Object> values) {
+            if (cleared) {
+                values.clear();
+            }
+
+            for (Map.Entry<String, Object> entry : this.values.entrySet()) {
+                Object value = entry.getValue();
+
+                if (value == REMOVED) {
+                    values.remove(entry.getKey());
+                } else {
+                    values.put(entry.getKey(), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * The modifications made by one {@link SecureEditor} transaction.
+     */
+    /* default */ static class Batch {
+        private final Map<String, Object> values;
+        private final boolean cleared;
+
+        /**
+         * @param values Plaintext values keyed by preference. Each value is either a
+         * {@code byte[]}, an unmodifiable {@code Set<String>} or {@link #REMOVED}.
+         * @param cleared If all existing preferences are removed before the values are written.
+         */
+        /* default */ Batch(Map<String, Object> values, boolean cleared) {
+            this.values = Collections.unmodifiableMap(values);
+            this.cleared = cleared;
+        }
+
+        /* default */ Map<String, Object> getValues() {
+            return values;
+        }
+
+        /* default */ boolean isCleared() {
+            return cleared;
+        }
+    }
+}
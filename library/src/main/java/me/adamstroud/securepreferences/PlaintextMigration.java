@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Moves the values of plaintext {@link SharedPreferences} into {@link SecurePreferences}, keeping
+ * their types. Values are written in batches of consecutive keys, and several batches are
+ * encrypted at the same time on the write threads of the target.
+ *
+ * <p>Every batch is read back and compared with the source once it is committed. The last
+ * verified key is stored in the source, so a migration that was interrupted skips the keys it
+ * already moved when it is started again. The source must not be modified while it is migrated,
+ * and it must not be the backing preferences of the target.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class PlaintextMigration {
+    /* default */ static final String CHECKPOINT_PREFERENCE = "me.adamstroud.securepreferences.MIGRATION";
+
+    private final SharedPreferences source;
+    private final SecurePreferences target;
+    private final int batchSize;
+    private final int maxBatchesInFlight;
+    private final boolean deleteSource;
+    private final ProgressListener progressListener;
+
+    /**
+     * Receives the progress of a migration, on the thread that runs it.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after every verified batch.
+         *
+         * @param migratedCount The number of values that have been moved so far, including the
+         * ones moved before the migration was interrupted.
+         * @param totalCount The number of values in the source.
+         */
+        void onProgress(int migratedCount, int totalCount);
+    }
+
+    private PlaintextMigration(Builder builder) {
+        this.source = builder.source;
+        this.target = builder.target;
+        this.batchSize = builder.batchSize;
+        this.maxBatchesInFlight = builder.maxBatchesInFlight;
+        this.deleteSource = builder.deleteSource;
+        this.progressListener = builder.progressListener;
+    }
+
+    /**
+     * Moves every value that has not been moved yet. Blocks until the values are written and
+     * verified, so it must not be called on the main thread.
+     *
+     * @return The number of values that were moved by this call.
+     * @throws InterruptedException If the thread was interrupted. Batches that were verified are
+     * kept and skipped by the next call.
+     * @throws SecurePreferencesException If a value could not be written, or did not read back
+     * as the value in the source. The source is never deleted in that case.
+     */
+    public int migrate() throws InterruptedException, SecurePreferencesException {
+        // Sorted, so the checkpoint splits the keys into the ones that are done and the rest
+        TreeMap<String, Object> values = new TreeMap<>(source.getAll());
+        String checkpoint = (String) values.remove(CHECKPOINT_PREFERENCE);
+        int totalCount = values.size();
+        Map<String, Object> remaining = checkpoint == null ? values : values.tailMap(checkpoint, false);
+        int migratedCount = totalCount - remaining.size();
+        int movedCount = 0;
+
+        Deque<InFlightBatch> inFlight = new ArrayDeque<>(maxBatchesInFlight);
+        List<String> keys = new ArrayList<>(batchSize);
+        SecurePreferences.SecureEditor editor = target.edit();
+
+        for (Map.Entry<String, Object> entry : remaining.entrySet()) {
+            put(editor, entry.getKey(), entry.getValue());
+            keys.add(entry.getKey());
+
+            if (keys.size() == batchSize) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (inFlight.size() == maxBatchesInFlight) {
+                    migratedCount += verify(inFlight.removeFirst(), values, totalCount, migratedCount);
+                }
+
+                inFlight.addLast(new InFlightBatch(keys, editor.commitAsync()));
+                movedCount += keys.size();
+                keys = new ArrayList<>(batchSize);
+                // Batches in flight never share an editor
+                editor = target.edit();
+            }
+        }
+
+        if (!keys.isEmpty()) {
+            inFlight.addLast(new InFlightBatch(keys, editor.commitAsync()));
+            movedCount += keys.size();
+        }
+
+        while (!inFlight.isEmpty()) {
+            migratedCount += verify(inFlight.removeFirst(), values, totalCount, migratedCount);
+        }
+
+        if (deleteSource) {
+            if (!source.edit().clear().commit()) {
+                throw new SecurePreferencesException("Could not delete migrated preferences");
+            }
+        } else if (!source.edit().remove(CHECKPOINT_PREFERENCE).commit()) {
+            throw new SecurePreferencesException("Could not finish migration");
+        }
+
+        return movedCount;
+    }
+
+    /**
+     * Waits for a batch to be written and compares it with the source. Batches are verified in
+     * the order of their keys, so the checkpoint never skips a batch that may not be written.
+     *
+     * @return The number of values in the batch.
+     */
+    private int verify(InFlightBatch batch,
+                       Map<String, Object> values,
+                       int totalCount,
+                       int migratedCount) throws InterruptedException {
+        try {
+            if (!batch.committed.get()) {
+                throw new SecurePreferencesException("Could not write migrated preferences");
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SecurePreferencesException) {
+                throw (SecurePreferencesException) e.getCause();
+            }
+
+            throw new SecurePreferencesException("Could not write migrated preferences", e.getCause());
+        }
+
+        Map<String, ?> migrated = target.getBatchTyped(batch.keys);
+
+        for (String key : batch.keys) {
+            if (!values.get(key).equals(migrated.get(key))) {
+                throw new SecurePreferencesException("Migrated preference " + key + " does not match its source");
+            }
+        }
+
+        // Only a hint, losing it repeats some of the work
+        source.edit().putString(CHECKPOINT_PREFERENCE, batch.keys.get(batch.keys.size() - 1)).apply();
+
+        if (progressListener != null) {
+            progressListener.onProgress(migratedCount + batch.keys.size(), totalCount);
+        }
+
+        return batch.keys.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(SharedPreferences.Editor editor, String key, Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported type of preference " + key);
+        }
+    }
+
+    private static class InFlightBatch {
+        private final List<String> keys;
+        private final Future<Boolean> committed;
+
+        private InFlightBatch(List<String> keys, Future<Boolean> committed) {
+            this.keys = keys;
+            this.committed = committed;
+        }
+    }
+
+    /**
+     * Configures and creates {@link PlaintextMigration}.
+     */
+    public static class Builder {
+        private final SharedPreferences source;
+        private final SecurePreferences target;
+        private int batchSize = 64;
+        private int maxBatchesInFlight = 4;
+        private boolean deleteSource;
+        private ProgressListener progressListener;
+
+        /**
+         * @param source The plaintext preferences to move.
+         * @param target The preferences that receive the values.
+         */
+        public Builder(SharedPreferences source, SecurePreferences target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        /**
+         * Sets the number of values written in a single commit. Defaults to 64.
+         */
+        public Builder setBatchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of batches that are encrypted and written at the same time. Defaults
+         * to 4, the number of write threads of {@link SecurePreferences}.
+         */
+        public Builder setMaxBatchesInFlight(int maxBatchesInFlight) {
+            if (maxBatchesInFlight < 1) {
+                throw new IllegalArgumentException("maxBatchesInFlight must be positive");
+            }
+
+            this.maxBatchesInFlight = maxBatchesInFlight;
+            return this;
+        }
+
+        /**
+         * Clears the source once every value has been moved and verified. Disabled by default.
+         */
+        public Builder setDeleteSource(boolean deleteSource) {
+            this.deleteSource = deleteSource;
+            return this;
+        }
+
+        public Builder setProgressListener(ProgressListener progressListener) {
+            this.progressListener = progressListener;
+            return this;
+        }
+
+        public PlaintextMigration build() {
+            return new PlaintextMigration(this);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Turns plaintext preference values into the strings that are stored in the backing preferences
+ * and back again.
+ *
+ * <p>Values written by the original RSA implementation are stored as plain Base64. Every other
+ * format is stored as {@code <flags>:<Base64>}, where the flags describe how the payload was
+ * produced. Since ':' is not part of the Base64 alphabet the two can never be confused.</p>
+ *
+ * <p>Values encrypted with a key version other than 0 carry {@link #FLAG_KEY_VERSION} and are
+ * stored as {@code <flags>:<key version>:<Base64>}, see {@link KeyRing}.</p>
+ *
+ * <p>Decrypted values always carry a {@link ValueCodec} header. Values that were encrypted
+ * without {@link #FLAG_TYPED} get the legacy header added.</p>
+ *
+ * <p>Values of at least the compression threshold are deflated before they are encrypted and
+ * carry {@link #FLAG_DEFLATE}, unless deflating does not make them smaller. The payload is
+ * written without line breaks. Values written with line breaks stay readable.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class PreferenceCipher {
+    /* default */ static final int FLAG_AES_GCM = 1;
+    /* default */ static final int FLAG_TYPED = 2;
+    /* default */ static final int FLAG_CHUNKED = 4;
+    /* default */ static final int FLAG_KEY_VERSION = 8;
+    /* default */ static final int FLAG_DEFLATE = 16;
+
+    private static final int BASE_64_FLAGS = Base64.NO_WRAP;
+    private static final char FLAGS_SEPARATOR = ':';
+    private static final int MAX_FLAGS_LENGTH = 4;
+
+    private final KeyRing keyRing;
+    private final boolean envelopeWrites;
+    private final int compressionThreshold;
+    private final MetricsListener metricsListener;
+
+    /**
+     * @param compressionThreshold The size from which values are deflated, 0 to never deflate
+     * them.
+     * @param metricsListener Receives the timing of every value, may be null.
+     */
+    /* default */ PreferenceCipher(KeyRing keyRing,
+                                   boolean envelopeWrites,
+                                   int compressionThreshold,
+                                   MetricsListener metricsListener) {
+        this.keyRing = keyRing;
+        this.envelopeWrites = envelopeWrites;
+        this.compressionThreshold = compressionThreshold;
+        this.metricsListener = metricsListener;
+    }
+
+    /* default */ String encrypt(byte... plaintext) throws SecurePreferencesException {
+        if (metricsListener == null) {
+            return encryptValue(plaintext);
+        }
+
+        long start = System.nanoTime();
+        String ciphertext = encryptValue(plaintext);
+        metricsListener.onEncrypt(plaintext.length, System.nanoTime() - start);
+        return ciphertext;
+    }
+
+    /* default */ byte[] decrypt(String ciphertext) throws SecurePreferencesException {
+        if (metricsListener == null) {
+            return decryptValue(ciphertext);
+        }
+
+        long start = System.nanoTime();
+        byte[] plaintext = decryptValue(ciphertext);
+        metricsListener.onDecrypt(plaintext.length, System.nanoTime() - start);
+        return plaintext;
+    }
+
+    /**
+     * Decrypts a value into the plaintext buffer of {@code buffers} instead of a new array. Only
+     * envelope encrypted values are decrypted without allocating arrays, any other value is
+     * decrypted as usual, copied into the buffer and wiped.
+     *
+     * @return The length of the plaintext in the buffer, including its {@link ValueCodec} header.
+     */
+    /* default */ int decrypt(String ciphertext, ScratchBuffers buffers) throws SecurePreferencesException {
+        if (metricsListener == null) {
+            return decryptValue(ciphertext, buffers);
+        }
+
+        long start = System.nanoTime();
+        int length = decryptValue(ciphertext, buffers);
+        metricsListener.onDecrypt(length, System.nanoTime() - start);
+        return length;
+    }
+
+    private String encryptValue(byte[] plaintext) throws SecurePreferencesException {
+        byte[] deflated = compressionThreshold > 0 && plaintext.length >= compressionThreshold
+                ? deflate(plaintext)
+                : null;
+
+        try {
+            if (deflated == null) {
+                return encryptValue(FLAG_TYPED, plaintext);
+            }
+
+            return encryptValue(FLAG_TYPED | FLAG_DEFLATE, deflated);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new SecurePreferencesException("Could not encrypt preference", e);
+        } finally {
+            if (deflated != null) {
+                Arrays.fill(deflated, (byte) 0);
+            }
+        }
+    }
+
+    private String encryptValue(int flags, byte[] plaintext) throws GeneralSecurityException, IOException {
+        KeyRing.KeyVersion key = keyRing.getCurrent();
+
+        if (envelopeWrites) {
+            return format(flags | FLAG_AES_GCM, key, key.getEnvelopeCipher().encrypt(plaintext));
+        }
+
+        CryptoBackend cryptoBackend = key.getBackend();
+        int maxPlaintextLength = cryptoBackend.getMaxPlaintextLength();
+
+        if (plaintext.length <= maxPlaintextLength) {
+            return format(flags, key, cryptoBackend.encrypt(plaintext));
+        } else {
+            return format(flags | FLAG_CHUNKED, key, encryptChunks(cryptoBackend, plaintext, maxPlaintextLength));
+        }
+    }
+
+    private byte[] decryptValue(String ciphertext) throws SecurePreferencesException {
+        try {
+            int separator = findSeparator(ciphertext);
+
+            if (separator < 0) {
+                return ValueCodec.fromLegacy(keyRing.get(0).getBackend().decrypt(Base64.decode(ciphertext, BASE_64_FLAGS)));
+            }
+
+            int flags = parseInt(ciphertext, 0, separator);
+            int payloadStart = separator + 1;
+            int version = 0;
+
+            if ((flags & FLAG_KEY_VERSION) != 0) {
+                int versionSeparator = findVersionSeparator(ciphertext, payloadStart);
+                version = parseInt(ciphertext, payloadStart, versionSeparator);
+                payloadStart = versionSeparator + 1;
+            }
+
+            KeyRing.KeyVersion key = keyRing.get(version);
+            byte[] payload = Base64.decode(ciphertext.substring(payloadStart), BASE_64_FLAGS);
+            byte[] plaintext;
+
+            if ((flags & FLAG_AES_GCM) != 0) {
+                plaintext = key.getEnvelopeCipher().decrypt(payload);
+            } else if ((flags & FLAG_CHUNKED) != 0) {
+                plaintext = decryptChunks(key.getBackend(), payload);
+            } else {
+                plaintext = key.getBackend().decrypt(payload);
+            }
+
+            if ((flags & FLAG_DEFLATE) != 0) {
+                byte[] deflated = plaintext;
+                plaintext = inflate(deflated);
+                Arrays.fill(deflated, (byte) 0);
+            }
+
+            return (flags & FLAG_TYPED) != 0 ? plaintext : ValueCodec.fromLegacy(plaintext);
+        } catch (GeneralSecurityException | IOException | DataFormatException | IllegalArgumentException e) {
+            throw new SecurePreferencesException("Could not decrypt preference", e);
+        }
+    }
+
+    private int decryptValue(String ciphertext, ScratchBuffers buffers) throws SecurePreferencesException {
+        int separator = findSeparator(ciphertext);
+        int flags = separator < 0 ? 0 : parseInt(ciphertext, 0, separator);
+
+        if ((flags & FLAG_AES_GCM) == 0 || (flags & FLAG_TYPED) == 0 || (flags & FLAG_DEFLATE) != 0) {
+            byte[] plaintext = decryptValue(ciphertext);
+            System.arraycopy(plaintext, 0, buffers.getPlaintext(plaintext.length), 0, plaintext.length);
+            Arrays.fill(plaintext, (byte) 0);
+            return plaintext.length;
+        }
+
+        try {
+            int payloadStart = separator + 1;
+            int version = 0;
+
+            if ((flags & FLAG_KEY_VERSION) != 0) {
+                int versionSeparator = findVersionSeparator(ciphertext, payloadStart);
+                version = parseInt(ciphertext, payloadStart, versionSeparator);
+                payloadStart = versionSeparator + 1;
+            }
+
+            int length = buffers.decodeBase64(ciphertext, payloadStart);
+
+            return keyRing.get(version)
+                    .getEnvelopeCipher()
+                    .decrypt(buffers.getPayload(), length, buffers.getPlaintext(length));
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            throw new SecurePreferencesException("Could not decrypt preference", e);
+        }
+    }
+
+    /**
+     * Deflates a value.
+     *
+     * @return The deflated value, or null if it is not smaller than the value.
+     */
+    private static byte[] deflate(byte[] plaintext) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        try {
+            deflater.setInput(plaintext);
+            deflater.finish();
+
+            // Anything that does not fit is not worth it
+            byte[] deflated = new byte[plaintext.length - 1];
+            int length = deflater.deflate(deflated);
+
+            if (!deflater.finished()) {
+                Arrays.fill(deflated, (byte) 0);
+                return null;
+            }
+
+            byte[] result = Arrays.copyOf(deflated, length);
+            Arrays.fill(deflated, (byte) 0);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+
+        try {
+            inflater.setInput(deflated);
+            byte[] plaintext = new byte[Math.max(deflated.length * 4, 64)];
+            int length = 0;
+
+            while (!inflater.finished()) {
+                if (length == plaintext.length) {
+                    byte[] grown = Arrays.copyOf(plaintext, plaintext.length * 2);
+                    Arrays.fill(plaintext, (byte) 0);
+                    plaintext = grown;
+                }
+
+                int inflated = inflater.inflate(plaintext, length, plaintext.length - length);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated deflated value");
+                }
+
+                length += inflated;
+            }
+
+            if (length == plaintext.length) {
+                return plaintext;
+            }
+
+            byte[] result = Arrays.copyOf(plaintext, length);
+            Arrays.fill(plaintext, (byte) 0);
+            return result;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Encrypts a value that does not fit into a single block of the backend as a sequence of
+     * blocks, each stored as its length followed by its ciphertext.
+     */
+    private static byte[] encryptChunks(CryptoBackend cryptoBackend, byte[] plaintext, int maxPlaintextLength)
+            throws GeneralSecurityException, IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (int offset = 0; offset < plaintext.length; offset += maxPlaintextLength) {
+            byte[] chunk = Arrays.copyOfRange(plaintext,
+                    offset,
+                    Math.min(offset + maxPlaintextLength, plaintext.length));
+            byte[] ciphertext = cryptoBackend.encrypt(chunk);
+
+            out.writeInt(ciphertext.length);
+            out.write(ciphertext);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws SecurePreferencesException If the length of a block does not fit into what is
+     * left of the payload.
+     */
+    private static byte[] decryptChunks(CryptoBackend cryptoBackend, byte[] payload)
+            throws GeneralSecurityException, IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream(payload.length);
+
+        while (in.available() > 0) {
+            int length = in.readInt();
+
+            if (length < 0 || length > in.available()) {
+                throw new SecurePreferencesException("Invalid chunk length " + length);
+            }
+
+            byte[] ciphertext = new byte[length];
+            in.readFully(ciphertext);
+            plaintext.write(cryptoBackend.decrypt(ciphertext));
+        }
+
+        return plaintext.toByteArray();
+    }
+
+    /**
+     * Resolves the data key and ciphers ahead of the first value. The backend has to be
+     * initialized already. The envelope cipher is only touched in envelope mode, which is the
+     * only mode that requires API 19.
+     */
+    /* default */ void warmUp() throws GeneralSecurityException, IOException {
+        KeyRing.KeyVersion key = keyRing.getCurrent();
+
+        if (envelopeWrites) {
+            key.getEnvelopeCipher().warmUp();
+        } else if (key.getBackend() instanceof AndroidKeyStoreBackend) {
+            ((AndroidKeyStoreBackend) key.getBackend()).warmUp();
+        }
+    }
+
+    /**
+     * Checks if a value was encrypted with the current key version. Does not decrypt anything.
+     */
+    /* default */ boolean isCurrentKeyVersion(String ciphertext) {
+        return getKeyVersion(ciphertext) == keyRing.getCurrent().getVersion();
+    }
+
+    /**
+     * Gets the key version of a value from its flags.
+     *
+     * @return The key version, or -1 if the value is malformed.
+     */
+    private static int getKeyVersion(String ciphertext) {
+        int separator = findSeparator(ciphertext);
+
+        try {
+            if (separator < 0 || (parseInt(ciphertext, 0, separator) & FLAG_KEY_VERSION) == 0) {
+                return 0;
+            }
+
+            return parseInt(ciphertext, separator + 1, findVersionSeparator(ciphertext, separator + 1));
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks if a key of the backing preferences is used internally and must not be exposed.
+     */
+    /* default */ boolean isReservedKey(String key) {
+        return KeyRing.isReservedKey(key) || PrefetchProfile.PROFILE_PREFERENCE.equals(key);
+    }
+
+    /**
+     * Restores internal entries into an editor that has been cleared.
+     */
+    /* default */ void onClear(SharedPreferences.Editor editor) {
+        keyRing.getCurrent().getEnvelopeCipher().restoreDataKey(editor);
+        keyRing.onClear(editor);
+    }
+
+    private static String format(int flags, KeyRing.KeyVersion key, byte[] payload) {
+        String encodedPayload = Base64.encodeToString(payload, BASE_64_FLAGS);
+
+        if (key.getVersion() == 0) {
+            return Integer.toString(flags) + FLAGS_SEPARATOR + encodedPayload;
+        }
+
+        return Integer.toString(flags | FLAG_KEY_VERSION)
+                + FLAGS_SEPARATOR + key.getVersion()
+                + FLAGS_SEPARATOR + encodedPayload;
+    }
+
+    private static int findSeparator(String ciphertext) {
+        int length = Math.min(ciphertext.length(), MAX_FLAGS_LENGTH + 1);
+
+        for (int i = 0; i < length; i++) {
+            char c = ciphertext.charAt(i);
+
+            if (c == FLAGS_SEPARATOR) {
+                return i > 0 ? i : -1;
+            } else if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int findVersionSeparator(String ciphertext, int start) {
+        int versionSeparator = ciphertext.indexOf(FLAGS_SEPARATOR, start);
+
+        if (versionSeparator < 0) {
+            throw new IllegalArgumentException("Missing key version");
+        }
+
+        return versionSeparator;
+    }
+
+    /**
+     * Parses a decimal number without creating a substring.
+     */
+    private static int parseInt(String s, int start, int end) {
+        if (start == end || end - start > 9) {
+            throw new NumberFormatException("Invalid number in preference");
+        }
+
+        int value = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Invalid number in preference");
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+}
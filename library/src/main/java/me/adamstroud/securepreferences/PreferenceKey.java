@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a method of a {@link TypedPreferences} interface to a preference. The method takes no
+ * parameters and returns {@code int}, {@code long}, {@code float}, {@code boolean},
+ * {@code String} or {@code Set<String>}. Its name, without a {@code get} or {@code is}
+ * prefix, names the setter and remover of the generated editor.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface PreferenceKey {
+    /**
+     * Marks a preference without an explicit default.
+     */
+    String NO_DEFAULT = "\u0000";
+
+    /**
+     * The key of the preference.
+     */
+    String value();
+
+    /**
+     * The value returned if the preference does not exist, written the way it would be in Java
+     * source, e.g. {@code 42}, {@code 1.5}, {@code true} or {@code guest}. Defaults to 0,
+     * false or null depending on the type. Sets can not have a default other than null.
+     */
+    String defaultValue() default NO_DEFAULT;
+
+    /**
+     * Keeps the value in memory after the first read, so later reads do not decrypt it. The
+     * value is forgotten when the preference changes.
+     */
+    boolean memoize() default false;
+}
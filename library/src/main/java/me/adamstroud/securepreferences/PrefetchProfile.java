@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the keys that are read right after {@link SecurePreferences} is created, so the next
+ * launch can prefetch them. Recording stops once enough keys were read, or when the recording
+ * window ends, and the keys are then stored in the backing preferences if they differ from the
+ * stored ones.
+ *
+ * <p>Only the names of the keys are stored, which the backing preferences hold in plaintext
+ * anyway. Clearing the preferences keeps the stored keys, see {@link #onClear(SharedPreferences.Editor)}.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class PrefetchProfile {
+    /* default */ static final String PROFILE_PREFERENCE = "me.adamstroud.securepreferences.PREFETCH_PROFILE";
+
+    private static final String TAG = PrefetchProfile.class.getSimpleName();
+
+    private final SharedPreferences sharedPreferences;
+    private final int maxKeys;
+    private final long deadlineNanos;
+    private final Set<String> storedKeys;
+
+    // Guarded by this
+    private final Set<String> recordedKeys = new LinkedHashSet<>();
+
+    private volatile boolean recording = true;
+
+    /**
+     * @param maxKeys The number of keys after which recording stops.
+     * @param windowMillis How long reads are recorded after construction.
+     */
+    /* default */ PrefetchProfile(SharedPreferences sharedPreferences, int maxKeys, long windowMillis) {
+        this.sharedPreferences = sharedPreferences;
+        this.maxKeys = maxKeys;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.storedKeys = new HashSet<>(sharedPreferences.getStringSet(PROFILE_PREFERENCE,
+                Collections.<String>emptySet()));
+    }
+
+    /**
+     * Gets the keys that were recorded by the previous launch.
+     */
+    /* default */ Set<String> getStoredKeys() {
+        return Collections.unmodifiableSet(storedKeys);
+    }
+
+    /**
+     * Stops recording when the window ends, even if no key is read after it. The handler only
+     * keeps the time, the keys are stored on the executor.
+     */
+    /* default */ void scheduleFinish(Handler handler, final Executor executor) {
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (PrefetchProfile.this) {
+                                if (recording) {
+                                    finish();
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Could not store prefetch profile", e);
+                }
+            }
+        }, Math.max(delayMillis, 0));
+    }
+
+    /**
+     * Keeps the stored keys in a backing editor that is cleared, the way the data key is kept.
+     */
+    /* default */ void onClear(SharedPreferences.Editor editor) {
+        Set<String> keys = sharedPreferences.getStringSet(PROFILE_PREFERENCE, null);
+
+        if (keys != null) {
+            editor.putStringSet(PROFILE_PREFERENCE, new HashSet<>(keys));
+        }
+    }
+
+    /**
+     * Records a key that was read by the app.
+     */
+    /* default */ void onRead(String key) {
+        if (!recording) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!recording) {
+                return;
+            }
+
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                finish();
+                return;
+            }
+
+            recordedKeys.add(key);
+
+            if (recordedKeys.size() >= maxKeys) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        recording = false;
+
+        if (!recordedKeys.equals(storedKeys)) {
+            sharedPreferences.edit().putStringSet(PROFILE_PREFERENCE, new HashSet<>(recordedKeys)).apply();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.util.Arrays;
+
+/**
+ * Buffers of the calling thread that reads decode and decrypt into, so that a read does not
+ * allocate arrays for the payload or the plaintext. The buffers grow to the largest value read
+ * on the thread and are kept for its lifetime.
+ *
+ * <p>The plaintext buffer holds secrets. Whoever fills it has to call
+ * {@link #wipePlaintext(int)} before returning.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ final class ScratchBuffers {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int[] BASE_64_VALUES = new int[128];
+    private static final int WHITESPACE = -2;
+    private static final int INVALID = -1;
+
+    private static final ThreadLocal<ScratchBuffers> BUFFERS = new ThreadLocal<ScratchBuffers>() {
+        @Override
+        protected ScratchBuffers initialValue() {
+            return new ScratchBuffers();
+        }
+    };
+
+    static {
+        Arrays.fill(BASE_64_VALUES, INVALID);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE_64_VALUES[alphabet.charAt(i)] = i;
+        }
+
+        BASE_64_VALUES['\n'] = WHITESPACE;
+        BASE_64_VALUES['\r'] = WHITESPACE;
+        BASE_64_VALUES[' '] = WHITESPACE;
+    }
+
+    private byte[] payload = new byte[INITIAL_CAPACITY];
+    private byte[] plaintext = new byte[INITIAL_CAPACITY];
+
+    private ScratchBuffers() {
+    }
+
+    /* default */ static ScratchBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Decodes Base64, as written by {@code android.util.Base64} with or without line wrapping,
+     * into the payload buffer.
+     *
+     * @param start The index of the first Base64 character in {@code encoded}.
+     * @return The number of bytes in {@link #getPayload()}.
+     * @throws IllegalArgumentException If {@code encoded} is not valid Base64, like
+     * {@code android.util.Base64#decode(String, int)}.
+     */
+    /* default */ int decodeBase64(String encoded, int start) {
+        int maxLength = (encoded.length() - start) / 4 * 3 + 3;
+
+        if (payload.length < maxLength) {
+            payload = new byte[Math.max(maxLength, payload.length * 2)];
+        }
+
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+
+        for (int i = start; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+
+            if (c == '=') {
+                break;
+            }
+
+            int value = c < BASE_64_VALUES.length ? BASE_64_VALUES[c] : INVALID;
+
+            if (value == WHITESPACE) {
+                continue;
+            } else if (value == INVALID) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+
+            bits = (bits << 6) | value;
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                payload[length++] = (byte) (bits >>> bitCount);
+            }
+        }
+
+        return length;
+    }
+
+    /* default */ byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Gets the plaintext buffer, grown to at least {@code minLength} bytes. Growing wipes the
+     * old buffer.
+     */
+    /* default */ byte[] getPlaintext(int minLength) {
+        if (plaintext.length < minLength) {
+            Arrays.fill(plaintext, (byte) 0);
+            plaintext = new byte[Math.max(minLength, plaintext.length * 2)];
+        }
+
+        return plaintext;
+    }
+
+    /**
+     * Overwrites the first {@code length} bytes of the plaintext buffer with zeros.
+     */
+    /* default */ void wipePlaintext(int length) {
+        Arrays.fill(plaintext, 0, length, (byte) 0);
+    }
+}
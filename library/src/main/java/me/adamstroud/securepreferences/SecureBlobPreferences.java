@@ -0,0 +1,512 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypted preferences that store every value in a single AES-GCM blob instead of one
+ * ciphertext per key. The blob is decrypted once when the preferences are created and kept in
+ * memory, so reads never touch the cipher, and every {@code commit()} or {@code apply()}
+ * encrypts the whole map once, no matter how many keys changed. Consecutive {@code apply()}
+ * calls are coalesced into a single write.
+ *
+ * <p>The blob and its wrapped data key live in the backing preferences, which must not be
+ * shared with {@link SecurePreferences}. Listeners are called on the main thread for every key
+ * whose value changed. Requires API 19.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class SecureBlobPreferences implements SharedPreferences {
+    private static final String TAG = SecureBlobPreferences.class.getSimpleName();
+    private static final String BLOB_PREFERENCE = "me.adamstroud.securepreferences.BLOB";
+    private static final int FORMAT_VERSION = 1;
+    private static final int BASE_64_FLAGS = Base64.NO_WRAP;
+    private static final long WRITE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Object REMOVED = new Object();
+
+    private final SharedPreferences sharedPreferences;
+    private final EnvelopeCipher envelopeCipher;
+    private final ExecutorService writeExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object writeLock = new Object();
+    private final Object storeLock = new Object();
+    private final Map<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+
+    private volatile Map<String, Object> values;
+    private long generation;
+    private long writtenGeneration;
+
+    /**
+     * Creates blob preferences protected by the AndroidKeyStore. Decrypts the stored blob on the
+     * calling thread.
+     *
+     * @param sharedPreferences The preferences that store the encrypted blob.
+     * @param context The context used to generate the keystore key.
+     */
+    public SecureBlobPreferences(SharedPreferences sharedPreferences, Context context) {
+        this(sharedPreferences, new AndroidKeyStoreBackend(context));
+    }
+
+    /**
+     * Creates blob preferences protected by the given backend. Decrypts the stored blob on the
+     * calling thread.
+     *
+     * @param sharedPreferences The preferences that store the encrypted blob.
+     * @param cryptoBackend The backend that wraps the data key.
+     */
+    public SecureBlobPreferences(SharedPreferences sharedPreferences, CryptoBackend cryptoBackend) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            throw new UnsupportedOperationException("SecureBlobPreferences require API 19");
+        }
+
+        this.sharedPreferences = sharedPreferences;
+        this.envelopeCipher = new EnvelopeCipher(sharedPreferences, cryptoBackend);
+        this.writeExecutor = new ThreadPoolExecutor(0, 1,
+                WRITE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-write");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        SecurePreferences.applyPrngFixes();
+
+        try {
+            cryptoBackend.initialize();
+            this.values = Collections.unmodifiableMap(load());
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            throw new SecurePreferencesException("Could not init Secure Preferences", e);
+        }
+    }
+
+    private Map<String, Object> load() throws GeneralSecurityException, IOException {
+        String blob = sharedPreferences.getString(BLOB_PREFERENCE, null);
+
+        if (blob == null) {
+            return new HashMap<>();
+        }
+
+        return deserialize(envelopeCipher.decrypt(Base64.decode(blob, BASE_64_FLAGS)));
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return values;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        String value = (String) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        @SuppressWarnings("unchecked")
+        Set<String> values = (Set<String>) this.values.get(key);
+        return values == null ? defValues : values;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) values.get(key);
+        return value == null ? defValue : value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new BlobEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, null);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Applies the modifications of an editor to the in-memory values.
+     *
+     * @return The keys whose values changed.
+     */
+    private List<String> update(Map<String, Object> modifications, boolean cleared) {
+        List<String> changedKeys = new ArrayList<>();
+
+        synchronized (writeLock) {
+            Map<String, Object> newValues = cleared ? new HashMap<String, Object>() : new HashMap<>(values);
+
+            if (cleared) {
+                changedKeys.addAll(values.keySet());
+            }
+
+            for (Map.Entry<String, Object> entry : modifications.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                Object oldValue = newValues.get(key);
+
+                if (value == REMOVED) {
+                    if (oldValue != null) {
+                        newValues.remove(key);
+                        changedKeys.add(key);
+                    }
+                } else if (!value.equals(oldValue)) {
+                    newValues.put(key, value);
+                    changedKeys.add(key);
+                }
+            }
+
+            if (!changedKeys.isEmpty()) {
+                values = Collections.unmodifiableMap(newValues);
+                generation++;
+            }
+        }
+
+        return changedKeys;
+    }
+
+    /**
+     * Encrypts the newest values and stores them, unless they have been stored already. Only one
+     * thread stores at a time, so an older generation can never overwrite a newer one.
+     */
+    private boolean writeLatest() {
+        synchronized (storeLock) {
+            Map<String, Object> latestValues;
+            long latestGeneration;
+
+            synchronized (writeLock) {
+                if (writtenGeneration == generation) {
+                    return true;
+                }
+
+                latestValues = values;
+                latestGeneration = generation;
+            }
+
+            try {
+                String blob = Base64.encodeToString(envelopeCipher.encrypt(serialize(latestValues)), BASE_64_FLAGS);
+                boolean committed = sharedPreferences.edit().putString(BLOB_PREFERENCE, blob).commit();
+
+                if (committed) {
+                    synchronized (writeLock) {
+                        writtenGeneration = latestGeneration;
+                    }
+                }
+
+                return committed;
+            } catch (GeneralSecurityException | IOException e) {
+                throw new SecurePreferencesException("Could not encrypt preferences", e);
+            }
+        }
+    }
+
+    private void notifyListeners(final List<String> changedKeys) {
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+
+        final List<OnSharedPreferenceChangeListener> currentListeners;
+
+        synchronized (listeners) {
+            currentListeners = new ArrayList<>(listeners.keySet());
+        }
+
+        if (currentListeners.isEmpty()) {
+            return;
+        }
+
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                for (String key : changedKeys) {
+                    for (OnSharedPreferenceChangeListener listener : currentListeners) {
+                        listener.onSharedPreferenceChanged(SecureBlobPreferences.this, key);
+                    }
+                }
+            }
+        };
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notification.run();
+        } else {
+            mainHandler.post(notification);
+        }
+    }
+
+    private static byte[] serialize(Map<String, Object> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            writeString(out, entry.getKey());
+
+            if (value instanceof String) {
+                out.writeByte(ValueCodec.TYPE_STRING);
+                writeString(out, (String) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(ValueCodec.TYPE_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(ValueCodec.TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeByte(ValueCodec.TYPE_FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(ValueCodec.TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                @SuppressWarnings("unchecked")
+                Set<String> set = (Set<String>) value;
+                out.writeByte(ValueCodec.TYPE_STRING_SET);
+                out.writeInt(set.size());
+
+                for (String element : set) {
+                    writeString(out, element);
+                }
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, Object> deserialize(byte[] blob) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+        int version = in.readUnsignedByte();
+
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported blob version " + version);
+        }
+
+        int size = in.readInt();
+        Map<String, Object> values = new HashMap<>(size);
+
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            int type = in.readUnsignedByte();
+
+            switch (type) {
+                case ValueCodec.TYPE_STRING:
+                    values.put(key, readString(in));
+                    break;
+                case ValueCodec.TYPE_INT:
+                    values.put(key, in.readInt());
+                    break;
+                case ValueCodec.TYPE_LONG:
+                    values.put(key, in.readLong());
+                    break;
+                case ValueCodec.TYPE_FLOAT:
+                    values.put(key, in.readFloat());
+                    break;
+                case ValueCodec.TYPE_BOOLEAN:
+                    values.put(key, in.readBoolean());
+                    break;
+                case ValueCodec.TYPE_STRING_SET:
+                    int setSize = in.readInt();
+                    Set<String> set = new HashSet<>(setSize);
+
+                    for (int j = 0; j < setSize; j++) {
+                        set.add(readString(in));
+                    }
+
+                    values.put(key, Collections.unmodifiableSet(set));
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Collects modifications and hands them to {@link SecureBlobPreferences} as one batch.
+     */
+    private class BlobEditor implements Editor {
+        private final Map<String, Object> modifications = new HashMap<>();
+        private boolean cleared;
+
+        private synchronized Editor put(String key, Object value) {
+            modifications.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            cleared = true;
+            return this;
+        }
+
+        /**
+         * Updates the in-memory values, then encrypts and stores them on the calling thread.
+         *
+         * @throws SecurePreferencesException If the values could not be encrypted.
+         */
+        @Override
+        public boolean commit() throws SecurePreferencesException {
+            List<String> changedKeys = takeChanges();
+            boolean committed = writeLatest();
+            notifyListeners(changedKeys);
+            return committed;
+        }
+
+        /**
+         * Updates the in-memory values right away, then encrypts and stores them on a
+         * background thread. Applies that are queued behind each other only write once.
+         */
+        @Override
+        public void apply() {
+            List<String> changedKeys = takeChanges();
+
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeLatest();
+                    } catch (SecurePreferencesException e) {
+                        Log.e(TAG, "Could not apply preferences", e);
+                    }
+                }
+            });
+
+            notifyListeners(changedKeys);
+        }
+
+        private synchronized List<String> takeChanges() {
+            List<String> changedKeys = update(new HashMap<>(modifications), cleared);
+            modifications.clear();
+            cleared = false;
+            return changedKeys;
+        }
+    }
+}
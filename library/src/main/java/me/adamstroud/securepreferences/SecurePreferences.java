@@ -15,249 +15,1916 @@
  */
 package me.adamstroud.securepreferences;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
-import android.security.KeyPairGeneratorSpec;
-import android.security.keystore.KeyProperties;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.ArraySet;
-import android.util.Base64;
+import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyPairGenerator;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
-import java.util.Calendar;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.security.auth.x500.X500Principal;
+import me.adamstroud.prngfixes.PRNGFixes;
+
+/**
+ * TODO
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class SecurePreferences implements SharedPreferences {
+    private static final String TAG = SecurePreferences.class.getSimpleName();
+    private static final int DECRYPT_BATCH_SIZE = 16;
+    private static final long WRITE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final int WRITE_THREADS = 4;
+    private static final int WRITE_STRIPES = 16;
+    private static final int MAX_OPTIMISTIC_READS = 4;
+
+    private final SharedPreferences sharedPreferences;
+    private final KeyRing keyRing;
+    private final PreferenceCipher preferenceCipher;
+    private final DecryptedValueCache cache;
+    private final DecryptedValueCache prefetched;
+    private final OnSharedPreferenceChangeListener cacheInvalidator;
+    private final PrefetchProfile prefetchProfile;
+    private final ExecutorService decryptExecutor;
+    private final ExecutorService writeExecutor;
+    private final PendingWrites pendingWrites = new PendingWrites();
+    private final WriteStripes writeStripes = new WriteStripes(WRITE_STRIPES);
+    // Weak keys, like the listeners of SharedPreferences, so a forgotten listener is not leaked
+    private final Map<OnSecurePreferenceChangeListener, Executor> changeListeners = new WeakHashMap<>();
+    private final FutureTask<Void> initialization;
+    private final NotReadyPolicy notReadyPolicy;
+    private final long readyTimeoutMillis;
+    private final MetricsListener metricsListener;
+    private final StreamStore streamStore;
+
+    private static boolean prngFixed = false;
+
+    /**
+     * How new values are encrypted. Values written in either mode can always be read back,
+     * regardless of the mode that is currently in use.
+     */
+    public enum Mode {
+        /**
+         * Every value is encrypted with the keystore RSA key. Values that are longer than the
+         * RSA block size are encrypted as several blocks.
+         */
+        RSA,
+
+        /**
+         * The keystore RSA key only wraps a random AES-256 data key, which encrypts every value
+         * with AES-GCM. Requires API 19, older devices fall back to {@link #RSA}.
+         */
+        ENVELOPE
+    }
+
+    /**
+     * What happens when a value has to be encrypted or decrypted before the keys created by
+     * {@link Builder#buildAsync()} are ready. Writes made with {@code apply()} or
+     * {@code commitAsync()} are not affected, they always wait for the keys in the background.
+     */
+    public enum NotReadyPolicy {
+        /**
+         * Wait until the keys are ready, up to the timeout set with
+         * {@link Builder#setReadyTimeout(long, TimeUnit)}.
+         */
+        BLOCK,
+
+        /**
+         * Throw a {@link SecurePreferencesException} right away.
+         */
+        FAIL_FAST
+    }
+
+    /**
+     * Receives the changes made through a {@link SecurePreferences}, already decrypted.
+     *
+     * @see #registerOnSecurePreferenceChangeListener(OnSecurePreferenceChangeListener, Executor)
+     */
+    public interface OnSecurePreferenceChangeListener {
+        /**
+         * Called once for every committed or applied editor.
+         *
+         * @param changes The new value of every key the editor wrote, typed the same way as
+         * {@link #getAllTyped()}. Removed keys map to null and streams are left out.
+         * @param cleared If the editor removed every other preference first. Those keys are not
+         * part of the changes.
+         */
+        void onSecurePreferencesChanged(SecurePreferences securePreferences, Map<String, ?> changes, boolean cleared);
+    }
+
+    /**
+     * TODO
+     *
+     * @param sharedPreferences
+     * @param context
+     */
+    public SecurePreferences(SharedPreferences sharedPreferences, Context context) {
+        this(sharedPreferences, context, Mode.RSA);
+    }
+
+    /**
+     * Creates secure preferences that encrypt new values using the given mode. Existing values
+     * that were written in a different mode stay readable and are converted the next time they
+     * are written.
+     *
+     * @param sharedPreferences The preferences that store the encrypted values.
+     * @param context The context used to generate the keystore key.
+     * @param mode How new values are encrypted.
+     */
+    public SecurePreferences(SharedPreferences sharedPreferences, Context context, Mode mode) {
+        this(new Builder(sharedPreferences, context).setMode(mode), false);
+    }
+
+    private SecurePreferences(Builder builder, boolean async) {
+        this.sharedPreferences = builder.sharedPreferences;
+        this.metricsListener = builder.metricsListener;
+
+        if (builder.cryptoBackend != null) {
+            this.keyRing = new KeyRing(sharedPreferences, builder.cryptoBackend, metricsListener);
+        } else {
+            this.keyRing = new KeyRing(sharedPreferences,
+                    builder.cryptoBackendFactory != null
+                            ? builder.cryptoBackendFactory
+                            : new AndroidKeyStoreBackend.Factory(builder.context),
+                    metricsListener);
+        }
+
+        this.preferenceCipher = new PreferenceCipher(keyRing,
+                builder.mode == Mode.ENVELOPE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT,
+                builder.compressionThreshold,
+                metricsListener);
+        this.decryptExecutor = builder.decryptExecutor;
+        this.streamStore = builder.streamDirectory != null ? new StreamStore(builder.streamDirectory) : null;
+        // Batches are ordered by writeStripes, so several of them can be encrypted at the same time
+        ThreadPoolExecutor writeExecutor = new ThreadPoolExecutor(WRITE_THREADS, WRITE_THREADS,
+                WRITE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-write");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        writeExecutor.allowCoreThreadTimeOut(true);
+        this.writeExecutor = writeExecutor;
+
+        final Set<String> prefetchKeys = new LinkedHashSet<>(builder.prefetchKeys);
+
+        if (builder.prefetchProfileMaxKeys > 0) {
+            this.prefetchProfile = new PrefetchProfile(sharedPreferences, builder.prefetchProfileMaxKeys,
+                    builder.prefetchProfileWindowMillis);
+            prefetchProfile.scheduleFinish(new Handler(Looper.getMainLooper()), writeExecutor);
+            prefetchKeys.addAll(prefetchProfile.getStoredKeys());
+        } else {
+            this.prefetchProfile = null;
+        }
+
+        this.cache = builder.cacheMaxEntries > 0
+                ? new DecryptedValueCache(builder.cacheMaxEntries, builder.cacheMaxBytes)
+                : null;
+        // Without a cache prefetched values are kept until they are read once
+        this.prefetched = cache == null && !prefetchKeys.isEmpty()
+                ? new DecryptedValueCache(prefetchKeys.size(), Long.MAX_VALUE)
+                : null;
+
+        if (cache != null || prefetched != null) {
+            final DecryptedValueCache invalidated = cache != null ? cache : prefetched;
+
+            this.cacheInvalidator = new OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (key == null) {
+                        invalidated.invalidateAll();
+                    } else {
+                        invalidated.invalidate(key);
+                    }
+                }
+            };
+
+            // SharedPreferences only keeps weak references to listeners, the field keeps this one alive
+            sharedPreferences.registerOnSharedPreferenceChangeListener(cacheInvalidator);
+        } else {
+            this.cacheInvalidator = null;
+        }
+
+        this.notReadyPolicy = builder.notReadyPolicy;
+        this.readyTimeoutMillis = builder.readyTimeoutMillis;
+        this.initialization = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                initialize();
+                return null;
+            }
+        });
+
+        if (async) {
+            // Queued before any write, and background writes wait for it, see awaitInitialization()
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initialization.run();
+
+                    if (isInitialized()) {
+                        startPrefetch(prefetchKeys);
+                    }
+                }
+            });
+        } else {
+            initialization.run();
+
+            try {
+                initialization.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Could not init Secure Preferences", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+
+                throw (RuntimeException) e.getCause();
+            }
+
+            startPrefetch(prefetchKeys);
+        }
+    }
+
+    private boolean isInitialized() {
+        try {
+            initialization.get();
+            return true;
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decrypts the given keys on background threads, splitting them into one chunk per write
+     * thread. The values are kept in the cache, or in {@link #prefetched} if there is none.
+     */
+    private void startPrefetch(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        List<String> orderedKeys = new ArrayList<>(keys);
+        ExecutorService executor = decryptExecutor != null ? decryptExecutor : writeExecutor;
+        int chunkSize = (orderedKeys.size() + WRITE_THREADS - 1) / WRITE_THREADS;
+
+        for (int i = 0; i < orderedKeys.size(); i += chunkSize) {
+            final List<String> chunk = orderedKeys.subList(i, Math.min(i + chunkSize, orderedKeys.size()));
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetch(chunk);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not prefetch preferences", e);
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void prefetch(List<String> keys) {
+        Map<String, ?> encryptedPreferences = sharedPreferences.getAll();
+
+        for (String key : keys) {
+            // Pending values are read without decrypting anyway
+            if (preferenceCipher.isReservedKey(key) || pendingWrites.get(key) != PendingWrites.NOT_PENDING) {
+                continue;
+            }
+
+            try {
+                Object ciphertext = encryptedPreferences.get(key);
+
+                if (ciphertext instanceof String) {
+                    byte[] value = decrypt(key, (String) ciphertext);
+
+                    if (prefetched != null) {
+                        prefetched.put(key, ciphertext, value);
+                    }
+                } else if (ciphertext instanceof Set) {
+                    Set<String> values = decryptLegacySet(key, (Set<String>) ciphertext);
+
+                    if (prefetched != null) {
+                        prefetched.put(key, ciphertext, values);
+                    }
+                }
+            } catch (SecurePreferencesException e) {
+                // The getter reports it again, if the value is ever read
+                Log.w(TAG, "Could not prefetch preference " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the decrypted value of a key from the cache, or takes it from the values that were
+     * prefetched without a cache.
+     *
+     * @return The value, or null if it is neither cached nor prefetched for this ciphertext.
+     */
+    private Object getDecrypted(String key, Object ciphertext) {
+        if (cache != null) {
+            return cache.get(key, ciphertext);
+        }
+
+        return prefetched == null ? null : prefetched.take(key, ciphertext);
+    }
+
+    /* default */ static synchronized void applyPrngFixes() {
+        if (!prngFixed) {
+            PRNGFixes.apply();
+            prngFixed = true;
+        }
+    }
+
+    /**
+     * Looks up or generates the key of the current version and warms up the ciphers.
+     */
+    private void initialize() {
+        applyPrngFixes();
+
+        try {
+            keyRing.initialize();
+            preferenceCipher.warmUp();
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException("Could not init Secure Preferences", e);
+        }
+    }
+
+    /**
+     * Gets a future that completes once the keys are ready. For instances that were not created
+     * with {@link Builder#buildAsync()} it is always complete.
+     */
+    public Future<Void> getReadyFuture() {
+        return initialization;
+    }
+
+    /**
+     * Checks if the keys are ready, so that reads and writes will not block on key generation.
+     */
+    public boolean isReady() {
+        return initialization.isDone();
+    }
+
+    private void awaitReady() throws SecurePreferencesException {
+        if (!initialization.isDone() && notReadyPolicy == NotReadyPolicy.FAIL_FAST) {
+            throw new SecurePreferencesException("Secure Preferences are not ready yet");
+        }
+
+        try {
+            initialization.get(readyTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurePreferencesException("Interrupted while waiting for Secure Preferences", e);
+        } catch (ExecutionException e) {
+            throw new SecurePreferencesException("Could not init Secure Preferences", e.getCause());
+        } catch (TimeoutException e) {
+            throw new SecurePreferencesException("Timed out waiting for Secure Preferences", e);
+        }
+    }
+
+    /**
+     * Waits for the keys on a write thread, ignoring the {@link NotReadyPolicy} and the ready
+     * timeout. The caller of {@code apply()} or {@code commitAsync()} has already returned, so
+     * failing would only lose the write. Initialization is queued on the write threads before
+     * any write, so it is already running.
+     */
+    private void awaitInitialization() throws SecurePreferencesException {
+        try {
+            initialization.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurePreferencesException("Interrupted while waiting for Secure Preferences", e);
+        } catch (ExecutionException e) {
+            throw new SecurePreferencesException("Could not init Secure Preferences", e.getCause());
+        }
+    }
+
+    private byte[] decrypt(String key, String ciphertext) {
+        byte[] decrypted = (byte[]) getDecrypted(key, ciphertext);
+
+        if (decrypted != null) {
+            return decrypted;
+        }
+
+        awaitReady();
+        byte[] plaintext = preferenceCipher.decrypt(ciphertext);
+
+        if (cache != null) {
+            cache.put(key, ciphertext, plaintext);
+        }
+
+        return plaintext;
+    }
+
+    /**
+     * Releases cached plaintext values. Should be called from
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}. Does nothing if caching was
+     * not enabled with {@link Builder#setCache(int, long)}.
+     *
+     * @param level The level passed to {@code onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (cache != null) {
+            cache.trimMemory(level);
+        }
+
+        if (prefetched != null) {
+            prefetched.trimMemory(level);
+        }
+    }
+
+    /**
+     * Decrypts every preference, returning each value as the decrypted {@code byte[]}. String
+     * sets are left out, read them with {@link #getStringSet(String, Set)},
+     * {@link #getBatch(Collection)} or {@link #getAllTyped()}. Streams are left out as well, see
+     * {@link #openStream(String)}. If an executor was set with
+     * {@link Builder#setDecryptExecutor(ExecutorService)} the values are decrypted in parallel.
+     *
+     * @see #getAllTyped()
+     */
+    @Override
+    public Map<String, byte[]> getAll() throws SecurePreferencesException {
+        Map<String, ?> values = getAll(false);
+        Map<String, byte[]> decryptedPreferences = new HashMap<>(values.size());
+
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getValue() instanceof byte[]) {
+                decryptedPreferences.put(entry.getKey(), (byte[]) entry.getValue());
+            }
+        }
+
+        return Collections.unmodifiableMap(decryptedPreferences);
+    }
+
+    /**
+     * Decrypts every preference in one pass, returning each value as the type it was written
+     * with: {@code String}, {@code Integer}, {@code Long}, {@code Float}, {@code Boolean} or
+     * {@code Set<String>}. Values that were written by a version without typed values are
+     * returned as {@code byte[]}, since their type is unknown.
+     *
+     * @return An unmodifiable map of the decrypted values.
+     */
+    public Map<String, ?> getAllTyped() throws SecurePreferencesException {
+        return getAll(true);
+    }
+
+    private Map<String, ?> getAll(boolean typed) {
+        long start = startTiming();
+        Map<String, Object> decryptedPreferences;
+
+        try {
+            decryptedPreferences = decodeValues(readAll(), typed);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.GET_ALL, null, e);
+            throw e;
+        }
+
+        reportOperation(MetricsListener.Operation.GET_ALL, null, start);
+        return Collections.unmodifiableMap(decryptedPreferences);
+    }
+
+    private Map<String, Object> readAll() {
+        return read(null);
+    }
+
+    /**
+     * Gets an immutable view of the preferences as they are now. Unlike {@link #getAllTyped()},
+     * which it otherwise matches, nothing is decrypted up front: a value is decrypted the first
+     * time it is read from the view and kept for as long as the view is. Looking up or
+     * iterating the keys costs no crypto at all, so this is the cheaper choice when only some
+     * of the values are needed.
+     *
+     * <p>Later writes do not show up in the view. Keys written with
+     * {@link SecureEditor#putStream(String, InputStream)} are included but map to null, since
+     * their type is only known after decrypting. Reading a value may throw a
+     * {@link SecurePreferencesException}.</p>
+     *
+     * @return An immutable map of the preferences.
+     */
+    public Map<String, ?> snapshot() {
+        ConsistentRead consistentRead = readConsistent();
+        Map<String, Object> ciphertexts = new HashMap<>(consistentRead.encryptedPreferences.size());
+
+        for (Map.Entry<String, ?> entry : consistentRead.encryptedPreferences.entrySet()) {
+            if (!preferenceCipher.isReservedKey(entry.getKey())) {
+                ciphertexts.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        PendingWrites.Snapshot pending = consistentRead.pending;
+        Map<String, Object> values = new HashMap<>();
+
+        if (pending.isCleared()) {
+            ciphertexts.clear();
+        }
+
+        // Pending values are plaintext already, they only need to be decoded
+        for (Map.Entry<String, Object> entry : pending.getValues().entrySet()) {
+            if (entry.getValue() == PendingWrites.REMOVED) {
+                ciphertexts.remove(entry.getKey());
+            } else {
+                ciphertexts.put(entry.getKey(), entry.getValue());
+                values.put(entry.getKey(), decodeSnapshotValue(entry.getValue()));
+            }
+        }
+
+        return new SnapshotMap(ciphertexts, values, new SnapshotMap.Decoder() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object decode(String key, Object ciphertext) {
+                long start = startTiming();
+                Object plaintext;
+
+                try {
+                    plaintext = ciphertext instanceof Set
+                            ? decryptLegacySet(key, (Set<String>) ciphertext)
+                            : decrypt(key, (String) ciphertext);
+                } catch (SecurePreferencesException e) {
+                    reportFailure(MetricsListener.Operation.GET, key, e);
+                    throw e;
+                }
+
+                reportOperation(MetricsListener.Operation.GET, key, start);
+                return decodeSnapshotValue(plaintext);
+            }
+        });
+    }
+
+    /**
+     * Decodes a value for {@link #snapshot()}.
+     *
+     * @param plaintext The encoded {@code byte[]}, or a {@code Set<String>} that is returned
+     * as it is.
+     */
+    private static Object decodeSnapshotValue(Object plaintext) {
+        if (plaintext instanceof byte[]) {
+            byte[] value = (byte[]) plaintext;
+            return ValueCodec.getType(value) == ValueCodec.TYPE_STREAM ? null : ValueCodec.decode(value);
+        }
+
+        return plaintext;
+    }
+
+    /**
+     * Decrypts the given subset of preferences. Keys that do not exist are left out of the
+     * result. String sets are returned as {@code Set<String>}, every other value like
+     * {@link #getAll()} does.
+     *
+     * @param keys The keys to decrypt.
+     * @return An unmodifiable map of the decrypted values.
+     */
+    public Map<String, ?> getBatch(Collection<String> keys) throws SecurePreferencesException {
+        long start = startTiming();
+        Map<String, Object> decryptedPreferences;
+
+        try {
+            decryptedPreferences = decodeValues(readBatch(keys), false);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.GET_BATCH, null, e);
+            throw e;
+        }
+
+        reportOperation(MetricsListener.Operation.GET_BATCH, null, start);
+        return Collections.unmodifiableMap(decryptedPreferences);
+    }
+
+    /**
+     * Decrypts the given subset of preferences, returning each value as the type it was written
+     * with, like {@link #getAllTyped()}.
+     */
+    /* default */ Map<String, ?> getBatchTyped(Collection<String> keys) throws SecurePreferencesException {
+        long start = startTiming();
+        Map<String, Object> decryptedPreferences;
+
+        try {
+            decryptedPreferences = decodeValues(readBatch(keys), true);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.GET_BATCH, null, e);
+            throw e;
+        }
+
+        reportOperation(MetricsListener.Operation.GET_BATCH, null, start);
+        return Collections.unmodifiableMap(decryptedPreferences);
+    }
+
+    private Map<String, Object> readBatch(Collection<String> keys) {
+        return read(keys);
+    }
+
+    /**
+     * Decrypts the backing preferences and lays the pending writes over them.
+     *
+     * @param keys The keys to read, or null to read every key.
+     */
+    private Map<String, Object> read(Collection<String> keys) {
+        ConsistentRead consistentRead = readConsistent();
+        PendingWrites.Snapshot pending = consistentRead.pending;
+        Map<String, ?> encryptedPreferences = consistentRead.encryptedPreferences;
+
+        if (keys == null) {
+            Map<String, Object> decryptedPreferences = decryptAll(encryptedPreferences);
+            pending.applyTo(decryptedPreferences);
+            return decryptedPreferences;
+        }
+
+        Map<String, Object> requestedPreferences = new HashMap<>(keys.size());
+
+        for (String key : keys) {
+            Object ciphertext = encryptedPreferences.get(key);
+
+            if (ciphertext != null) {
+                requestedPreferences.put(key, ciphertext);
+            }
+        }
+
+        Map<String, Object> decryptedPreferences = decryptAll(requestedPreferences);
+
+        if (!pending.isEmpty()) {
+            for (String key : keys) {
+                Object value = pending.get(key);
+
+                if (value == PendingWrites.REMOVED) {
+                    decryptedPreferences.remove(key);
+                } else if (value != PendingWrites.NOT_PENDING) {
+                    decryptedPreferences.put(key, value);
+                }
+            }
+        }
+
+        return decryptedPreferences;
+    }
+
+    /**
+     * Reads the backing preferences and the pending writes from the same point in time, so
+     * the result never mixes keys from before and after a batch was written.
+     *
+     * <p>The read is optimistic: it is only used if the pending writes did not change while
+     * the backing preferences were read. If writers keep changing them, the last attempt takes
+     * a ticket on every stripe, which holds back writes to the backing preferences while it
+     * reads.</p>
+     */
+    private ConsistentRead readConsistent() {
+        PendingWrites.Snapshot pending = null;
+        Map<String, ?> encryptedPreferences = null;
+
+        for (int i = 0; i < MAX_OPTIMISTIC_READS && encryptedPreferences == null; i++) {
+            pending = pendingWrites.getSnapshot();
+            Map<String, ?> candidate = sharedPreferences.getAll();
+
+            if (pending == pendingWrites.getSnapshot()) {
+                encryptedPreferences = candidate;
+            }
+        }
+
+        if (encryptedPreferences == null) {
+            WriteStripes.Ticket ticket = writeStripes.take(Collections.<String>emptySet(), true);
+            writeStripes.await(ticket);
+
+            try {
+                pending = pendingWrites.getSnapshot();
+                encryptedPreferences = sharedPreferences.getAll();
+            } finally {
+                writeStripes.release(ticket);
+            }
+        }
+
+        return new ConsistentRead(pending, encryptedPreferences);
+    }
+
+    /**
+     * Replaces every encoded value with a copy of its payload, or with its boxed value if typed
+     * values are requested. String sets are always decoded and stream references, which hold
+     * the key of the stream, are removed. The encoded arrays may be shared with the cache or
+     * pending writes, so they are never handed out.
+     */
+    private static Map<String, Object> decodeValues(Map<String, Object> values, boolean typed) {
+        Iterator<Map.Entry<String, Object>> entries = values.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            Map.Entry<String, Object> entry = entries.next();
+
+            if (entry.getValue() instanceof byte[]) {
+                byte[] value = (byte[]) entry.getValue();
+                int type = ValueCodec.getType(value);
+
+                if (type == ValueCodec.TYPE_STREAM) {
+                    entries.remove();
+                } else {
+                    boolean decode = typed || type == ValueCodec.TYPE_STRING_SET;
+                    entry.setValue(decode ? ValueCodec.decode(value) : ValueCodec.getPayload(value));
+                }
+            }
+        }
+
+        return values;
+    }
+
+    private Map<String, Object> decryptAll(Map<String, ?> encryptedPreferences) {
+        List<Map.Entry<String, ?>> entries = new ArrayList<>(encryptedPreferences.size());
+
+        for (Map.Entry<String, ?> entry : encryptedPreferences.entrySet()) {
+            if (!preferenceCipher.isReservedKey(entry.getKey())) {
+                entries.add(entry);
+            }
+        }
+
+        Map<String, Object> decryptedPreferences;
+
+        if (decryptExecutor == null || entries.size() <= DECRYPT_BATCH_SIZE) {
+            decryptedPreferences = decryptEntries(entries);
+        } else {
+            decryptedPreferences = new HashMap<>(entries.size());
+            List<Callable<Map<String, Object>>> tasks = new ArrayList<>();
+
+            for (int start = 0; start < entries.size(); start += DECRYPT_BATCH_SIZE) {
+                final List<Map.Entry<String, ?>> batch =
+                        entries.subList(start, Math.min(start + DECRYPT_BATCH_SIZE, entries.size()));
+
+                tasks.add(new Callable<Map<String, Object>>() {
+                    @Override
+                    public Map<String, Object> call() {
+                        return decryptEntries(batch);
+                    }
+                });
+            }
+
+            try {
+                for (Future<Map<String, Object>> result : decryptExecutor.invokeAll(tasks)) {
+                    decryptedPreferences.putAll(result.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SecurePreferencesException("Interrupted while decrypting preferences", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SecurePreferencesException) {
+                    throw (SecurePreferencesException) e.getCause();
+                }
+
+                throw new SecurePreferencesException("Could not decrypt preferences", e.getCause());
+            }
+        }
+
+        return decryptedPreferences;
+    }
+
+    private Map<String, Object> decryptEntries(List<Map.Entry<String, ?>> entries) {
+        Map<String, Object> decryptedPreferences = new HashMap<>(entries.size());
+
+        for (Map.Entry<String, ?> entry : entries) {
+            String key = entry.getKey();
+            Object ciphertext = entry.getValue();
+
+            if (ciphertext instanceof Set) {
+                @SuppressWarnings("unchecked")
+                Set<String> ciphertextValues = (Set<String>) ciphertext;
+                decryptedPreferences.put(key, decryptLegacySet(key, ciphertextValues));
+            } else {
+                decryptedPreferences.put(key, decrypt(key, (String) ciphertext));
+            }
+        }
+
+        return decryptedPreferences;
+    }
+
+    @Override
+    public String getString(String key, String defValue) throws SecurePreferencesException {
+        byte[] value = getPlaintext(key);
+        return value == null ? defValue : ValueCodec.decodeString(value);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) throws SecurePreferencesException {
+        long start = startTiming();
+        recordRead(key);
+        Set<String> values;
+
+        try {
+            values = readStringSet(key);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.GET, key, e);
+            throw e;
+        }
+
+        reportOperation(MetricsListener.Operation.GET, key, start);
+        return values == null ? defValues : Collections.unmodifiableSet(values);
+    }
+
+    /**
+     * @return The plaintext values, or null if the preference does not exist.
+     */
+    private Set<String> readStringSet(String key) {
+        Object pending = pendingWrites.get(key);
+
+        if (pending == PendingWrites.NOT_PENDING) {
+            if (!containsEncrypted(key)) {
+                return null;
+            }
+
+            String ciphertext;
+
+            try {
+                ciphertext = sharedPreferences.getString(key, null);
+            } catch (ClassCastException e) {
+                return decryptLegacySet(key, sharedPreferences.getStringSet(key, null));
+            }
+
+            return ValueCodec.decodeStringSet(decrypt(key, ciphertext), createSet());
+        }
+
+        if (pending == PendingWrites.REMOVED) {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        Set<String> values = (Set<String>) pending;
+        return values;
+    }
+
+    /**
+     * Decrypts a set that was written by a version that encrypted every element separately.
+     * Such sets are rewritten as a single ciphertext the next time they are written.
+     */
+    private Set<String> decryptLegacySet(String key, Set<String> ciphertextValues) {
+        @SuppressWarnings("unchecked")
+        Set<String> values = (Set<String>) getDecrypted(key, ciphertextValues);
+
+        if (values == null) {
+            awaitReady();
+            values = createSet();
+
+            for (String ciphertextValue : ciphertextValues) {
+                values.add(ValueCodec.decodeString(preferenceCipher.decrypt(ciphertextValue)));
+            }
+
+            values = Collections.unmodifiableSet(values);
+
+            if (cache != null) {
+                cache.put(key, ciphertextValues, values);
+            }
+        }
+
+        return values;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) throws SecurePreferencesException {
+        byte[] value = getPlaintext(key);
+        return value == null ? defValue : ValueCodec.decodeInt(value);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) throws SecurePreferencesException {
+        byte[] value = getPlaintext(key);
+        return value == null ? defValue : ValueCodec.decodeLong(value);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) throws SecurePreferencesException {
+        byte[] value = getPlaintext(key);
+        return value == null ? defValue : ValueCodec.decodeFloat(value);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) throws SecurePreferencesException {
+        byte[] value = getPlaintext(key);
+        return value == null ? defValue : ValueCodec.decodeBoolean(value);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object pending = pendingWrites.get(key);
+
+        if (pending == PendingWrites.NOT_PENDING) {
+            return containsEncrypted(key);
+        }
+
+        return pending != PendingWrites.REMOVED;
+    }
+
+    private boolean containsEncrypted(String key) {
+        return !preferenceCipher.isReservedKey(key) && sharedPreferences.contains(key);
+    }
+
+    /**
+     * Gets the plaintext of a value, preferring writes that have been applied but not stored yet.
+     *
+     * @return The plaintext, or null if the preference does not exist.
+     */
+    private byte[] getPlaintext(String key) {
+        long start = startTiming();
+        recordRead(key);
+        byte[] plaintext;
+
+        try {
+            plaintext = readPlaintext(key);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.GET, key, e);
+            throw e;
+        }
+
+        reportOperation(MetricsListener.Operation.GET, key, start);
+        return plaintext;
+    }
+
+    private byte[] readPlaintext(String key) {
+        Object pending = pendingWrites.get(key);
+
+        if (pending == PendingWrites.NOT_PENDING) {
+            return containsEncrypted(key) ? decrypt(key, sharedPreferences.getString(key, null)) : null;
+        }
+
+        return pending == PendingWrites.REMOVED ? null : (byte[]) pending;
+    }
+
+    /**
+     * Copies the bytes of a value into an array without creating any other object that holds
+     * the plaintext: the UTF-8 bytes of a {@code String}, the big-endian bytes of a number or a
+     * single byte for a {@code boolean}. Envelope encrypted values are decoded and decrypted in
+     * buffers of the calling thread, which are wiped before this returns, so reading them does
+     * not allocate arrays. Values are not added to the cache.
+     *
+     * @param offset The index in {@code dst} of the first byte.
+     * @return The number of bytes copied, or -1 if the preference does not exist.
+     * @throws IndexOutOfBoundsException If the value does not fit into {@code dst}. Nothing is
+     * copied then.
+     * @throws ClassCastException If the preference is a string set or a stream.
+     */
+    public int getBytes(String key, byte[] dst, int offset) throws SecurePreferencesException {
+        return copyValue(key, dst, offset, null);
+    }
+
+    /**
+     * Copies the bytes of a value into a buffer, which may be a direct buffer, the same way as
+     * {@link #getBytes(String, byte[], int)}. The bytes are written at the position of the
+     * buffer, which is advanced past them.
+     *
+     * @return The number of bytes copied, or -1 if the preference does not exist.
+     * @throws java.nio.BufferOverflowException If the value does not fit into the remaining
+     * bytes of {@code dst}. Nothing is copied then.
+     * @throws ClassCastException If the preference is a string set or a stream.
+     */
+    public int getInto(String key, ByteBuffer dst) throws SecurePreferencesException {
+        return copyValue(key, null, 0, dst);
+    }
+
+    /**
+     * Copies a value into either {@code dstArray} or {@code dstBuffer}.
+     */
+    private int copyValue(String key, byte[] dstArray, int offset, ByteBuffer dstBuffer) {
+        long start = startTiming();
+        recordRead(key);
+        int length;
+
+        try {
+            length = readValue(key, dstArray, offset, dstBuffer);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.GET, key, e);
+            throw e;
+        }
+
+        reportOperation(MetricsListener.Operation.GET, key, start);
+        return length;
+    }
+
+    private void recordRead(String key) {
+        if (prefetchProfile != null) {
+            prefetchProfile.onRead(key);
+        }
+    }
+
+    private int readValue(String key, byte[] dstArray, int offset, ByteBuffer dstBuffer) {
+        Object pending = pendingWrites.get(key);
+
+        if (pending != PendingWrites.NOT_PENDING) {
+            if (pending == PendingWrites.REMOVED) {
+                return -1;
+            } else if (!(pending instanceof byte[])) {
+                throw new ClassCastException("Preference is a string set, not a single value");
+            }
+
+            return copyPayload((byte[]) pending, ((byte[]) pending).length, dstArray, offset, dstBuffer);
+        }
+
+        if (!containsEncrypted(key)) {
+            return -1;
+        }
+
+        String ciphertext = sharedPreferences.getString(key, null);
+
+        if (cache != null) {
+            byte[] cached = (byte[]) cache.get(key, ciphertext);
+
+            if (cached != null) {
+                return copyPayload(cached, cached.length, dstArray, offset, dstBuffer);
+            }
+        } else if (prefetched != null) {
+            byte[] value = (byte[]) prefetched.take(key, ciphertext);
+
+            if (value != null) {
+                try {
+                    return copyPayload(value, value.length, dstArray, offset, dstBuffer);
+                } finally {
+                    Arrays.fill(value, (byte) 0);
+                }
+            }
+        }
+
+        awaitReady();
+        ScratchBuffers buffers = ScratchBuffers.get();
+        int length = 0;
+
+        try {
+            length = preferenceCipher.decrypt(ciphertext, buffers);
+            return copyPayload(buffers.getPlaintext(length), length, dstArray, offset, dstBuffer);
+        } finally {
+            buffers.wipePlaintext(length);
+        }
+    }
+
+    private static int copyPayload(byte[] value, int length, byte[] dstArray, int offset, ByteBuffer dstBuffer) {
+        return dstBuffer == null
+                ? ValueCodec.copyPayload(value, length, dstArray, offset)
+                : ValueCodec.copyPayload(value, length, dstBuffer);
+    }
+
+    /**
+     * Opens a value that was written with {@link SecureEditor#putStream(String, InputStream)}.
+     * The value is decrypted one chunk at a time while it is read, so large values never have
+     * to fit into memory. Requires API 19 and a directory set with
+     * {@link Builder#setStreamDirectory(File)}.
+     *
+     * @return The decrypted value, or null if the preference does not exist. The caller has to
+     * close it.
+     * @throws ClassCastException If the preference was not written as a stream.
+     */
+    public InputStream openStream(String key) throws SecurePreferencesException {
+        StreamStore streams = getStreamStore();
+        byte[] plaintext = getPlaintext(key);
+
+        if (plaintext == null) {
+            return null;
+        }
+
+        try {
+            return streams.open(ValueCodec.decodeStream(plaintext));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new SecurePreferencesException("Could not open stream", e);
+        }
+    }
+
+    /**
+     * Encrypts a stream into its own file and returns the encoded reference to it.
+     */
+    private byte[] writeStream(String key, InputStream in) throws SecurePreferencesException {
+        try {
+            return ValueCodec.encodeStream(getStreamStore().write(key, in));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new SecurePreferencesException("Could not write stream", e);
+        }
+    }
+
+    private StreamStore getStreamStore() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            throw new UnsupportedOperationException("Streams require API 19");
+        } else if (streamStore == null) {
+            throw new IllegalStateException("No stream directory has been set");
+        }
+
+        return streamStore;
+    }
+
+    @Override
+    public SecureEditor edit() {
+        return new SecureEditor(this);
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Registers a listener that is told about every editor committed or applied through this
+     * instance. Unlike {@link #registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)}
+     * the listener gets the new values without decrypting anything, and a single call for all
+     * keys of an editor instead of one per key.
+     *
+     * <p>Only a weak reference to the listener is kept, so the caller has to hold on to it.
+     * Changes are delivered in order as long as the executor runs its tasks in order.</p>
+     *
+     * @param executor Runs the listener, for example the main thread or a background thread. It
+     * must not run the listener on the calling thread, which is still writing the editor.
+     */
+    public void registerOnSecurePreferenceChangeListener(OnSecurePreferenceChangeListener listener,
+                                                         Executor executor) {
+        synchronized (changeListeners) {
+            changeListeners.put(listener, executor);
+        }
+    }
+
+    public void unregisterOnSecurePreferenceChangeListener(OnSecurePreferenceChangeListener listener) {
+        synchronized (changeListeners) {
+            changeListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Hands a batch that was written to every change listener. Called while the batch still
+     * holds its stripes, so batches that share keys are handed over in order.
+     */
+    private void notifyChangeListeners(final PendingWrites.Batch batch) {
+        final Map<OnSecurePreferenceChangeListener, Executor> listeners;
+
+        synchronized (changeListeners) {
+            if (changeListeners.isEmpty()) {
+                return;
+            }
+
+            listeners = new HashMap<>(changeListeners);
+        }
+
+        Map<String, Object> changes = new HashMap<>(batch.getValues().size());
+
+        for (Map.Entry<String, Object> entry : batch.getValues().entrySet()) {
+            Object value = entry.getValue();
+
+            if (value == PendingWrites.REMOVED) {
+                changes.put(entry.getKey(), null);
+            } else if (value instanceof Set) {
+                changes.put(entry.getKey(), value);
+            } else if (ValueCodec.getType((byte[]) value) != ValueCodec.TYPE_STREAM) {
+                changes.put(entry.getKey(), ValueCodec.decode((byte[]) value));
+            }
+        }
+
+        final Map<String, ?> unmodifiableChanges = Collections.unmodifiableMap(changes);
+
+        for (final Map.Entry<OnSecurePreferenceChangeListener, Executor> listener : listeners.entrySet()) {
+            try {
+                listener.getValue().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.getKey().onSecurePreferencesChanged(SecurePreferences.this,
+                                unmodifiableChanges,
+                                batch.isCleared());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not notify change listener", e);
+            }
+        }
+    }
+
+    private Set<String> createSet() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return new ArraySet<>();
+        } else {
+            return new HashSet<>();
+        }
+    }
 
-import me.adamstroud.prngfixes.PRNGFixes;
+    private Set<String> createSet(int size) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return new ArraySet<>(size);
+        } else {
+            return new HashSet<>(size);
+        }
+    }
 
-/**
- * TODO
- *
- * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
- */
-public class SecurePreferences implements SharedPreferences {
-    private static final String TAG = SecurePreferences.class.getSimpleName();
-    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
-    private static final String CIPHER_PROVIDER = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
-            ? "AndroidKeyStoreBCWorkaround"
-            : "AndroidOpenSSL";
-    private static final String ALIAS = "securePreferenceKey";
-    private static final int BASE_64_FLAGS = Base64.DEFAULT;
-    private static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+    private boolean commit(final PendingWrites.Batch batch) {
+        long start = startTiming();
+        boolean committed;
 
-    private final SharedPreferences sharedPreferences;
+        try {
+            committed = writeAndCommit(batch);
+        } catch (SecurePreferencesException e) {
+            reportFailure(MetricsListener.Operation.COMMIT, null, e);
+            throw e;
+        }
 
-    private static boolean prngFixed = false;
+        reportOperation(MetricsListener.Operation.COMMIT, null, start);
+        return committed;
+    }
 
-    static {
-        if (!prngFixed) {
-            PRNGFixes.apply();
-            prngFixed = true;
+    private boolean writeAndCommit(PendingWrites.Batch batch) {
+        return write(batch, submit(batch, true), true, false);
+    }
+
+    private Future<Boolean> commitAsync(final PendingWrites.Batch batch,
+                                        final AsyncSecurePreferences.Callback<Boolean> callback,
+                                        final Executor callbackExecutor) {
+        // Queued while the ticket is taken, so a write thread never waits for a batch queued behind it
+        synchronized (writeStripes) {
+            final WriteStripes.Ticket ticket = submit(batch, true);
+
+            return writeExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    long start = startTiming();
+                    boolean committed;
+
+                    try {
+                        committed = write(batch, ticket, true, true);
+                    } catch (SecurePreferencesException e) {
+                        reportFailure(MetricsListener.Operation.COMMIT, null, e);
+                        AsyncSecurePreferences.deliverFailure(callbackExecutor, callback, e);
+                        throw e;
+                    } catch (RuntimeException e) {
+                        // The callback is the only result callers without the future get
+                        AsyncSecurePreferences.deliverFailure(callbackExecutor, callback, e);
+                        throw e;
+                    }
+
+                    reportOperation(MetricsListener.Operation.COMMIT, null, start);
+                    AsyncSecurePreferences.deliverSuccess(callbackExecutor, callback, committed);
+                    return committed;
+                }
+            });
+        }
+    }
+
+    private void apply(final PendingWrites.Batch batch) {
+        synchronized (writeStripes) {
+            final WriteStripes.Ticket ticket = submit(batch, false);
+
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = startTiming();
+
+                    try {
+                        write(batch, ticket, false, true);
+                        reportOperation(MetricsListener.Operation.APPLY, null, start);
+                    } catch (SecurePreferencesException e) {
+                        Log.e(TAG, "Could not apply preferences", e);
+                        reportFailure(MetricsListener.Operation.APPLY, null, e);
+                    }
+                }
+            });
         }
     }
 
     /**
-     * TODO
+     * Makes a batch visible to reads and takes its place in the write order. Both happen in
+     * one step, so the pending writes are always merged in the order they are written.
      *
-     * @param sharedPreferences
-     * @param context
+     * @param commit Whether the batch is committed, which orders it after every earlier batch
+     * like {@link SharedPreferences.Editor#commit()} is ordered after every earlier apply.
      */
-    public SecurePreferences(SharedPreferences sharedPreferences, Context context) {
-        this.sharedPreferences = sharedPreferences;
+    private WriteStripes.Ticket submit(PendingWrites.Batch batch, boolean commit) {
+        synchronized (writeStripes) {
+            pendingWrites.add(batch);
+            return commit
+                    ? writeStripes.takeAfterAll(batch.getValues().keySet(), batch.isCleared())
+                    : writeStripes.take(batch.getValues().keySet(), batch.isCleared());
+        }
+    }
+
+    /**
+     * Encrypts a batch, then writes it to the backing preferences once every batch that was
+     * submitted before it and shares a stripe with it has been written, and for a commit every
+     * batch submitted before it. Applied batches with disjoint keys never wait for each other,
+     * and encrypting never waits at all.
+     *
+     * @param commit Commits the backing editor if true, applies it otherwise.
+     * @param background Whether this runs on a write thread, where it waits for the keys
+     * regardless of the {@link NotReadyPolicy}.
+     * @return The result of committing the backing editor, true if it was applied.
+     */
+    private boolean write(PendingWrites.Batch batch, WriteStripes.Ticket ticket, boolean commit, boolean background) {
+        Map<String, String> ciphertexts = null;
+        RuntimeException failure = null;
 
         try {
-            KeyStore keystore = KeyStore.getInstance(KEYSTORE_PROVIDER);
-            keystore.load(null);
+            if (background) {
+                awaitInitialization();
+            }
 
-            KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keystore.getEntry(ALIAS, null);
+            ciphertexts = encryptBatch(batch);
+        } catch (RuntimeException e) {
+            // The ticket still has to be served in order
+            failure = e;
+        }
 
-            if (entry == null) {
-                Calendar end = Calendar.getInstance();
-                end.add(Calendar.YEAR, 100);
+        writeStripes.await(ticket);
 
-                @SuppressLint("InlinedApi")
-                KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER);
+        try {
+            if (failure != null) {
+                throw failure;
+            }
 
-                KeyPairGeneratorSpec.Builder builder = new KeyPairGeneratorSpec.Builder(context)
-                        .setSubject(new X500Principal("CN=" + ALIAS))
-                        .setSerialNumber(BigInteger.TEN)
-                        .setStartDate(new Date())
-                        .setEndDate(end.getTime())
-                        .setAlias(ALIAS);
+            // Every batch gets its own backing editor, batches on other stripes stage at the same time
+            Editor editor = sharedPreferences.edit();
+            stageBatch(editor, batch, ciphertexts);
+            boolean written = true;
 
-                keyPairGenerator.initialize(builder.build());
+            if (commit) {
+                written = editor.commit();
+            } else {
+                editor.apply();
+            }
 
-                keyPairGenerator.generateKeyPair();
+            if (written) {
+                deleteReplacedStreams(batch);
+                notifyChangeListeners(batch);
             }
-        } catch (IOException
-                | CertificateException
-                | NoSuchAlgorithmException
-                | UnrecoverableEntryException
-                | KeyStoreException
-                | NoSuchProviderException
-                | InvalidAlgorithmParameterException e) {
-            throw new RuntimeException("Could not init Secure Preferences", e);
+
+            return written;
+        } finally {
+            // Removed before the next batch on the stripe is written, so it can never hide that one
+            pendingWrites.remove(batch);
+            invalidateCache(batch);
+            writeStripes.release(ticket);
         }
     }
 
-    private byte[] decrypt(String ciphertext) {
-        try {
-            KeyStore keystore = KeyStore.getInstance(KEYSTORE_PROVIDER);
-            keystore.load(null);
-            KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keystore.getEntry(ALIAS, null);
+    /**
+     * Encrypts every value of a batch.
+     *
+     * @return The ciphertexts keyed by preference, without the keys that are removed.
+     */
+    private Map<String, String> encryptBatch(PendingWrites.Batch batch) {
+        awaitReady();
+        Map<String, String> ciphertexts = new HashMap<>(batch.getValues().size());
+
+        for (Map.Entry<String, Object> entry : batch.getValues().entrySet()) {
+            if (entry.getValue() != PendingWrites.REMOVED) {
+                ciphertexts.put(entry.getKey(), encryptValue(entry.getValue()));
+            }
+        }
 
-            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION, CIPHER_PROVIDER);
-            cipher.init(Cipher.DECRYPT_MODE, entry.getPrivateKey());
+        return ciphertexts;
+    }
 
-            return cipher.doFinal(Base64.decode(ciphertext, BASE_64_FLAGS));
-        } catch(NoSuchPaddingException
-                | NoSuchAlgorithmException
-                | KeyStoreException
-                | UnrecoverableEntryException
-                | InvalidKeyException
-                | BadPaddingException
-                | IllegalBlockSizeException
-                | NoSuchProviderException
-                | CertificateException
-                | IOException e) {
-            throw new SecurePreferencesException("Could not decrypt preference", e);
+    /**
+     * @param plaintext An encoded {@code byte[]} or a {@code Set<String>}.
+     */
+    private String encryptValue(Object plaintext) {
+        if (plaintext instanceof Set) {
+            // The whole set is a single ciphertext, which also hides the number of elements
+            @SuppressWarnings("unchecked")
+            Set<String> values = (Set<String>) plaintext;
+            return preferenceCipher.encrypt(ValueCodec.encodeStringSet(values));
         }
+
+        return preferenceCipher.encrypt((byte[]) plaintext);
     }
 
-    @Override
-    public Map<String, byte[]> getAll() throws SecurePreferencesException {
-        Map<String, String> encryptedPreferences = (Map<String, String>) sharedPreferences.getAll();
-        Map<String, byte[]> decryptedPreferences = new HashMap<>(encryptedPreferences.size());
+    /**
+     * Stages the ciphertexts of a batch in the backing editor. Only called while the batch holds
+     * its stripes, so batches reach the backing preferences in order.
+     */
+    private void stageBatch(Editor editor, PendingWrites.Batch batch, Map<String, String> ciphertexts) {
+        // Cleared after encrypting, a data key created by this batch must be restored as well
+        if (batch.isCleared()) {
+            editor.clear();
+            preferenceCipher.onClear(editor);
 
-        for (String key : encryptedPreferences.keySet()) {
-            decryptedPreferences.put(key, decrypt(encryptedPreferences.get(key)));
+            if (prefetchProfile != null) {
+                prefetchProfile.onClear(editor);
+            }
         }
 
-        return Collections.unmodifiableMap(decryptedPreferences);
+        for (String key : batch.getValues().keySet()) {
+            String ciphertext = ciphertexts.get(key);
+
+            if (ciphertext != null && !preferenceCipher.isCurrentKeyVersion(ciphertext)) {
+                // Encrypted while a key rotation started, which may delete that key version soon
+                ciphertext = encryptValue(batch.getValues().get(key));
+            }
+
+            if (ciphertext != null) {
+                editor.putString(key, ciphertext);
+            } else {
+                editor.remove(key);
+            }
+        }
     }
-    
-    @Override
-    public String getString(String key, String defValue) throws SecurePreferencesException {
-        String value = defValue;
 
-        if (sharedPreferences.contains(key)) {
-            value = new String(decrypt(sharedPreferences.getString(key, null)));
+    /**
+     * Deletes the stream files that are no longer referenced once a batch has been written,
+     * including files of streams that were put by an earlier process but never committed.
+     */
+    private void deleteReplacedStreams(PendingWrites.Batch batch) {
+        if (streamStore == null) {
+            return;
         }
 
-        return value;
-    }
+        for (Object plaintext : batch.getValues().values()) {
+            byte[] reference = getStreamReference(plaintext);
 
-    @Override
-    public Set<String> getStringSet(String key, Set<String> defValues) throws SecurePreferencesException {
-        Set<String> values = defValues;
+            if (reference != null) {
+                streamStore.onCommitted(reference);
+            }
+        }
 
-        if (sharedPreferences.contains(key)) {
-            Set<String> ciphertextValues = sharedPreferences.getStringSet(key, null);
-            values = createSet();
+        try {
+            if (batch.isCleared()) {
+                Set<String> referencedFileNames = new HashSet<>();
 
-            for (String ciphertextValue : ciphertextValues) {
-                values.add(new String(decrypt(ciphertextValue)));
+                for (Object plaintext : batch.getValues().values()) {
+                    byte[] reference = getStreamReference(plaintext);
+
+                    if (reference != null) {
+                        referencedFileNames.add(StreamStore.getFileName(reference));
+                    }
+                }
+
+                streamStore.deleteAllUnreferenced(referencedFileNames);
+            } else {
+                for (Map.Entry<String, Object> entry : batch.getValues().entrySet()) {
+                    streamStore.deleteUnreferenced(entry.getKey(), getStreamReference(entry.getValue()));
+                }
             }
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Could not delete replaced streams", e);
+        }
+    }
+
+    private static byte[] getStreamReference(Object plaintext) {
+        if (plaintext instanceof byte[] && ValueCodec.getType((byte[]) plaintext) == ValueCodec.TYPE_STREAM) {
+            return ValueCodec.decodeStream((byte[]) plaintext);
         }
 
-        return Collections.unmodifiableSet(values);
+        return null;
     }
 
-    @Override
-    public int getInt(String key, int defValue) throws SecurePreferencesException {
-        int value = defValue;
+    private long startTiming() {
+        return metricsListener == null ? 0 : System.nanoTime();
+    }
 
-        if (sharedPreferences.contains(key)) {
-            byte[] bytes = decrypt(sharedPreferences.getString(key, null));
-            value = ByteBuffer.allocate(bytes.length).put(bytes).getInt(0);
+    private void reportOperation(MetricsListener.Operation operation, String key, long start) {
+        if (metricsListener != null) {
+            metricsListener.onOperation(operation, key, System.nanoTime() - start);
         }
+    }
 
-        return value;
+    private void reportFailure(MetricsListener.Operation operation, String key, SecurePreferencesException e) {
+        if (metricsListener != null) {
+            metricsListener.onFailure(operation, key, e);
+        }
     }
 
-    @Override
-    public long getLong(String key, long defValue) throws SecurePreferencesException {
-        long value = defValue;
+    private void invalidateCache(PendingWrites.Batch batch) {
+        if (cache != null) {
+            if (batch.isCleared()) {
+                cache.invalidateAll();
+            } else {
+                for (String key : batch.getValues().keySet()) {
+                    cache.invalidate(key);
+                }
+            }
+        }
+    }
 
-        if (sharedPreferences.contains(key)) {
-            byte[] bytes = decrypt(sharedPreferences.getString(key, null));
-            value = ByteBuffer.allocate(bytes.length).put(bytes).getLong(0);
+    /**
+     * Makes a new key version the current one, unless a key rotation is in progress already.
+     * Every value written from now on uses the new version, and
+     * {@link #rotateNextBatch(int)} re-encrypts the existing ones.
+     *
+     * @return False if a rotation was in progress already.
+     */
+    /* default */ boolean startKeyRotation() throws SecurePreferencesException {
+        if (!keyRing.isRotatable()) {
+            throw new UnsupportedOperationException("Key rotation requires a CryptoBackend.Factory");
         }
 
-        return value;
-    }
+        awaitReady();
+        WriteStripes.Ticket ticket = writeStripes.take(
+                Arrays.asList(KeyRing.KEY_VERSION_PREFERENCE, KeyRing.ROTATION_PREFERENCE), false);
+        writeStripes.await(ticket);
 
-    @Override
-    public float getFloat(String key, float defValue) throws SecurePreferencesException {
-        float value = defValue;
+        try {
+            if (sharedPreferences.contains(KeyRing.ROTATION_PREFERENCE)) {
+                return false;
+            }
+
+            int previousVersion = keyRing.getCurrent().getVersion();
+            KeyRing.KeyVersion nextVersion = keyRing.create(previousVersion + 1);
+
+            // Stored together, so the rotation is resumed if the process dies right after
+            boolean committed = sharedPreferences.edit()
+                    .putString(KeyRing.KEY_VERSION_PREFERENCE, Integer.toString(nextVersion.getVersion()))
+                    .putString(KeyRing.ROTATION_PREFERENCE, Integer.toString(previousVersion))
+                    .commit();
+
+            if (!committed) {
+                throw new SecurePreferencesException("Could not store key version");
+            }
 
-        if (sharedPreferences.contains(key)) {
-            byte[] bytes = decrypt(sharedPreferences.getString(key, null));
-            value = ByteBuffer.allocate(bytes.length).put(bytes).getFloat(0);
+            keyRing.setCurrent(nextVersion);
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new SecurePreferencesException("Could not create key version", e);
+        } finally {
+            writeStripes.release(ticket);
         }
+    }
 
-        return value;
+    /* default */ boolean isKeyRotationInProgress() {
+        return sharedPreferences.contains(KeyRing.ROTATION_PREFERENCE);
     }
 
-    @Override
-    public boolean getBoolean(String key, boolean defValue) throws SecurePreferencesException {
-        boolean value = defValue;
+    /**
+     * Re-encrypts the values of the next keys of a key rotation, in the order of their keys. The
+     * rotation stores the last key it handled in the same commit as the values, so it picks up
+     * where it left off if the process dies. Once every value uses the current version, the
+     * key of the previous version is deleted, which ends the rotation.
+     *
+     * @param batchSize The number of keys to handle.
+     * @return The number of values that were re-encrypted, or -1 if no rotation is in progress.
+     */
+    /* default */ int rotateNextBatch(int batchSize) throws SecurePreferencesException {
+        String checkpoint = sharedPreferences.getString(KeyRing.ROTATION_PREFERENCE, null);
 
-        if (sharedPreferences.contains(key)) {
-            byte[] bytes = decrypt(sharedPreferences.getString(key, null));
-            value = (bytes[0] == 1);
+        if (checkpoint == null) {
+            return -1;
         }
 
-        return value;
-    }
+        awaitReady();
 
-    @Override
-    public boolean contains(String key) {
-        return sharedPreferences.contains(key);
-    }
+        // <previous version>, followed by :<last key> once the first batch is written
+        int separator = checkpoint.indexOf(':');
+        int previousVersion = Integer.parseInt(separator < 0 ? checkpoint : checkpoint.substring(0, separator));
+        String lastKey = separator < 0 ? null : checkpoint.substring(separator + 1);
+        TreeSet<String> keys = new TreeSet<>();
 
-    @Override
-    public Editor edit() {
-        return new SecureEditor(sharedPreferences.edit());
+        for (String key : sharedPreferences.getAll().keySet()) {
+            if (!preferenceCipher.isReservedKey(key) && (lastKey == null || key.compareTo(lastKey) > 0)) {
+                keys.add(key);
+            }
+        }
+
+        if (keys.isEmpty()) {
+            return finishKeyRotation(previousVersion);
+        }
+
+        List<String> batch = new ArrayList<>(batchSize + 1);
+
+        for (String key : keys) {
+            if (batch.size() == batchSize) {
+                break;
+            }
+
+            batch.add(key);
+        }
+
+        WriteStripes.Ticket ticket = writeStripes.take(batch, false);
+        writeStripes.await(ticket);
+        int reencrypted = 0;
+
+        try {
+            Map<String, ?> encryptedPreferences = sharedPreferences.getAll();
+            Editor editor = sharedPreferences.edit();
+
+            for (String key : batch) {
+                Object ciphertext = encryptedPreferences.get(key);
+
+                if (ciphertext instanceof Set) {
+                    @SuppressWarnings("unchecked")
+                    Set<String> ciphertextValues = (Set<String>) ciphertext;
+                    editor.putString(key, encryptValue(decryptLegacySet(key, ciphertextValues)));
+                } else if (ciphertext instanceof String && !preferenceCipher.isCurrentKeyVersion((String) ciphertext)) {
+                    editor.putString(key, preferenceCipher.encrypt(preferenceCipher.decrypt((String) ciphertext)));
+                } else {
+                    continue;
+                }
+
+                reencrypted++;
+            }
+
+            editor.putString(KeyRing.ROTATION_PREFERENCE, previousVersion + ":" + batch.get(batch.size() - 1));
+
+            if (!editor.commit()) {
+                throw new SecurePreferencesException("Could not store re-encrypted preferences");
+            }
+        } finally {
+            if (cache != null) {
+                for (String key : batch) {
+                    cache.invalidate(key);
+                }
+            }
+
+            writeStripes.release(ticket);
+        }
+
+        return reencrypted;
     }
 
-    @Override
-    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+    /**
+     * Ends a key rotation once every key has been handled, or starts another pass if values
+     * were written with the previous version in the meantime, for example by a write that was
+     * encrypted right before the rotation started.
+     *
+     * @return 0 if another pass is needed, -1 if the rotation ended.
+     */
+    private int finishKeyRotation(int previousVersion) throws SecurePreferencesException {
+        WriteStripes.Ticket ticket = writeStripes.take(Collections.<String>emptySet(), true);
+        writeStripes.await(ticket);
+
+        try {
+            for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+                Object ciphertext = entry.getValue();
+
+                if (!preferenceCipher.isReservedKey(entry.getKey())
+                        && (ciphertext instanceof Set
+                        || (ciphertext instanceof String && !preferenceCipher.isCurrentKeyVersion((String) ciphertext)))) {
+                    if (!sharedPreferences.edit()
+                            .putString(KeyRing.ROTATION_PREFERENCE, Integer.toString(previousVersion))
+                            .commit()) {
+                        throw new SecurePreferencesException("Could not restart key rotation");
+                    }
+
+                    return 0;
+                }
+            }
+
+            // Deleted first, a rotation that dies before the commit deletes it again
+            keyRing.delete(previousVersion);
+
+            if (!sharedPreferences.edit()
+                    .remove(KeyRing.ROTATION_PREFERENCE)
+                    .remove(KeyRing.getDataKeyPreference(previousVersion))
+                    .commit()) {
+                throw new SecurePreferencesException("Could not finish key rotation");
+            }
+
+            return -1;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new SecurePreferencesException("Could not delete key version " + previousVersion, e);
+        } finally {
+            writeStripes.release(ticket);
+        }
     }
 
-    @Override
-    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        sharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+    /**
+     * The backing preferences and the pending writes from the same point in time.
+     */
+    private static class ConsistentRead {
+        private final PendingWrites.Snapshot pending;
+        private final Map<String, ?> encryptedPreferences;
+
+        private ConsistentRead(PendingWrites.Snapshot pending, Map<String, ?> encryptedPreferences) {
+            this.pending = pending;
+            this.encryptedPreferences = encryptedPreferences;
+        }
     }
 
-    private Set<String> createSet() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            return new ArraySet<>();
-        } else {
-            return new HashSet<>();
+    /**
+     * Configures and creates {@link SecurePreferences}.
+     */
+    public static class Builder {
+        private final SharedPreferences sharedPreferences;
+        private final Context context;
+        private CryptoBackend cryptoBackend;
+        private CryptoBackend.Factory cryptoBackendFactory;
+        private Mode mode = Mode.RSA;
+        private int compressionThreshold;
+        private int cacheMaxEntries;
+        private long cacheMaxBytes;
+        private ExecutorService decryptExecutor;
+        private NotReadyPolicy notReadyPolicy = NotReadyPolicy.BLOCK;
+        private long readyTimeoutMillis = Long.MAX_VALUE;
+        private MetricsListener metricsListener;
+        private File streamDirectory;
+        private Collection<String> prefetchKeys = Collections.emptySet();
+        private int prefetchProfileMaxKeys;
+        private long prefetchProfileWindowMillis;
+
+        /**
+         * @param sharedPreferences The preferences that store the encrypted values.
+         * @param context The context used to generate the keystore key.
+         */
+        public Builder(SharedPreferences sharedPreferences, Context context) {
+            this.sharedPreferences = sharedPreferences;
+            this.context = context;
+        }
+
+        /**
+         * Creates a builder for preferences that are protected by the given backend instead of
+         * the AndroidKeyStore. No {@link Context} is needed in that case.
+         *
+         * @param sharedPreferences The preferences that store the encrypted values.
+         * @param cryptoBackend The backend that owns the key.
+         */
+        public Builder(SharedPreferences sharedPreferences, CryptoBackend cryptoBackend) {
+            this.sharedPreferences = sharedPreferences;
+            this.context = null;
+            this.cryptoBackend = cryptoBackend;
+        }
+
+        /**
+         * Sets the backend that owns the key. Defaults to {@link AndroidKeyStoreBackend}. The key
+         * of a single backend can not be rotated, see {@link #setCryptoBackendFactory(CryptoBackend.Factory)}.
+         */
+        public Builder setCryptoBackend(CryptoBackend cryptoBackend) {
+            this.cryptoBackend = cryptoBackend;
+            this.cryptoBackendFactory = null;
+            return this;
+        }
+
+        /**
+         * Sets the factory that creates the backend of every key version, which allows
+         * {@link KeyRotation} to replace the key. Replaces a backend set with
+         * {@link #setCryptoBackend(CryptoBackend)}. Defaults to {@link AndroidKeyStoreBackend.Factory}
+         * if no backend is set.
+         */
+        public Builder setCryptoBackendFactory(CryptoBackend.Factory cryptoBackendFactory) {
+            this.cryptoBackendFactory = cryptoBackendFactory;
+            this.cryptoBackend = null;
+            return this;
+        }
+
+        /**
+         * Sets how new values are encrypted. Defaults to {@link Mode#RSA}.
+         */
+        public Builder setMode(Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Deflates values of at least the given size before they are encrypted, which keeps
+         * large strings and string sets, like JSON, small on disk. Values that do not get
+         * smaller are stored as they are. Reads detect deflated values, so this can be changed
+         * at any time. Disabled by default.
+         *
+         * <p>The length of a deflated value depends on its content. Do not enable this if
+         * values mix secrets with data an attacker controls and the attacker can see the size
+         * of the stored preferences.</p>
+         *
+         * @param bytes The minimum size of an encoded value that is deflated.
+         */
+        public Builder setCompressionThreshold(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Compression threshold must be positive");
+            }
+
+            this.compressionThreshold = bytes;
+            return this;
+        }
+
+        /**
+         * Keeps recently read values in memory so repeated reads of an unchanged preference do
+         * not decrypt it again. The cache is disabled by default.
+         *
+         * @param maxEntries The maximum number of cached preferences.
+         * @param maxBytes The approximate maximum size of the cache in bytes.
+         */
+        public Builder setCache(int maxEntries, long maxBytes) {
+            if (maxEntries <= 0 || maxBytes <= 0) {
+                throw new IllegalArgumentException("Cache bounds must be positive");
+            }
+
+            this.cacheMaxEntries = maxEntries;
+            this.cacheMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets the executor used to decrypt preferences in parallel in
+         * {@link SecurePreferences#getAll()} and {@link SecurePreferences#getBatch(Collection)}.
+         * Any {@link ExecutorService} works, including a {@code ForkJoinPool}. By default values
+         * are decrypted one after another on the calling thread.
+         */
+        public Builder setDecryptExecutor(ExecutorService decryptExecutor) {
+            this.decryptExecutor = decryptExecutor;
+            return this;
+        }
+
+        /**
+         * Sets what happens when a value is read or written before the keys created by
+         * {@link #buildAsync()} are ready. Defaults to {@link NotReadyPolicy#BLOCK}.
+         */
+        public Builder setNotReadyPolicy(NotReadyPolicy notReadyPolicy) {
+            this.notReadyPolicy = notReadyPolicy;
+            return this;
+        }
+
+        /**
+         * Sets how long {@link NotReadyPolicy#BLOCK} waits for the keys before a
+         * {@link SecurePreferencesException} is thrown. Waits indefinitely by default.
+         */
+        public Builder setReadyTimeout(long timeout, TimeUnit unit) {
+            this.readyTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Reports operation latencies, crypto counters and failures to the listener. Use a
+         * {@link MetricsRecorder} to aggregate them. No metrics are collected by default.
+         */
+        public Builder setMetricsListener(MetricsListener metricsListener) {
+            this.metricsListener = metricsListener;
+            return this;
+        }
+
+        /**
+         * Sets the directory that holds the values written with
+         * {@link SecureEditor#putStream(String, InputStream)}. Every instance needs its own
+         * directory that is not used for anything else, since files that no preference refers
+         * to are deleted. Streams are disabled by default.
+         */
+        public Builder setStreamDirectory(File streamDirectory) {
+            this.streamDirectory = streamDirectory;
+            return this;
+        }
+
+        /**
+         * Decrypts the given keys on background threads as soon as the keys are ready, so the
+         * first reads of them do not have to. Prefetched values are kept in the cache set with
+         * {@link #setCache(int, long)}. Without a cache every value is kept until it is read
+         * once, or until {@link SecurePreferences#trimMemory(int)} releases it. Reads that come
+         * before a value is prefetched decrypt it themselves. Values are decrypted on the
+         * executor set with {@link #setDecryptExecutor(ExecutorService)}, or else on the write
+         * threads, which delays writes until the prefetch is done. Nothing is prefetched by
+         * default.
+         *
+         * @param keys The keys to prefetch. Keys that do not exist are skipped.
+         */
+        public Builder setPrefetchKeys(Collection<String> keys) {
+            this.prefetchKeys = new ArrayList<>(keys);
+            return this;
+        }
+
+        /**
+         * Records the keys that are read right after the preferences are created, and
+         * prefetches the keys recorded by the previous instance, the same way as
+         * {@link #setPrefetchKeys(Collection)}. The recorded keys are stored unencrypted in
+         * the backing preferences, like every other key. Disabled by default.
+         *
+         * @param maxKeys The maximum number of keys that are recorded.
+         * @param window How long reads are recorded after the preferences are created.
+         */
+        public Builder setPrefetchProfile(int maxKeys, long window, TimeUnit unit) {
+            if (maxKeys <= 0 || window <= 0) {
+                throw new IllegalArgumentException("Prefetch profile bounds must be positive");
+            }
+
+            this.prefetchProfileMaxKeys = maxKeys;
+            this.prefetchProfileWindowMillis = unit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Creates the preferences, looking up or generating the backend key on the calling
+         * thread.
+         */
+        public SecurePreferences build() {
+            return new SecurePreferences(this, false);
+        }
+
+        /**
+         * Creates the preferences without blocking. The backend key is looked up or generated
+         * on a background thread, see {@link SecurePreferences#getReadyFuture()}. Values that
+         * are already cached or pending can be read before the keys are ready.
+         */
+        public SecurePreferences buildAsync() {
+            return new SecurePreferences(this, true);
         }
     }
 
@@ -265,126 +1932,128 @@ public class SecurePreferences implements SharedPreferences {
      * TODO
      */
     public static class SecureEditor implements SharedPreferences.Editor {
-        private Editor editor;
+        private final SecurePreferences securePreferences;
+        private Map<String, Object> modifications = new HashMap<>();
+        private boolean cleared;
 
-        /* default */ SecureEditor(Editor editor) {
-            this.editor = editor;
+        /* default */ SecureEditor(SecurePreferences securePreferences) {
+            this.securePreferences = securePreferences;
         }
 
-        private String encrypt(byte... plaintext) {
-            try {
-                KeyStore keystore = KeyStore.getInstance(KEYSTORE_PROVIDER);
-                keystore.load(null);
-                KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) keystore.getEntry(ALIAS, null);
-
-                Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION, CIPHER_PROVIDER);
-                cipher.init(Cipher.ENCRYPT_MODE, entry.getCertificate().getPublicKey());
-
-                return Base64.encodeToString(cipher.doFinal(plaintext), BASE_64_FLAGS);
-            } catch(NoSuchPaddingException
-                    | NoSuchAlgorithmException
-                    | KeyStoreException
-                    | UnrecoverableEntryException
-                    | InvalidKeyException
-                    | BadPaddingException
-                    | IllegalBlockSizeException
-                    | NoSuchProviderException
-                    | CertificateException
-                    | IOException e) {
-                throw new SecurePreferencesException("Could not encrypt preference", e);
-            }
-        }
-
-        private Set<String> createSet(int size) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                return new ArraySet<>(size);
-            } else {
-                return new HashSet<>(size);
+        private SharedPreferences.Editor put(String key, Object plaintext) {
+            synchronized (this) {
+                modifications.put(key, plaintext);
             }
+
+            return this;
         }
 
         @Override
         public SharedPreferences.Editor putString(String key, String value) throws SecurePreferencesException {
-            String ciphertext = null;
-
-            if (value != null) {
-                ciphertext = encrypt(value.getBytes());
-            }
-
-            editor.putString(key, ciphertext);
-            return this;
+            return put(key, value == null ? PendingWrites.REMOVED : ValueCodec.encodeString(value));
         }
 
         @Override
         public SharedPreferences.Editor putStringSet(String key, Set<String> values) throws SecurePreferencesException {
-            if (values == null) {
-                editor.putStringSet(key, null);
-            } else {
-                Set<String> encryptedValues = createSet(values.size());
-
-                for (String value : values) {
-                    encryptedValues.add(encrypt(value.getBytes()));
-                }
+            Object plaintext = PendingWrites.REMOVED;
 
-                editor.putStringSet(key, encryptedValues);
+            if (values != null) {
+                Set<String> copy = securePreferences.createSet(values.size());
+                copy.addAll(values);
+                plaintext = Collections.unmodifiableSet(copy);
             }
 
-            return this;
+            return put(key, plaintext);
+        }
+
+        /**
+         * Encrypts a large value into its own file next to the preferences, reading the stream
+         * one chunk at a time. The stream is read and encrypted before this method returns, but
+         * the value only replaces the current one when the editor is committed. Requires API 19
+         * and a directory set with {@link Builder#setStreamDirectory(File)}.
+         *
+         * @param in The value, read until its end but not closed. Removes the preference if null.
+         * @throws SecurePreferencesException If the stream could not be read or encrypted.
+         * @see SecurePreferences#openStream(String)
+         */
+        public SharedPreferences.Editor putStream(String key, InputStream in) throws SecurePreferencesException {
+            return put(key, in == null ? PendingWrites.REMOVED : securePreferences.writeStream(key, in));
         }
 
         @Override
         public SharedPreferences.Editor putInt(String key, int value) throws SecurePreferencesException {
-            @SuppressLint("InlinedApi")
-            final int allocationSize = Integer.BYTES;
-
-            editor.putString(key, encrypt(ByteBuffer.allocate(allocationSize).putInt(value).array()));
-            return this;
+            return put(key, ValueCodec.encodeInt(value));
         }
 
         @Override
         public SharedPreferences.Editor putLong(String key, long value) throws SecurePreferencesException {
-            @SuppressLint("InlinedApi")
-            final int allocationSize = Long.BYTES;
-
-            editor.putString(key, encrypt(ByteBuffer.allocate(allocationSize).putLong(value).array()));
-            return this;
+            return put(key, ValueCodec.encodeLong(value));
         }
 
         @Override
         public SharedPreferences.Editor putFloat(String key, float value) throws SecurePreferencesException {
-            @SuppressLint("InlinedApi")
-            final int allocationSize = Float.BYTES;
-
-            editor.putString(key, encrypt(ByteBuffer.allocate(allocationSize).putFloat(value).array()));
-            return this;
+            return put(key, ValueCodec.encodeFloat(value));
         }
 
         @Override
         public SharedPreferences.Editor putBoolean(String key, boolean value) throws SecurePreferencesException {
-            editor.putString(key, encrypt((value ? (byte) 1 : (byte) 0)));
-            return this;
+            return put(key, ValueCodec.encodeBoolean(value));
         }
 
         @Override
         public SharedPreferences.Editor remove(String key) {
-            editor.remove(key);
-            return this;
+            return put(key, PendingWrites.REMOVED);
         }
 
         @Override
         public SharedPreferences.Editor clear() {
-            editor.clear();
+            synchronized (this) {
+                cleared = true;
+            }
+
             return this;
         }
 
+        /**
+         * Encrypts every pending modification in one pass and writes them synchronously.
+         *
+         * @throws SecurePreferencesException If a value could not be encrypted.
+         */
         @Override
-        public boolean commit() {
-            return editor.commit();
+        public boolean commit() throws SecurePreferencesException {
+            return securePreferences.commit(takeBatch());
         }
 
+        /**
+         * Makes the pending modifications visible to reads immediately, then encrypts and writes
+         * them on a background thread.
+         */
         @Override
         public void apply() {
-            editor.apply();
+            securePreferences.apply(takeBatch());
+        }
+
+        /**
+         * Like {@link #apply()}, but reports the result of writing the modifications. The
+         * modifications are visible to reads as soon as this method returns.
+         *
+         * @return The result of committing the backing preferences. {@link Future#get()} throws
+         * if a value could not be encrypted.
+         */
+        public Future<Boolean> commitAsync() {
+            return commitAsync(null, null);
+        }
+
+        /* default */ Future<Boolean> commitAsync(AsyncSecurePreferences.Callback<Boolean> callback,
+                                                  Executor callbackExecutor) {
+            return securePreferences.commitAsync(takeBatch(), callback, callbackExecutor);
+        }
+
+        private synchronized PendingWrites.Batch takeBatch() {
+            PendingWrites.Batch batch = new PendingWrites.Batch(modifications, cleared);
+            modifications = new HashMap<>();
+            cleared = false;
+            return batch;
         }
     }
 }
@@ -21,6 +21,12 @@ package me.adamstroud.securepreferences;
  * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
  */
 public class SecurePreferencesException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public SecurePreferencesException(String message) {
+        super(message);
+    }
+
     public SecurePreferencesException(String message, Throwable cause) {
         super(message, cause);
     }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable map over the ciphertexts of the preferences at one point in time. A value is
+ * decrypted the first time it is read and kept for the lifetime of the map, so looking up keys
+ * or iterating them never decrypts anything.
+ *
+ * <p>The map may be shared between threads. Two threads reading the same value for the first
+ * time may both decrypt it, but they get equal results.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class SnapshotMap extends AbstractMap<String, Object> {
+    // ConcurrentHashMap does not allow null values, which stream references decode to
+    private static final Object NULL = new Object();
+
+    private final Map<String, Object> ciphertexts;
+    private final Map<String, Object> values;
+    private final Decoder decoder;
+    private final Set<Entry<String, Object>> entrySet = new EntrySet();
+
+    /**
+     * @param ciphertexts The ciphertext of every key in the map, as read from the backing
+     * preferences. Values that are known without decrypting are marked with any non-null
+     * object and passed in {@code values} instead.
+     * @param values Values that are already decoded, keyed by preference. Takes precedence
+     * over {@code ciphertexts}.
+     */
+    /* default */ SnapshotMap(Map<String, Object> ciphertexts, Map<String, Object> values, Decoder decoder) {
+        this.ciphertexts = Collections.unmodifiableMap(ciphertexts);
+        this.values = new ConcurrentHashMap<>(values.size());
+        this.decoder = decoder;
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            this.values.put(entry.getKey(), entry.getValue() == null ? NULL : entry.getValue());
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = values.get(key);
+
+        if (value == null) {
+            Object ciphertext = ciphertexts.get(key);
+
+            if (ciphertext == null) {
+                return null;
+            }
+
+            value = decoder.decode((String) key, ciphertext);
+            value = value == null ? NULL : value;
+            values.put((String) key, value);
+        }
+
+        return value == NULL ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return ciphertexts.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return ciphertexts.size();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return ciphertexts.keySet();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return entrySet;
+    }
+
+    /**
+     * Decrypts and decodes a single value of a {@link SnapshotMap}.
+     */
+    /* default */ interface Decoder {
+        /**
+         * @param ciphertext The value of the key in the backing preferences.
+         * @return The decoded value, or null for values that cannot be read from the map.
+         */
+        Object decode(String key, Object ciphertext) throws SecurePreferencesException;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<String, Object>> {
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+            final Iterator<String> keys = ciphertexts.keySet().iterator();
+
+            return new Iterator<Entry<String, Object>>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public Entry<String, Object> next() {
+                    return new LazyEntry(keys.next());
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ciphertexts.size();
+        }
+    }
+
+    /**
+     * An entry that decrypts its value when it is first asked for it.
+     */
+    private class LazyEntry implements Entry<String, Object> {
+        private final String key;
+
+        private LazyEntry(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return get(key);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+
+            Entry<?, ?> other = (Entry<?, ?>) o;
+            Object value = getValue();
+
+            return key.equals(other.getKey())
+                    && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * A {@link CryptoBackend} that keeps its RSA key pair in memory and only uses the default JCA
+ * providers. It does not need the AndroidKeyStore, so it runs on a plain JVM, which makes it
+ * useful for tests and benchmarks.
+ *
+ * <p>The key pair is never persisted. A generated key pair is lost when the process dies, and
+ * every value that was encrypted with it can no longer be decrypted, even though the
+ * ciphertext is still stored in the preferences. Pass the same key pair to
+ * {@link #SoftwareCryptoBackend(KeyPair)} to read values across instances. The key is also not
+ * protected by the keystore, so this backend should not be used for production data.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class SoftwareCryptoBackend implements CryptoBackend {
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+    private static final int DEFAULT_KEY_SIZE = 2048;
+    private static final int PADDING_OVERHEAD = 11;
+
+    private final int keySize;
+    private final ThreadLocal<Cipher> encryptCiphers = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decryptCiphers = new ThreadLocal<>();
+
+    private volatile KeyPair keyPair;
+
+    /**
+     * Creates a backend that generates a 2048 bit key pair when it is initialized.
+     */
+    public SoftwareCryptoBackend() {
+        this.keySize = DEFAULT_KEY_SIZE;
+    }
+
+    /**
+     * Creates a backend that uses an existing key pair, for example to share a key between
+     * instances or to get repeatable results.
+     */
+    public SoftwareCryptoBackend(KeyPair keyPair) {
+        this.keySize = DEFAULT_KEY_SIZE;
+        this.keyPair = keyPair;
+    }
+
+    @Override
+    public synchronized void initialize() throws GeneralSecurityException {
+        if (keyPair == null) {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+            keyPairGenerator.initialize(keySize);
+            keyPair = keyPairGenerator.generateKeyPair();
+        }
+    }
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException, IOException {
+        return getCipher(Cipher.ENCRYPT_MODE, encryptCiphers).doFinal(plaintext);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException, IOException {
+        return getCipher(Cipher.DECRYPT_MODE, decryptCiphers).doFinal(ciphertext);
+    }
+
+    @Override
+    public int getMaxPlaintextLength() {
+        if (keyPair == null) {
+            throw new IllegalStateException("Backend has not been initialized");
+        }
+
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        return (publicKey.getModulus().bitLength() + 7) / 8 - PADDING_OVERHEAD;
+    }
+
+    private Cipher getCipher(int mode, ThreadLocal<Cipher> ciphers) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+
+        if (cipher == null) {
+            if (keyPair == null) {
+                throw new IllegalStateException("Backend has not been initialized");
+            }
+
+            cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            cipher.init(mode, mode == Cipher.ENCRYPT_MODE ? keyPair.getPublic() : keyPair.getPrivate());
+            ciphers.set(cipher);
+        }
+
+        return cipher;
+    }
+
+    /**
+     * Creates a backend for every key version. The keys only live as long as the factory, so
+     * every {@link SecurePreferences} that shares the backing preferences has to share the
+     * factory as well.
+     */
+    public static class Factory implements CryptoBackend.Factory {
+        private final Map<Integer, SoftwareCryptoBackend> backends = new HashMap<>();
+
+        @Override
+        public synchronized CryptoBackend create(int keyVersion) {
+            SoftwareCryptoBackend backend = backends.get(keyVersion);
+
+            if (backend == null) {
+                backend = new SoftwareCryptoBackend();
+                backends.put(keyVersion, backend);
+            }
+
+            return backend;
+        }
+
+        @Override
+        public synchronized void delete(int keyVersion) {
+            backends.remove(keyVersion);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stores large values in files next to the preferences. Every file is encrypted with its own
+ * random AES-256 key as a sequence of AES-GCM chunks, so neither writing nor reading a value
+ * ever holds more than one chunk in memory.
+ *
+ * <p>The preference itself only holds a reference made of the file key and the file name, and
+ * is encrypted like any other value. A file that is not referenced by a committed preference is
+ * deleted the next time its key is written, unless it was written by this process and has not
+ * been committed yet, since an editor may still commit it.</p>
+ *
+ * <p>Each chunk is stored as a flag that marks the last chunk, the ciphertext length and the
+ * ciphertext. The nonce of a chunk is its index followed by the flag, so reordered, dropped or
+ * truncated chunks fail to authenticate.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+/* default */ class StreamStore {
+    /* default */ static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final int VERSION = 1;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final String KEY_ALGORITHM = "AES";
+    private static final int KEY_LENGTH = 32;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int TAG_BYTES = TAG_LENGTH / 8;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int PREFIX_BYTES = 16;
+    private static final int ID_BYTES = 8;
+    private static final char NAME_SEPARATOR = '-';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final SecureRandom random = new SecureRandom();
+    private final Set<String> uncommittedFileNames = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @param directory The directory that holds the files. It must not be used for anything else.
+     */
+    /* default */ StreamStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Encrypts a stream into a new file. The file belongs to the key, but is only used once the
+     * returned reference is committed.
+     *
+     * @return The reference to pass to {@link ValueCodec#encodeStream(byte[])}.
+     */
+    /* default */ byte[] write(String key, InputStream in) throws IOException, GeneralSecurityException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        byte[] fileKey = new byte[KEY_LENGTH];
+        byte[] id = new byte[ID_BYTES];
+        random.nextBytes(fileKey);
+        random.nextBytes(id);
+
+        String fileName = getPrefix(key) + toHex(id);
+        File file = new File(directory, fileName);
+        FileOutputStream fileOut = new FileOutputStream(file);
+        boolean written = false;
+
+        try {
+            EncryptingOutputStream out = new EncryptingOutputStream(fileOut, new SecretKeySpec(fileKey, KEY_ALGORITHM));
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int count;
+
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+
+            out.finish();
+            // The file has to be durable before a preference can point to it
+            fileOut.getFD().sync();
+            written = true;
+        } finally {
+            fileOut.close();
+
+            if (!written && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        uncommittedFileNames.add(fileName);
+        byte[] name = fileName.getBytes(UTF_8);
+        byte[] reference = Arrays.copyOf(fileKey, KEY_LENGTH + name.length);
+        System.arraycopy(name, 0, reference, KEY_LENGTH, name.length);
+        Arrays.fill(fileKey, (byte) 0);
+        return reference;
+    }
+
+    /**
+     * Opens a stream that decrypts the file of a reference while it is read. Reading throws an
+     * {@link IOException} if the file has been modified or truncated.
+     */
+    /* default */ InputStream open(byte[] reference) throws IOException, GeneralSecurityException {
+        SecretKey fileKey = new SecretKeySpec(reference, 0, KEY_LENGTH, KEY_ALGORITHM);
+        File file = new File(directory, getFileName(reference));
+
+        return new DecryptingInputStream(new FileInputStream(file), fileKey);
+    }
+
+    /**
+     * Marks the file of a reference as committed, so it can be deleted once it is replaced.
+     */
+    /* default */ void onCommitted(byte[] reference) {
+        uncommittedFileNames.remove(getFileName(reference));
+    }
+
+    /**
+     * Deletes every committed file of the key except the one of the reference.
+     *
+     * @param reference The reference that was committed for the key, may be null.
+     */
+    /* default */ void deleteUnreferenced(String key, byte[] reference) throws GeneralSecurityException {
+        String prefix = getPrefix(key);
+        String referenced = reference == null ? null : getFileName(reference);
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+
+                if (name.startsWith(prefix) && !name.equals(referenced) && !uncommittedFileNames.contains(name)) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes every committed file that does not belong to one of the references.
+     */
+    /* default */ void deleteAllUnreferenced(Set<String> referencedFileNames) {
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+
+                if (!referencedFileNames.contains(name) && !uncommittedFileNames.contains(name)) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /* default */ static String getFileName(byte[] reference) {
+        return new String(reference, KEY_LENGTH, reference.length - KEY_LENGTH, UTF_8);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static String getPrefix(String key) throws GeneralSecurityException {
+        byte[] hash = MessageDigest.getInstance(HASH_ALGORITHM).digest(key.getBytes(UTF_8));
+        return toHex(Arrays.copyOf(hash, PREFIX_BYTES)) + NAME_SEPARATOR;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >>> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+
+        return hex.toString();
+    }
+
+    private static GCMParameterSpec createParameters(long index, boolean last) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte) (index >>> (56 - 8 * i));
+        }
+
+        nonce[NONCE_LENGTH - 1] = last ? (byte) 1 : (byte) 0;
+        return new GCMParameterSpec(TAG_LENGTH, nonce);
+    }
+
+    /**
+     * Buffers one chunk of plaintext. A full chunk is only written once more data arrives, so
+     * that the last chunk can be marked by {@link #finish()}.
+     */
+    private static class EncryptingOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final SecretKey fileKey;
+        private final Cipher cipher;
+        private final byte[] plaintext = new byte[CHUNK_SIZE];
+        private final byte[] ciphertext = new byte[CHUNK_SIZE + TAG_BYTES];
+        private int count;
+        private long index;
+
+        /* default */ EncryptingOutputStream(OutputStream out, SecretKey fileKey)
+                throws IOException, GeneralSecurityException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.fileKey = fileKey;
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+
+            this.out.writeByte(VERSION);
+            this.out.writeInt(CHUNK_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == CHUNK_SIZE) {
+                    writeChunk(false);
+                }
+
+                int copied = Math.min(length, CHUNK_SIZE - count);
+                System.arraycopy(bytes, offset, plaintext, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        /**
+         * Writes the buffered data as the last chunk. Does not close the underlying stream.
+         */
+        /* default */ void finish() throws IOException {
+            writeChunk(true);
+            out.flush();
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            int length;
+
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, fileKey, createParameters(index++, last));
+                length = cipher.doFinal(plaintext, 0, count, ciphertext, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt stream", e);
+            }
+
+            out.writeBoolean(last);
+            out.writeInt(length);
+            out.write(ciphertext, 0, length);
+            count = 0;
+        }
+    }
+
+    private static class DecryptingInputStream extends InputStream {
+        private final DataInputStream in;
+        private final SecretKey fileKey;
+        private final Cipher cipher;
+        private final byte[] plaintext;
+        private final byte[] ciphertext;
+        private int position;
+        private int count;
+        private long index;
+        private boolean last;
+
+        /* default */ DecryptingInputStream(InputStream in, SecretKey fileKey)
+                throws IOException, GeneralSecurityException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            this.fileKey = fileKey;
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+
+            try {
+                int version = this.in.readUnsignedByte();
+                int chunkSize = this.in.readInt();
+
+                if (version != VERSION) {
+                    throw new IOException("Unsupported stream version " + version);
+                } else if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                    throw new IOException("Invalid chunk size " + chunkSize);
+                }
+
+                this.plaintext = new byte[chunkSize];
+                this.ciphertext = new byte[chunkSize + TAG_BYTES];
+            } catch (IOException e) {
+                this.in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? plaintext[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            } else if (!fill()) {
+                return -1;
+            }
+
+            int copied = Math.min(length, count - position);
+            System.arraycopy(plaintext, position, bytes, offset, copied);
+            position += copied;
+            return copied;
+        }
+
+        @Override
+        public int available() {
+            return count - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(plaintext, (byte) 0);
+            in.close();
+        }
+
+        /**
+         * Decrypts chunks until there is buffered data or the last chunk has been read.
+         *
+         * @return False at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            while (position == count) {
+                if (last) {
+                    return false;
+                }
+
+                last = in.readBoolean();
+                int length = in.readInt();
+
+                if (length < TAG_BYTES || length > ciphertext.length) {
+                    throw new IOException("Invalid chunk length " + length);
+                }
+
+                in.readFully(ciphertext, 0, length);
+
+                try {
+                    cipher.init(Cipher.DECRYPT_MODE, fileKey, createParameters(index++, last));
+                    count = cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Could not decrypt stream", e);
+                }
+
+                position = 0;
+
+                if (last && in.read() != -1) {
+                    throw new IOException("Unexpected data after the last chunk");
+                }
+            }
+
+            return true;
+        }
+    }
+}
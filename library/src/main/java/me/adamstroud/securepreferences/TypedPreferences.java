@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface whose methods read preferences, each one annotated with
+ * {@link PreferenceKey}. The {@code securepreferences-compiler} annotation processor generates
+ * a class in the same package that implements the interface on top of {@link SecurePreferences}:
+ *
+ * <pre>{@code
+ * @TypedPreferences
+ * public interface Settings {
+ *     @PreferenceKey(value = "launch_count", memoize = true)
+ *     int getLaunchCount();
+ *
+ *     @PreferenceKey(value = "user_name", defaultValue = "guest")
+ *     String getUserName();
+ * }
+ *
+ * SecureSettings settings = new SecureSettings(securePreferences);
+ * settings.edit().setLaunchCount(settings.getLaunchCount() + 1).apply();
+ * }</pre>
+ *
+ * <p>The generated class has a {@code KEY_} constant for every key, a getter that calls the
+ * typed getter of {@link SecurePreferences} and an editor with a setter and a remover for
+ * every key. Keys, types and defaults are checked when the interface is compiled.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface TypedPreferences {
+    /**
+     * The simple name of the generated class. Defaults to the name of the interface prefixed
+     * with {@code Secure}.
+     */
+    String className() default "";
+}
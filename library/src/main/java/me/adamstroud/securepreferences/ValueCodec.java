@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encodes plaintext values with a one byte header that holds the format version in the high
+ * nibble and the type in the low nibble, followed by the big-endian value. Primitives are read
+ * and written with plain shifts, without a {@link java.nio.ByteBuffer}.
+ *
+ * <p>Values written before the header existed are turned into version 0 values with
+ * {@link #fromLegacy(byte[])}. Their type is unknown, so they are interpreted the way the
+ * caller asks for.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ final class ValueCodec {
+    /* default */ static final int TYPE_UNTYPED = 0;
+    /* default */ static final int TYPE_STRING = 1;
+    /* default */ static final int TYPE_INT = 2;
+    /* default */ static final int TYPE_LONG = 3;
+    /* default */ static final int TYPE_FLOAT = 4;
+    /* default */ static final int TYPE_BOOLEAN = 5;
+    /* default */ static final int TYPE_STRING_SET = 6;
+    /* default */ static final int TYPE_STREAM = 7;
+
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 1;
+    private static final byte LEGACY_HEADER = 0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ValueCodec() {
+    }
+
+    /**
+     * Adds the version 0 header to a value that was stored without one.
+     */
+    /* default */ static byte[] fromLegacy(byte[] plaintext) {
+        byte[] value = new byte[HEADER_LENGTH + plaintext.length];
+        value[0] = LEGACY_HEADER;
+        System.arraycopy(plaintext, 0, value, HEADER_LENGTH, plaintext.length);
+        return value;
+    }
+
+    /* default */ static byte[] encodeString(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        byte[] encoded = allocate(TYPE_STRING, bytes.length);
+        System.arraycopy(bytes, 0, encoded, HEADER_LENGTH, bytes.length);
+        return encoded;
+    }
+
+    /* default */ static byte[] encodeInt(int value) {
+        byte[] encoded = allocate(TYPE_INT, 4);
+        writeInt(encoded, HEADER_LENGTH, value);
+        return encoded;
+    }
+
+    /* default */ static byte[] encodeLong(long value) {
+        byte[] encoded = allocate(TYPE_LONG, 8);
+        writeInt(encoded, HEADER_LENGTH, (int) (value >>> 32));
+        writeInt(encoded, HEADER_LENGTH + 4, (int) value);
+        return encoded;
+    }
+
+    /* default */ static byte[] encodeFloat(float value) {
+        byte[] encoded = allocate(TYPE_FLOAT, 4);
+        writeInt(encoded, HEADER_LENGTH, Float.floatToIntBits(value));
+        return encoded;
+    }
+
+    /**
+     * Encodes a whole set as the number of elements followed by each element as its length and
+     * its UTF-8 bytes, so that it can be encrypted at once.
+     */
+    /* default */ static byte[] encodeStringSet(Set<String> values) {
+        byte[][] elements = new byte[values.size()][];
+        int length = 4;
+        int i = 0;
+
+        for (String value : values) {
+            elements[i] = value.getBytes(UTF_8);
+            length += 4 + elements[i].length;
+            i++;
+        }
+
+        byte[] encoded = allocate(TYPE_STRING_SET, length);
+        int offset = HEADER_LENGTH;
+        writeInt(encoded, offset, elements.length);
+        offset += 4;
+
+        for (byte[] element : elements) {
+            writeInt(encoded, offset, element.length);
+            System.arraycopy(element, 0, encoded, offset + 4, element.length);
+            offset += 4 + element.length;
+        }
+
+        return encoded;
+    }
+
+    /* default */ static byte[] encodeBoolean(boolean value) {
+        byte[] encoded = allocate(TYPE_BOOLEAN, 1);
+        encoded[HEADER_LENGTH] = value ? (byte) 1 : (byte) 0;
+        return encoded;
+    }
+
+    /**
+     * Encodes the reference to a value that is stored in a file by {@link StreamStore}.
+     */
+    /* default */ static byte[] encodeStream(byte[] reference) {
+        byte[] encoded = allocate(TYPE_STREAM, reference.length);
+        System.arraycopy(reference, 0, encoded, HEADER_LENGTH, reference.length);
+        return encoded;
+    }
+
+    /* default */ static String decodeString(byte[] value) {
+        if (checkType(value, TYPE_STRING) == TYPE_UNTYPED) {
+            // Legacy values were written with the platform charset
+            return new String(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+        }
+
+        return new String(value, HEADER_LENGTH, value.length - HEADER_LENGTH, UTF_8);
+    }
+
+    /* default */ static int decodeInt(byte[] value) {
+        checkType(value, TYPE_INT);
+        return readInt(value, HEADER_LENGTH);
+    }
+
+    /* default */ static long decodeLong(byte[] value) {
+        checkType(value, TYPE_LONG);
+        return ((long) readInt(value, HEADER_LENGTH) << 32) | (readInt(value, HEADER_LENGTH + 4) & 0xFFFFFFFFL);
+    }
+
+    /* default */ static float decodeFloat(byte[] value) {
+        checkType(value, TYPE_FLOAT);
+        return Float.intBitsToFloat(readInt(value, HEADER_LENGTH));
+    }
+
+    /* default */ static boolean decodeBoolean(byte[] value) {
+        checkType(value, TYPE_BOOLEAN);
+        return value[HEADER_LENGTH] == 1;
+    }
+
+    /**
+     * Decodes a set written by {@link #encodeStringSet(Set)}.
+     *
+     * @param values The set that receives the elements.
+     * @return {@code values}
+     */
+    /* default */ static Set<String> decodeStringSet(byte[] value, Set<String> values) {
+        if (getType(value) != TYPE_STRING_SET) {
+            throw new ClassCastException("Preference is not a string set");
+        }
+
+        int count = readInt(value, HEADER_LENGTH);
+        int offset = HEADER_LENGTH + 4;
+
+        for (int i = 0; i < count; i++) {
+            int length = readInt(value, offset);
+            values.add(new String(value, offset + 4, length, UTF_8));
+            offset += 4 + length;
+        }
+
+        return values;
+    }
+
+    /**
+     * Decodes a reference written by {@link #encodeStream(byte[])}.
+     */
+    /* default */ static byte[] decodeStream(byte[] value) {
+        if (getType(value) != TYPE_STREAM) {
+            throw new ClassCastException("Preference is not a stream");
+        }
+
+        return getPayload(value);
+    }
+
+    /**
+     * Decodes a value into its boxed type. Stream references must not be passed, they hold
+     * the key of the stream.
+     *
+     * @return A {@code String}, {@code Integer}, {@code Long}, {@code Float}, {@code Boolean} or
+     * {@code Set<String>}, or a copy of the plaintext bytes for values without a type.
+     */
+    /* default */ static Object decode(byte[] value) throws SecurePreferencesException {
+        switch (getType(value)) {
+            case TYPE_STRING:
+                return decodeString(value);
+            case TYPE_INT:
+                return decodeInt(value);
+            case TYPE_LONG:
+                return decodeLong(value);
+            case TYPE_FLOAT:
+                return decodeFloat(value);
+            case TYPE_BOOLEAN:
+                return decodeBoolean(value);
+            case TYPE_STRING_SET:
+                return Collections.unmodifiableSet(decodeStringSet(value, new HashSet<String>()));
+            default:
+                return getPayload(value);
+        }
+    }
+
+    /**
+     * Gets a copy of the value without its header.
+     */
+    /* default */ static byte[] getPayload(byte[] value) {
+        return Arrays.copyOfRange(value, HEADER_LENGTH, value.length);
+    }
+
+    /**
+     * Copies the payload of a single value into an array. String sets and streams are not
+     * single values.
+     *
+     * @param length The length of the value, which may be followed by unused bytes.
+     * @return The length of the payload.
+     * @throws IndexOutOfBoundsException If the payload does not fit. Nothing is copied then.
+     */
+    /* default */ static int copyPayload(byte[] value, int length, byte[] dst, int offset) {
+        int payloadLength = checkSingleValue(value, length);
+
+        if (offset < 0 || dst.length - offset < payloadLength) {
+            throw new IndexOutOfBoundsException("Value of " + payloadLength + " bytes does not fit at " + offset);
+        }
+
+        System.arraycopy(value, HEADER_LENGTH, dst, offset, payloadLength);
+        return payloadLength;
+    }
+
+    /**
+     * Copies the payload of a single value into a buffer, see
+     * {@link #copyPayload(byte[], int, byte[], int)}.
+     *
+     * @throws BufferOverflowException If the payload does not fit. Nothing is copied then.
+     */
+    /* default */ static int copyPayload(byte[] value, int length, ByteBuffer dst) {
+        int payloadLength = checkSingleValue(value, length);
+
+        if (dst.remaining() < payloadLength) {
+            throw new BufferOverflowException();
+        }
+
+        dst.put(value, HEADER_LENGTH, payloadLength);
+        return payloadLength;
+    }
+
+    /* default */ static int getType(byte[] value) throws SecurePreferencesException {
+        int version = (value[0] & 0xF0) >>> 4;
+
+        if (value[0] == LEGACY_HEADER) {
+            return TYPE_UNTYPED;
+        } else if (version != VERSION) {
+            throw new SecurePreferencesException("Unsupported value version " + version);
+        }
+
+        return value[0] & 0x0F;
+    }
+
+    private static int checkType(byte[] value, int expectedType) {
+        int type = getType(value);
+
+        if (type != expectedType && type != TYPE_UNTYPED) {
+            throw new ClassCastException("Preference has type " + type + ", not " + expectedType);
+        }
+
+        return type;
+    }
+
+    private static int checkSingleValue(byte[] value, int length) {
+        int type = getType(value);
+
+        if (type == TYPE_STRING_SET || type == TYPE_STREAM) {
+            throw new ClassCastException("Preference has type " + type + ", not a single value");
+        }
+
+        return length - HEADER_LENGTH;
+    }
+
+    private static byte[] allocate(int type, int length) {
+        byte[] encoded = new byte[HEADER_LENGTH + length];
+        encoded[0] = (byte) ((VERSION << 4) | type);
+        return encoded;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+}
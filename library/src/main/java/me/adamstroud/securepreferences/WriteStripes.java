@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import java.util.Collection;
+
+/**
+ * Orders batches that touch the same keys while letting batches with disjoint keys be written
+ * at the same time. Keys are hashed onto a fixed number of stripes, and every stripe hands out
+ * tickets that are served strictly in order, like a ticket lock.
+ *
+ * <p>A batch takes one ticket for each of its stripes in a single step, so all stripes see the
+ * batches in the same order. A batch therefore only ever waits for batches that were submitted
+ * before it, which rules out deadlocks no matter in which order the stripes are awaited.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+/* default */ class WriteStripes {
+    private final Stripe[] stripes;
+
+    /* default */ WriteStripes(int stripeCount) {
+        stripes = new Stripe[stripeCount];
+
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes a ticket on every stripe of the keys, or on every stripe if all keys are affected.
+     * Every ticket has to be passed to {@link #release(Ticket)} exactly once, even if the batch
+     * is never written, or the stripes stall.
+     */
+    /* default */ synchronized Ticket take(Collection<String> keys, boolean allKeys) {
+        return newTicket(keys, allKeys, false);
+    }
+
+    /**
+     * Like {@link #take(Collection, boolean)}, but the ticket also waits for every earlier batch
+     * on the other stripes, without holding them. A commit has to be written after every
+     * earlier apply, whatever keys they share.
+     */
+    /* default */ synchronized Ticket takeAfterAll(Collection<String> keys, boolean allKeys) {
+        return newTicket(keys, allKeys, true);
+    }
+
+    private Ticket newTicket(Collection<String> keys, boolean allKeys, boolean afterAll) {
+        boolean[] used = new boolean[stripes.length];
+
+        if (allKeys) {
+            for (int i = 0; i < used.length; i++) {
+                used[i] = true;
+            }
+        } else {
+            for (String key : keys) {
+                used[indexOf(key)] = true;
+            }
+        }
+
+        long[] numbers = new long[stripes.length];
+        long[] barriers = new long[stripes.length];
+
+        for (int i = 0; i < used.length; i++) {
+            numbers[i] = used[i] ? stripes[i].nextTicket++ : -1;
+            barriers[i] = !used[i] && afterAll ? stripes[i].nextTicket : -1;
+        }
+
+        return new Ticket(numbers, barriers);
+    }
+
+    /**
+     * Waits until every batch that was submitted before the ticket and shares a stripe with it
+     * has been released. Interrupts are deferred until the wait is over, since giving up would
+     * leave the ticket unserved.
+     */
+    /* default */ void await(Ticket ticket) {
+        boolean interrupted = false;
+
+        for (int i = 0; i < stripes.length; i++) {
+            long number = ticket.numbers[i];
+            long barrier = ticket.barriers[i];
+
+            if (number < 0 && barrier < 0) {
+                continue;
+            }
+
+            Stripe stripe = stripes[i];
+
+            synchronized (stripe) {
+                while (number >= 0 ? stripe.servedTicket != number : stripe.servedTicket < barrier) {
+                    try {
+                        stripe.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lets the next batch on each of the ticket's stripes proceed.
+     */
+    /* default */ void release(Ticket ticket) {
+        for (int i = 0; i < stripes.length; i++) {
+            if (ticket.numbers[i] < 0) {
+                continue;
+            }
+
+            Stripe stripe = stripes[i];
+
+            synchronized (stripe) {
+                stripe.servedTicket++;
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    private int indexOf(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * The position of one batch on each stripe, -1 for stripes it does not use. For stripes it
+     * does not use, {@code barriers} holds the number of tickets it waits for, or -1.
+     */
+    /* default */ static class Ticket {
+        private final long[] numbers;
+        private final long[] barriers;
+
+        private Ticket(long[] numbers, long[] barriers) {
+            this.numbers = numbers;
+            this.barriers = barriers;
+        }
+    }
+
+    private static class Stripe {
+        // Guarded by WriteStripes
+        private long nextTicket;
+
+        // Guarded by the stripe itself
+        private long servedTicket;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LatencyHistogram}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getCount(), is(equalTo(0L)));
+        assertThat(histogram.getPercentile(0.5), is(equalTo(0L)));
+        assertThat(histogram.getMax(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertThat(histogram.getCount(), is(equalTo(1000L)));
+        assertThat(histogram.getMax(), is(equalTo(1000000L)));
+        assertWithinError(histogram.getPercentile(0.5), 500000);
+        assertWithinError(histogram.getPercentile(0.99), 990000);
+        assertThat(histogram.getPercentile(1), is(equalTo(1000000L)));
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+
+            assertTrue(LatencyHistogram.upperBoundOf(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.upperBoundOf(index - 1) < value);
+        }
+    }
+
+    private static void assertWithinError(long actual, long expected) {
+        assertTrue(actual + " is not close to " + expected,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}
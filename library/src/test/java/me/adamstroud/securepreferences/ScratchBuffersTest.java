@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link ScratchBuffers}. Runs on the JVM.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class ScratchBuffersTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testDecodeBase64() throws Exception {
+        // RFC 4648 test vectors
+        assertDecodes("", "");
+        assertDecodes("Zg==", "f");
+        assertDecodes("Zm8=", "fo");
+        assertDecodes("Zm9v", "foo");
+        assertDecodes("Zm9vYg==", "foob");
+        assertDecodes("Zm9vYmE=", "fooba");
+        assertDecodes("Zm9vYmFy", "foobar");
+    }
+
+    @Test
+    public void testDecodeBase64_wrappedWithOffset() throws Exception {
+        assertDecodes("3:Zm9v\nYmFy\n", 2, "foobar");
+    }
+
+    @Test
+    public void testDecodeBase64_grows() throws Exception {
+        byte[] expected = new byte[3000];
+        StringBuilder encoded = new StringBuilder();
+
+        for (int i = 0; i < expected.length / 3; i++) {
+            // 0xFB 0xEF 0xBE
+            encoded.append("++++");
+        }
+
+        for (int i = 0; i < expected.length; i += 3) {
+            expected[i] = (byte) 0xFB;
+            expected[i + 1] = (byte) 0xEF;
+            expected[i + 2] = (byte) 0xBE;
+        }
+
+        ScratchBuffers buffers = ScratchBuffers.get();
+        int length = buffers.decodeBase64(encoded.toString(), 0);
+
+        assertThat(Arrays.copyOf(buffers.getPayload(), length), is(equalTo(expected)));
+    }
+
+    @Test
+    public void testDecodeBase64_invalid() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        ScratchBuffers.get().decodeBase64("Zm9v*mFy", 0);
+    }
+
+    @Test
+    public void testWipePlaintext() throws Exception {
+        ScratchBuffers buffers = ScratchBuffers.get();
+        byte[] plaintext = buffers.getPlaintext(4);
+        Arrays.fill(plaintext, 0, 4, (byte) 42);
+
+        buffers.wipePlaintext(4);
+
+        assertThat(Arrays.copyOf(plaintext, 4), is(equalTo(new byte[4])));
+    }
+
+    private static void assertDecodes(String encoded, String expected) throws Exception {
+        assertDecodes(encoded, 0, expected);
+    }
+
+    private static void assertDecodes(String encoded, int start, String expected) throws Exception {
+        ScratchBuffers buffers = ScratchBuffers.get();
+        int length = buffers.decodeBase64(encoded, start);
+
+        assertThat(new String(buffers.getPayload(), 0, length, "US-ASCII"), is(equalTo(expected)));
+    }
+}
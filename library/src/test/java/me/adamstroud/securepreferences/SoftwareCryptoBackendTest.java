@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link SoftwareCryptoBackend}. Runs on the JVM.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class SoftwareCryptoBackendTest {
+    private SoftwareCryptoBackend backend;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new SoftwareCryptoBackend();
+        backend.initialize();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] plaintext = "value".getBytes();
+        byte[] ciphertext = backend.encrypt(plaintext);
+
+        assertThat(Arrays.equals(ciphertext, plaintext), is(false));
+        assertThat(backend.decrypt(ciphertext), is(equalTo(plaintext)));
+    }
+
+    @Test
+    public void testSharedKeyPair() throws Exception {
+        SoftwareCryptoBackend other = new SoftwareCryptoBackend(backend.getKeyPair());
+        other.initialize();
+
+        assertThat(other.getKeyPair(), is(backend.getKeyPair()));
+        assertThat(other.decrypt(backend.encrypt(new byte[] {42})), is(equalTo(new byte[] {42})));
+    }
+
+    @Test
+    public void testInitialize_keepsKey() throws Exception {
+        Object keyPair = backend.getKeyPair();
+        backend.initialize();
+
+        assertThat(backend.getKeyPair(), is(keyPair));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link StreamStore}. Runs on the JVM.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class StreamStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private File directory;
+    private StreamStore streamStore;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(folder.getRoot(), "streams");
+        streamStore = new StreamStore(directory);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (int length : new int[] {0, 1, StreamStore.CHUNK_SIZE, StreamStore.CHUNK_SIZE + 1, 5 * StreamStore.CHUNK_SIZE + 7}) {
+            byte[] value = createValue(length);
+            byte[] reference = streamStore.write("key", new ByteArrayInputStream(value));
+
+            assertThat(readFully(streamStore.open(reference)), is(equalTo(value)));
+        }
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        byte[] reference = streamStore.write("key", new ByteArrayInputStream(createValue(1000)));
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, StreamStore.getFileName(reference)), "rw")) {
+            file.seek(500);
+            int b = file.read();
+            file.seek(500);
+            file.write(b ^ 1);
+        }
+
+        thrown.expect(IOException.class);
+        readFully(streamStore.open(reference));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        byte[] reference = streamStore.write("key", new ByteArrayInputStream(createValue(3 * StreamStore.CHUNK_SIZE)));
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, StreamStore.getFileName(reference)), "rw")) {
+            // Ends right after the second of three chunks
+            file.setLength(5 + 2 * (5 + StreamStore.CHUNK_SIZE + 16));
+        }
+
+        thrown.expect(IOException.class);
+        readFully(streamStore.open(reference));
+    }
+
+    @Test
+    public void testDeleteUnreferenced() throws Exception {
+        byte[] oldReference = streamStore.write("key", new ByteArrayInputStream(createValue(10)));
+        byte[] reference = streamStore.write("key", new ByteArrayInputStream(createValue(10)));
+        byte[] otherReference = streamStore.write("otherKey", new ByteArrayInputStream(createValue(10)));
+
+        // Not committed yet, so another editor may still commit it
+        streamStore.deleteUnreferenced("key", reference);
+        assertThat(directory.list().length, is(equalTo(3)));
+
+        streamStore.onCommitted(oldReference);
+        streamStore.onCommitted(reference);
+        streamStore.onCommitted(otherReference);
+        streamStore.deleteUnreferenced("key", reference);
+        assertThat(directory.list().length, is(equalTo(2)));
+
+        streamStore.deleteAllUnreferenced(Collections.singleton(StreamStore.getFileName(otherReference)));
+        assertThat(directory.list(), is(equalTo(new String[] {StreamStore.getFileName(otherReference)})));
+    }
+
+    private static byte[] createValue(int length) {
+        byte[] value = new byte[length];
+        new Random(length).nextBytes(value);
+        return value;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+
+        try {
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        return out.toByteArray();
+    }
+}
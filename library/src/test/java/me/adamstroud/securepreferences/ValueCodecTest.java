@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test cases for {@link ValueCodec}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class ValueCodecTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertThat(ValueCodec.decodeString(ValueCodec.encodeString("h\u00e9llo")), is(equalTo("h\u00e9llo")));
+        assertThat(ValueCodec.decodeInt(ValueCodec.encodeInt(Integer.MIN_VALUE)), is(equalTo(Integer.MIN_VALUE)));
+        assertThat(ValueCodec.decodeLong(ValueCodec.encodeLong(-2L)), is(equalTo(-2L)));
+        assertThat(ValueCodec.decodeFloat(ValueCodec.encodeFloat(-1.5f)), is(equalTo(-1.5f)));
+        assertThat(ValueCodec.decodeBoolean(ValueCodec.encodeBoolean(true)), is(true));
+        assertThat((Long) ValueCodec.decode(ValueCodec.encodeLong(Long.MAX_VALUE)), is(equalTo(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testStringSet() throws Exception {
+        Set<String> values = new HashSet<>(Arrays.asList("", "a", "h\u00e9llo"));
+        byte[] value = ValueCodec.encodeStringSet(values);
+
+        assertThat(ValueCodec.decodeStringSet(value, new HashSet<String>()), is(equalTo(values)));
+        @SuppressWarnings("unchecked")
+        Set<String> decoded = (Set<String>) ValueCodec.decode(value);
+        assertThat(decoded, is(equalTo(values)));
+    }
+
+    @Test
+    public void testLegacy() throws Exception {
+        byte[] legacyLong = ByteBuffer.allocate(8).putLong(Long.MIN_VALUE + 1).array();
+        byte[] value = ValueCodec.fromLegacy(legacyLong);
+
+        assertThat(ValueCodec.getType(value), is(equalTo(ValueCodec.TYPE_UNTYPED)));
+        assertThat(ValueCodec.decodeLong(value), is(equalTo(Long.MIN_VALUE + 1)));
+        assertThat((byte[]) ValueCodec.decode(value), is(equalTo(legacyLong)));
+    }
+
+    @Test
+    public void testTypeMismatch() throws Exception {
+        thrown.expect(ClassCastException.class);
+        ValueCodec.decodeInt(ValueCodec.encodeString("1234"));
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception {
+        byte[] value = ValueCodec.encodeInt(1);
+        value[0] = (byte) (0x20 | ValueCodec.TYPE_INT);
+
+        thrown.expect(SecurePreferencesException.class);
+        ValueCodec.decode(value);
+    }
+}
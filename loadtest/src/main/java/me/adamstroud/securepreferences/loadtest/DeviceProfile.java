@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import android.content.SharedPreferences;
+
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.CryptoBackend;
+
+/**
+ * Rough keystore and disk behavior of different classes of devices. The numbers are ballpark
+ * figures meant to show how the library degrades, not measurements of a specific device.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public enum DeviceProfile {
+    /**
+     * A fast keystore that serves several calls at once and never fails.
+     */
+    FLAGSHIP(300, 2000, 4, 0, 1000, 5000),
+
+    /**
+     * A keystore that serves two calls at once, with the occasional failure.
+     */
+    MID_RANGE(5000, 40000, 2, 0.001, 3000, 20000),
+
+    /**
+     * A busy keystore daemon that serves one call at a time, with pauses of hundreds of
+     * milliseconds and a failure in every hundred calls.
+     */
+    BUDGET(20000, 300000, 1, 0.01, 10000, 100000);
+
+    private final long keyStoreMedianMicros;
+    private final long keyStoreP99Micros;
+    private final int keyStoreConcurrency;
+    private final double keyStoreFailureRate;
+    private final long diskMedianMicros;
+    private final long diskP99Micros;
+
+    DeviceProfile(long keyStoreMedianMicros,
+                  long keyStoreP99Micros,
+                  int keyStoreConcurrency,
+                  double keyStoreFailureRate,
+                  long diskMedianMicros,
+                  long diskP99Micros) {
+        this.keyStoreMedianMicros = keyStoreMedianMicros;
+        this.keyStoreP99Micros = keyStoreP99Micros;
+        this.keyStoreConcurrency = keyStoreConcurrency;
+        this.keyStoreFailureRate = keyStoreFailureRate;
+        this.diskMedianMicros = diskMedianMicros;
+        this.diskP99Micros = diskP99Micros;
+    }
+
+    /**
+     * Wraps a backend in a keystore that behaves like the one of this device. Generating or
+     * looking up the key takes ten times as long as any other call.
+     */
+    public SimulatedKeyStoreBackend createKeyStore(CryptoBackend delegate) {
+        LatencyDistribution callLatency = LatencyDistribution.logNormal(keyStoreMedianMicros,
+                keyStoreP99Micros,
+                TimeUnit.MICROSECONDS);
+
+        return new SimulatedKeyStoreBackend.Builder(delegate)
+                .setInitializeLatency(LatencyDistribution.logNormal(10 * keyStoreMedianMicros,
+                        10 * keyStoreP99Micros,
+                        TimeUnit.MICROSECONDS))
+                .setEncryptLatency(callLatency)
+                .setDecryptLatency(callLatency)
+                .setMaxConcurrentCalls(keyStoreConcurrency)
+                .setFailureRate(keyStoreFailureRate)
+                .build();
+    }
+
+    /**
+     * Wraps preferences in a disk that behaves like the one of this device.
+     */
+    public SimulatedSharedPreferences createSharedPreferences(SharedPreferences delegate) {
+        return new SimulatedSharedPreferences.Builder(delegate)
+                .setWriteLatency(LatencyDistribution.logNormal(diskMedianMicros, diskP99Micros, TimeUnit.MICROSECONDS))
+                .build();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of simulated latencies. Samples are in nanoseconds and never negative.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public abstract class LatencyDistribution {
+    /**
+     * The number of standard deviations between the median and the 99th percentile of a normal
+     * distribution.
+     */
+    private static final double P99_Z_SCORE = 2.3263;
+
+    public static final LatencyDistribution NONE = fixed(0, TimeUnit.NANOSECONDS);
+
+    public abstract long sampleNanos(Random random);
+
+    /**
+     * Always returns the same latency.
+     */
+    public static LatencyDistribution fixed(long duration, TimeUnit unit) {
+        final long nanos = unit.toNanos(duration);
+
+        return new LatencyDistribution() {
+            @Override
+            public long sampleNanos(Random random) {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * Returns latencies that are evenly spread between {@code min} and {@code max}.
+     */
+    public static LatencyDistribution uniform(long min, long max, TimeUnit unit) {
+        if (min > max) {
+            throw new IllegalArgumentException("min must not be greater than max");
+        }
+
+        final long minNanos = unit.toNanos(min);
+        final long rangeNanos = unit.toNanos(max) - minNanos;
+
+        return new LatencyDistribution() {
+            @Override
+            public long sampleNanos(Random random) {
+                return minNanos + (long) (random.nextDouble() * rangeNanos);
+            }
+        };
+    }
+
+    /**
+     * Returns latencies with a long tail, which is how the latency of IPC and disk access is
+     * usually distributed.
+     *
+     * @param median The latency that half of the samples stay below.
+     * @param p99 The latency that 99% of the samples stay below.
+     */
+    public static LatencyDistribution logNormal(long median, long p99, TimeUnit unit) {
+        if (median <= 0 || p99 < median) {
+            throw new IllegalArgumentException("median must be positive and p99 must not be below it");
+        }
+
+        final double mu = Math.log(unit.toNanos(median));
+        final double sigma = (Math.log(unit.toNanos(p99)) - mu) / P99_Z_SCORE;
+
+        return new LatencyDistribution() {
+            @Override
+            public long sampleNanos(Random random) {
+                return (long) Math.exp(mu + sigma * random.nextGaussian());
+            }
+        };
+    }
+
+    /**
+     * Adds a sample of {@code spike} to some of the samples of this distribution, e.g. to
+     * simulate a busy daemon or garbage collection pauses.
+     *
+     * @param probability The fraction of samples that get a spike, between 0 and 1.
+     */
+    public LatencyDistribution withSpikes(final double probability, final LatencyDistribution spike) {
+        final LatencyDistribution base = this;
+
+        return new LatencyDistribution() {
+            @Override
+            public long sampleNanos(Random random) {
+                long nanos = base.sampleNanos(random);
+                return random.nextDouble() < probability ? nanos + spike.sampleNanos(random) : nanos;
+            }
+        };
+    }
+
+    /**
+     * Blocks the calling thread for a sample of this distribution.
+     */
+    /* default */ void sleep(Random random) throws InterruptedException {
+        long nanos = sampleNanos(random);
+
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+}
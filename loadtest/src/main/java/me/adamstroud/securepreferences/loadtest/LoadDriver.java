@@ -0,0 +1,471 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+import me.adamstroud.securepreferences.SecurePreferencesException;
+import me.adamstroud.securepreferences.SoftwareCryptoBackend;
+import me.adamstroud.securepreferences.benchmark.InMemorySharedPreferences;
+
+/**
+ * Runs a mix of reads and writes against {@link SecurePreferences} from several threads and
+ * reports the latency percentiles of every kind of operation. Every thread picks its next
+ * operation at random according to the configured weights and runs it right after the previous
+ * one, so the threads put as much load on the preferences as they can take.
+ *
+ * <p>{@link #main(String[])} runs the driver against a simulated {@link DeviceProfile}.</p>
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class LoadDriver {
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    private static final int INITIAL_SAMPLES = 1024;
+
+    private final SecurePreferences securePreferences;
+    private final int threads;
+    private final long durationNanos;
+    private final int operationsPerThread;
+    private final int keyCount;
+    private final int valueLength;
+    private final int keysPerWrite;
+    private final int[] cumulativeWeights;
+
+    /**
+     * The operations of a workload.
+     */
+    public enum Operation {
+        /**
+         * {@link SecurePreferences#getString(String, String)} of a random key.
+         */
+        GET,
+
+        /**
+         * {@link SecurePreferences#getAll()}.
+         */
+        GET_ALL,
+
+        /**
+         * {@link SecurePreferences.SecureEditor#commit()} of random keys. Fails if it returns
+         * false.
+         */
+        COMMIT,
+
+        /**
+         * {@link SecurePreferences.SecureEditor#apply()} of random keys.
+         */
+        APPLY
+    }
+
+    private LoadDriver(Builder builder) {
+        this.securePreferences = builder.securePreferences;
+        this.threads = builder.threads;
+        this.durationNanos = builder.durationNanos;
+        this.operationsPerThread = builder.operationsPerThread;
+        this.keyCount = builder.keyCount;
+        this.valueLength = builder.valueLength;
+        this.keysPerWrite = builder.keysPerWrite;
+        this.cumulativeWeights = new int[builder.weights.length];
+
+        int total = 0;
+
+        for (int i = 0; i < builder.weights.length; i++) {
+            total += builder.weights[i];
+            cumulativeWeights[i] = total;
+        }
+
+        if (total == 0) {
+            throw new IllegalArgumentException("At least one operation needs a weight");
+        }
+    }
+
+    /**
+     * Writes every key once, then runs the workload until the duration has passed or every
+     * thread has run its operations.
+     *
+     * @throws SecurePreferencesException If the keys could not be written up front.
+     */
+    public LoadReport run() throws InterruptedException {
+        populate();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Samples[]>> workers = new ArrayList<>(threads);
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Callable<Samples[]>() {
+                    @Override
+                    public Samples[] call() throws InterruptedException {
+                        start.await();
+                        return work(ThreadLocalRandom.current(), System.nanoTime() + durationNanos);
+                    }
+                }));
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+
+            List<Samples[]> results = new ArrayList<>(threads);
+
+            for (Future<Samples[]> worker : workers) {
+                try {
+                    results.add(worker.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Load driver thread failed", e.getCause());
+                }
+            }
+
+            return createReport(results, System.nanoTime() - startNanos);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void populate() {
+        SecurePreferences.SecureEditor editor = securePreferences.edit();
+        Random random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < keyCount; i++) {
+            editor.putString(key(i), randomValue(random));
+        }
+
+        if (!editor.commit()) {
+            throw new SecurePreferencesException("Could not write the keys of the load test");
+        }
+    }
+
+    private Samples[] work(Random random, long deadlineNanos) {
+        Samples[] samples = new Samples[Operation.values().length];
+
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new Samples();
+        }
+
+        for (int i = 0; i < operationsPerThread && System.nanoTime() - deadlineNanos < 0; i++) {
+            Operation operation = nextOperation(random);
+            long start = System.nanoTime();
+            boolean succeeded;
+
+            try {
+                succeeded = execute(operation, random);
+            } catch (SecurePreferencesException e) {
+                succeeded = false;
+            }
+
+            samples[operation.ordinal()].add(System.nanoTime() - start, succeeded);
+        }
+
+        return samples;
+    }
+
+    private Operation nextOperation(Random random) {
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int index = 0;
+
+        while (value >= cumulativeWeights[index]) {
+            index++;
+        }
+
+        return Operation.values()[index];
+    }
+
+    private boolean execute(Operation operation, Random random) {
+        switch (operation) {
+            case GET:
+                securePreferences.getString(key(random.nextInt(keyCount)), null);
+                return true;
+            case GET_ALL:
+                securePreferences.getAll();
+                return true;
+            case COMMIT:
+                return edit(random).commit();
+            case APPLY:
+                edit(random).apply();
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private SecurePreferences.SecureEditor edit(Random random) {
+        SecurePreferences.SecureEditor editor = securePreferences.edit();
+
+        for (int i = 0; i < keysPerWrite; i++) {
+            editor.putString(key(random.nextInt(keyCount)), randomValue(random));
+        }
+
+        return editor;
+    }
+
+    private String randomValue(Random random) {
+        char[] chars = new char[valueLength];
+
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+
+        return new String(chars);
+    }
+
+    private static String key(int index) {
+        return "loadKey" + index;
+    }
+
+    private static LoadReport createReport(List<Samples[]> results, long elapsedNanos) {
+        Map<Operation, LoadReport.OperationStats> stats = new EnumMap<>(Operation.class);
+
+        for (Operation operation : Operation.values()) {
+            int count = 0;
+            long failures = 0;
+
+            for (Samples[] samples : results) {
+                count += samples[operation.ordinal()].count;
+            }
+
+            long[] latencies = new long[count];
+            int offset = 0;
+
+            for (Samples[] samples : results) {
+                Samples operationSamples = samples[operation.ordinal()];
+                System.arraycopy(operationSamples.latencies, 0, latencies, offset, operationSamples.count);
+                offset += operationSamples.count;
+                failures += operationSamples.failures;
+            }
+
+            stats.put(operation, new LoadReport.OperationStats(latencies, count, failures));
+        }
+
+        return new LoadReport(stats, elapsedNanos);
+    }
+
+    /**
+     * Runs the driver against simulated backing preferences and keystore. Arguments are
+     * {@code name=value} pairs, all of them optional:
+     *
+     * <ul>
+     *     <li>{@code profile}: a {@link DeviceProfile}, defaults to {@code MID_RANGE}</li>
+     *     <li>{@code mode}: a {@link SecurePreferences.Mode}, defaults to {@code ENVELOPE}</li>
+     *     <li>{@code threads}, {@code seconds}, {@code keys}, {@code valueLength},
+     *     {@code keysPerWrite}: see {@link Builder}</li>
+     *     <li>{@code get}, {@code getAll}, {@code commit}, {@code apply}: the weights of the
+     *     operations, see {@link Builder#setWeight(Operation, int)}</li>
+     *     <li>{@code cache}: the number of entries of the decrypted value cache, disabled by
+     *     default</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws Exception {
+        DeviceProfile profile = DeviceProfile.MID_RANGE;
+        SecurePreferences.Mode mode = SecurePreferences.Mode.ENVELOPE;
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Arguments must be name=value pairs: " + arg);
+            }
+
+            options.put(option[0], option[1]);
+        }
+
+        if (options.containsKey("profile")) {
+            profile = DeviceProfile.valueOf(options.get("profile"));
+        }
+
+        if (options.containsKey("mode")) {
+            mode = SecurePreferences.Mode.valueOf(options.get("mode"));
+        }
+
+        SimulatedKeyStoreBackend keyStore = profile.createKeyStore(new SoftwareCryptoBackend());
+        SimulatedSharedPreferences sharedPreferences = profile.createSharedPreferences(new InMemorySharedPreferences());
+        SecurePreferences.Builder preferencesBuilder = new SecurePreferences.Builder(sharedPreferences, keyStore)
+                .setMode(mode);
+
+        if (options.containsKey("cache")) {
+            preferencesBuilder.setCache(Integer.parseInt(options.get("cache")), Long.MAX_VALUE);
+        }
+
+        long initStart = System.nanoTime();
+        SecurePreferences securePreferences = preferencesBuilder.build();
+        long initNanos = System.nanoTime() - initStart;
+
+        Builder builder = new Builder(securePreferences)
+                .setThreads(intOption(options, "threads", 4))
+                .setDuration(intOption(options, "seconds", 10), TimeUnit.SECONDS)
+                .setKeyCount(intOption(options, "keys", 64))
+                .setValueLength(intOption(options, "valueLength", 32))
+                .setKeysPerWrite(intOption(options, "keysPerWrite", 1))
+                .setWeight(Operation.GET, intOption(options, "get", 80))
+                .setWeight(Operation.GET_ALL, intOption(options, "getAll", 2))
+                .setWeight(Operation.COMMIT, intOption(options, "commit", 8))
+                .setWeight(Operation.APPLY, intOption(options, "apply", 10));
+
+        System.out.println("profile=" + profile + " mode=" + mode + " " + options);
+        System.out.println("init " + TimeUnit.NANOSECONDS.toMillis(initNanos) + " ms");
+        System.out.println(builder.build().run());
+        System.out.println("keystore calls " + keyStore.getCalls()
+                + " (" + keyStore.getInjectedFailures() + " failed), disk writes " + sharedPreferences.getWrites()
+                + " (" + sharedPreferences.getInjectedFailures() + " failed)");
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * The latencies one thread recorded for one operation.
+     */
+    private static class Samples {
+        private long[] latencies = new long[INITIAL_SAMPLES];
+        private int count;
+        private long failures;
+
+        private void add(long latencyNanos, boolean succeeded) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+
+            latencies[count++] = latencyNanos;
+
+            if (!succeeded) {
+                failures++;
+            }
+        }
+    }
+
+    /**
+     * Configures and creates {@link LoadDriver}.
+     */
+    public static class Builder {
+        private final SecurePreferences securePreferences;
+        private final int[] weights = new int[Operation.values().length];
+        private int threads = 4;
+        private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+        private int operationsPerThread = Integer.MAX_VALUE;
+        private int keyCount = 64;
+        private int valueLength = 32;
+        private int keysPerWrite = 1;
+
+        /**
+         * Creates a builder for a workload of 80% reads of single keys, 2% reads of every key,
+         * 8% commits and 10% applies.
+         *
+         * @param securePreferences The preferences under load. The keys of the workload are
+         * overwritten.
+         */
+        public Builder(SecurePreferences securePreferences) {
+            this.securePreferences = securePreferences;
+            weights[Operation.GET.ordinal()] = 80;
+            weights[Operation.GET_ALL.ordinal()] = 2;
+            weights[Operation.COMMIT.ordinal()] = 8;
+            weights[Operation.APPLY.ordinal()] = 10;
+        }
+
+        /**
+         * Sets the number of threads that run operations. Defaults to 4.
+         */
+        public Builder setThreads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be positive");
+            }
+
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets how long the threads run operations. Defaults to 10 seconds.
+         */
+        public Builder setDuration(long duration, TimeUnit unit) {
+            this.durationNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Stops every thread after the given number of operations, even if the duration has
+         * not passed yet. Unlimited by default.
+         */
+        public Builder setOperationsPerThread(int operationsPerThread) {
+            this.operationsPerThread = operationsPerThread;
+            return this;
+        }
+
+        /**
+         * Sets the number of keys that operations pick from. Defaults to 64.
+         */
+        public Builder setKeyCount(int keyCount) {
+            if (keyCount < 1) {
+                throw new IllegalArgumentException("keyCount must be positive");
+            }
+
+            this.keyCount = keyCount;
+            return this;
+        }
+
+        /**
+         * Sets the number of characters of every written value. Defaults to 32.
+         */
+        public Builder setValueLength(int valueLength) {
+            this.valueLength = valueLength;
+            return this;
+        }
+
+        /**
+         * Sets the number of keys of every commit and apply. Defaults to 1.
+         */
+        public Builder setKeysPerWrite(int keysPerWrite) {
+            if (keysPerWrite < 1) {
+                throw new IllegalArgumentException("keysPerWrite must be positive");
+            }
+
+            this.keysPerWrite = keysPerWrite;
+            return this;
+        }
+
+        /**
+         * Sets how often an operation is picked relative to the others. 0 leaves it out of
+         * the workload.
+         */
+        public Builder setWeight(Operation operation, int weight) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight must not be negative");
+            }
+
+            weights[operation.ordinal()] = weight;
+            return this;
+        }
+
+        public LoadDriver build() {
+            return new LoadDriver(this);
+        }
+    }
+}
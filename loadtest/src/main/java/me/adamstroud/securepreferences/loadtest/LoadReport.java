@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latencies measured by a {@link LoadDriver} run. Percentiles are exact, they are computed
+ * from every recorded sample. All durations are in nanoseconds.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class LoadReport {
+    private final Map<LoadDriver.Operation, OperationStats> operationStats;
+    private final long elapsedNanos;
+
+    /* default */ LoadReport(Map<LoadDriver.Operation, OperationStats> operationStats, long elapsedNanos) {
+        this.operationStats = Collections.unmodifiableMap(new EnumMap<>(operationStats));
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the latencies of an operation. Operations that did not run have a count of 0.
+     */
+    public OperationStats getStats(LoadDriver.Operation operation) {
+        return operationStats.get(operation);
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the number of operations of every kind per second.
+     */
+    public double getThroughput() {
+        long count = 0;
+
+        for (OperationStats stats : operationStats.values()) {
+            count += stats.count;
+        }
+
+        return count * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * Formats the report as a table, with durations in microseconds.
+     */
+    @Override
+    public String toString() {
+        StringBuilder table = new StringBuilder(String.format(Locale.US, "%-8s %10s %9s %10s %10s %10s %10s%n",
+                "op", "count", "failures", "p50 us", "p99 us", "p999 us", "max us"));
+
+        for (Map.Entry<LoadDriver.Operation, OperationStats> entry : operationStats.entrySet()) {
+            OperationStats stats = entry.getValue();
+
+            if (stats.count > 0) {
+                table.append(String.format(Locale.US, "%-8s %10d %9d %10d %10d %10d %10d%n",
+                        entry.getKey(),
+                        stats.count,
+                        stats.failures,
+                        TimeUnit.NANOSECONDS.toMicros(stats.p50),
+                        TimeUnit.NANOSECONDS.toMicros(stats.p99),
+                        TimeUnit.NANOSECONDS.toMicros(stats.p999),
+                        TimeUnit.NANOSECONDS.toMicros(stats.max)));
+            }
+        }
+
+        return table.append(String.format(Locale.US, "%.1f ops/s over %d ms",
+                getThroughput(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos))).toString();
+    }
+
+    /**
+     * The latency distribution of one kind of operation. Failed operations are part of the
+     * distribution as well.
+     */
+    public static class OperationStats {
+        private final long count;
+        private final long failures;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        /**
+         * @param latencies The latencies of every operation, which are sorted in place.
+         */
+        /* default */ OperationStats(long[] latencies, int count, long failures) {
+            Arrays.sort(latencies, 0, count);
+
+            this.count = count;
+            this.failures = failures;
+            this.p50 = percentile(latencies, count, 0.5);
+            this.p99 = percentile(latencies, count, 0.99);
+            this.p999 = percentile(latencies, count, 0.999);
+            this.max = count == 0 ? 0 : latencies[count - 1];
+        }
+
+        private static long percentile(long[] sortedLatencies, int count, double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+
+            int rank = (int) Math.ceil(fraction * count);
+            return sortedLatencies[Math.max(rank, 1) - 1];
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "OperationStats{count=" + count + ", failures=" + failures + ", p50=" + p50
+                    + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max + '}';
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.adamstroud.securepreferences.CryptoBackend;
+
+/**
+ * A {@link CryptoBackend} that behaves like the AndroidKeyStore of a given device: every call
+ * waits for a simulated IPC to the keystore daemon, the daemon only serves a limited number of
+ * calls at the same time, and some calls fail with a {@link KeyStoreException} that goes away
+ * when the call is repeated. The actual crypto is done by another backend, usually a
+ * {@link me.adamstroud.securepreferences.SoftwareCryptoBackend}.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class SimulatedKeyStoreBackend implements CryptoBackend {
+    private final CryptoBackend delegate;
+    private final LatencyDistribution initializeLatency;
+    private final LatencyDistribution encryptLatency;
+    private final LatencyDistribution decryptLatency;
+    private final Semaphore daemon;
+    private final double failureRate;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    private SimulatedKeyStoreBackend(Builder builder) {
+        this.delegate = builder.delegate;
+        this.initializeLatency = builder.initializeLatency;
+        this.encryptLatency = builder.encryptLatency;
+        this.decryptLatency = builder.decryptLatency;
+        this.daemon = builder.maxConcurrentCalls > 0 ? new Semaphore(builder.maxConcurrentCalls, true) : null;
+        this.failureRate = builder.failureRate;
+    }
+
+    /**
+     * Initializes the delegate after the initialize latency. Never fails on purpose, since a
+     * failed initialization fails the whole {@link me.adamstroud.securepreferences.SecurePreferences}.
+     */
+    @Override
+    public void initialize() throws GeneralSecurityException, IOException {
+        enter(initializeLatency, false);
+
+        try {
+            delegate.initialize();
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException, IOException {
+        enter(encryptLatency, true);
+
+        try {
+            return delegate.encrypt(plaintext);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException, IOException {
+        enter(decryptLatency, true);
+
+        try {
+            return delegate.decrypt(ciphertext);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public int getMaxPlaintextLength() throws GeneralSecurityException, IOException {
+        return delegate.getMaxPlaintextLength();
+    }
+
+    /**
+     * Gets the number of calls to the simulated daemon, including the failed ones.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    /**
+     * Waits for a slot of the daemon and the latency of the call. The slot is held until
+     * {@link #exit()}, unless the call fails.
+     */
+    private void enter(LatencyDistribution latency, boolean mayFail) throws KeyStoreException, InterruptedIOException {
+        Random random = ThreadLocalRandom.current();
+        calls.incrementAndGet();
+
+        try {
+            if (daemon != null) {
+                daemon.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the simulated keystore");
+        }
+
+        try {
+            latency.sleep(random);
+        } catch (InterruptedException e) {
+            exit();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the simulated keystore");
+        }
+
+        if (mayFail && random.nextDouble() < failureRate) {
+            exit();
+            injectedFailures.incrementAndGet();
+            throw new KeyStoreException("Simulated transient keystore failure");
+        }
+    }
+
+    private void exit() {
+        if (daemon != null) {
+            daemon.release();
+        }
+    }
+
+    /**
+     * Configures and creates {@link SimulatedKeyStoreBackend}. Without any configuration calls
+     * go straight to the delegate.
+     */
+    public static class Builder {
+        private final CryptoBackend delegate;
+        private LatencyDistribution initializeLatency = LatencyDistribution.NONE;
+        private LatencyDistribution encryptLatency = LatencyDistribution.NONE;
+        private LatencyDistribution decryptLatency = LatencyDistribution.NONE;
+        private int maxConcurrentCalls;
+        private double failureRate;
+
+        /**
+         * @param delegate The backend that does the crypto.
+         */
+        public Builder(CryptoBackend delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Sets the latency of looking up or generating the key.
+         */
+        public Builder setInitializeLatency(LatencyDistribution initializeLatency) {
+            this.initializeLatency = initializeLatency;
+            return this;
+        }
+
+        public Builder setEncryptLatency(LatencyDistribution encryptLatency) {
+            this.encryptLatency = encryptLatency;
+            return this;
+        }
+
+        public Builder setDecryptLatency(LatencyDistribution decryptLatency) {
+            this.decryptLatency = decryptLatency;
+            return this;
+        }
+
+        /**
+         * Sets how many calls the daemon serves at the same time. Other calls wait in line,
+         * their latency starts once they are served. Unlimited by default.
+         */
+        public Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+            if (maxConcurrentCalls < 1) {
+                throw new IllegalArgumentException("maxConcurrentCalls must be positive");
+            }
+
+            this.maxConcurrentCalls = maxConcurrentCalls;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of encrypt and decrypt calls that fail, between 0 and 1. Nothing
+         * fails by default.
+         */
+        public Builder setFailureRate(double failureRate) {
+            if (failureRate < 0 || failureRate > 1) {
+                throw new IllegalArgumentException("failureRate must be between 0 and 1");
+            }
+
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        public SimulatedKeyStoreBackend build() {
+            return new SimulatedKeyStoreBackend(this);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import android.content.SharedPreferences;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SharedPreferences} that write to a simulated disk the way the Android implementation
+ * does. Reads and the in-memory part of a write go straight to the delegate. Disk writes are
+ * queued on a single thread and take a sampled latency each. {@link Editor#apply()} only
+ * queues the write, while {@link Editor#commit()} waits for it and for every write queued
+ * before it. A disk write can fail, which makes {@code commit()} return false but, as on
+ * Android, keeps the change in memory.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class SimulatedSharedPreferences implements SharedPreferences {
+    private final SharedPreferences delegate;
+    private final LatencyDistribution writeLatency;
+    private final double writeFailureRate;
+    private final ExecutorService disk;
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    private SimulatedSharedPreferences(Builder builder) {
+        this.delegate = builder.delegate;
+        this.writeLatency = builder.writeLatency;
+        this.writeFailureRate = builder.writeFailureRate;
+        this.disk = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatedDisk");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return delegate.getAll();
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return delegate.getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return delegate.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return delegate.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return delegate.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return delegate.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return delegate.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return delegate.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new SimulatedEditor(delegate.edit());
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        delegate.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        delegate.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Gets the number of disk writes, including the failed ones.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    private Future<Boolean> writeToDisk() {
+        writes.incrementAndGet();
+
+        return disk.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+                Random random = ThreadLocalRandom.current();
+                writeLatency.sleep(random);
+
+                if (random.nextDouble() < writeFailureRate) {
+                    injectedFailures.incrementAndGet();
+                    return false;
+                }
+
+                return true;
+            }
+        });
+    }
+
+    private class SimulatedEditor implements Editor {
+        private final Editor editor;
+
+        private SimulatedEditor(Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            editor.putString(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            editor.putStringSet(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            editor.putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            editor.putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            editor.putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            editor.putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            editor.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            editor.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean committed = editor.commit();
+
+            try {
+                return writeToDisk().get() && committed;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void apply() {
+            editor.commit();
+            writeToDisk();
+        }
+    }
+
+    /**
+     * Configures and creates {@link SimulatedSharedPreferences}. Without any configuration disk
+     * writes take no time and never fail.
+     */
+    public static class Builder {
+        private final SharedPreferences delegate;
+        private LatencyDistribution writeLatency = LatencyDistribution.NONE;
+        private double writeFailureRate;
+
+        /**
+         * @param delegate The preferences that hold the values in memory, usually
+         * {@link me.adamstroud.securepreferences.benchmark.InMemorySharedPreferences}.
+         */
+        public Builder(SharedPreferences delegate) {
+            this.delegate = delegate;
+        }
+
+        public Builder setWriteLatency(LatencyDistribution writeLatency) {
+            this.writeLatency = writeLatency;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of disk writes that fail, between 0 and 1. Nothing fails by
+         * default.
+         */
+        public Builder setWriteFailureRate(double writeFailureRate) {
+            if (writeFailureRate < 0 || writeFailureRate > 1) {
+                throw new IllegalArgumentException("writeFailureRate must be between 0 and 1");
+            }
+
+            this.writeFailureRate = writeFailureRate;
+            return this;
+        }
+
+        public SimulatedSharedPreferences build() {
+            return new SimulatedSharedPreferences(this);
+        }
+    }
+}
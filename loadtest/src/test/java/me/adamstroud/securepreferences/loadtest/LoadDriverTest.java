@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Adam Stroud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.adamstroud.securepreferences.loadtest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.security.KeyStoreException;
+import java.util.concurrent.TimeUnit;
+
+import me.adamstroud.securepreferences.SecurePreferences;
+import me.adamstroud.securepreferences.SoftwareCryptoBackend;
+import me.adamstroud.securepreferences.benchmark.InMemorySharedPreferences;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for {@link LoadDriver} and the simulated keystore and disk. Runs on the JVM.
+ *
+ * @author Adam Stroud &#60;<a href="mailto:adam.stroud@gmail.com">adam.stroud@gmail.com</a>&#62;
+ */
+public class LoadDriverTest {
+    private static final int THREADS = 2;
+    private static final int OPERATIONS_PER_THREAD = 100;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testRun() throws Exception {
+        SimulatedSharedPreferences sharedPreferences = new SimulatedSharedPreferences.Builder(new InMemorySharedPreferences())
+                .setWriteLatency(LatencyDistribution.fixed(1, TimeUnit.MILLISECONDS))
+                .build();
+        SecurePreferences securePreferences = new SecurePreferences.Builder(sharedPreferences, new SoftwareCryptoBackend())
+                .setMode(SecurePreferences.Mode.ENVELOPE)
+                .build();
+
+        LoadReport report = new LoadDriver.Builder(securePreferences)
+                .setThreads(THREADS)
+                .setDuration(1, TimeUnit.MINUTES)
+                .setOperationsPerThread(OPERATIONS_PER_THREAD)
+                .setKeyCount(8)
+                .setWeight(LoadDriver.Operation.GET, 1)
+                .setWeight(LoadDriver.Operation.GET_ALL, 0)
+                .setWeight(LoadDriver.Operation.COMMIT, 1)
+                .setWeight(LoadDriver.Operation.APPLY, 0)
+                .build()
+                .run();
+
+        LoadReport.OperationStats get = report.getStats(LoadDriver.Operation.GET);
+        LoadReport.OperationStats commit = report.getStats(LoadDriver.Operation.COMMIT);
+
+        assertThat(get.getCount() + commit.getCount(), is(equalTo((long) THREADS * OPERATIONS_PER_THREAD)));
+        assertThat(report.getStats(LoadDriver.Operation.GET_ALL).getCount(), is(equalTo(0L)));
+        assertThat(get.getFailures() + commit.getFailures(), is(equalTo(0L)));
+
+        // Every commit waits for the simulated disk
+        assertTrue(commit.getP50() >= TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(commit.getP50() <= commit.getP99());
+        assertTrue(commit.getP99() <= commit.getP999());
+        assertTrue(commit.getP999() <= commit.getMax());
+    }
+
+    @Test
+    public void testSimulatedKeyStore_failure() throws Exception {
+        SimulatedKeyStoreBackend keyStore = new SimulatedKeyStoreBackend.Builder(new SoftwareCryptoBackend())
+                .setFailureRate(1)
+                .build();
+
+        keyStore.initialize();
+
+        thrown.expect(KeyStoreException.class);
+        keyStore.encrypt(new byte[] {42});
+    }
+
+    @Test
+    public void testSimulatedSharedPreferences_failure() throws Exception {
+        SimulatedSharedPreferences sharedPreferences = new SimulatedSharedPreferences.Builder(new InMemorySharedPreferences())
+                .setWriteFailureRate(1)
+                .build();
+
+        assertThat(sharedPreferences.edit().putString("key", "value").commit(), is(false));
+        assertThat(sharedPreferences.getString("key", null), is(equalTo("value")));
+        assertThat(sharedPreferences.getInjectedFailures(), is(equalTo(1L)));
+    }
+}